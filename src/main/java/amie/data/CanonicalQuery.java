@@ -0,0 +1,88 @@
+package amie.data;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javatools.datatypes.ByteString;
+
+/**
+ * Class CanonicalQuery
+ *
+ * Key of a query in the caches of the KB. The variables are renamed in order of
+ * appearance, so two queries that differ only in the names of their variables have the
+ * same key. Optionally the constants in subject and object position are replaced by a
+ * placeholder, so that the key only describes the shape of the query. The terms are
+ * copied, hence the query can be modified afterwards.
+ */
+final class CanonicalQuery {
+
+	/** Stands for any constant in a query shape */
+	private static final ByteString CONSTANT = ByteString.of("?");
+
+	/** Canonical names of the first variables */
+	private static final ByteString[] VARIABLES = new ByteString[64];
+
+	static {
+		for (int i = 0; i < VARIABLES.length; ++i)
+			VARIABLES[i] = ByteString.of("?" + i);
+	}
+
+	private final ByteString[] terms;
+
+	private final int hashCode;
+
+	/**
+	 * @param query
+	 * @param abstractConstants If true, the constants other than relations are not part of the key
+	 * @param variables Variables of interest, e.g., the projection variables of the query
+	 */
+	CanonicalQuery(List<ByteString[]> query, boolean abstractConstants, ByteString... variables) {
+		int size = variables.length + query.size();
+		for (ByteString[] triple : query)
+			size += triple.length;
+		terms = new ByteString[size];
+		Map<ByteString, ByteString> names = new HashMap<ByteString, ByteString>();
+		int n = 0;
+		for (ByteString[] triple : query) {
+			for (int j = 0; j < triple.length; ++j)
+				terms[n++] = canonical(triple[j], abstractConstants && j != 1, names);
+			// Separates atoms of different lengths
+			terms[n++] = null;
+		}
+		for (ByteString variable : variables)
+			terms[n++] = canonical(variable, false, names);
+		hashCode = Arrays.hashCode(terms);
+	}
+
+	private static ByteString canonical(ByteString term, boolean abstractConstant,
+			Map<ByteString, ByteString> names) {
+		if (KB.isVariable(term)) {
+			ByteString name = names.get(term);
+			if (name == null) {
+				int i = names.size();
+				name = i < VARIABLES.length ? VARIABLES[i] : ByteString.of("?" + i);
+				names.put(term, name);
+			}
+			return name;
+		}
+		return abstractConstant ? CONSTANT : term;
+	}
+
+	/** Number of terms of the key, a measure of its memory footprint */
+	int size() {
+		return terms.length;
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof CanonicalQuery && hashCode == o.hashCode()
+				&& Arrays.equals(terms, ((CanonicalQuery) o).terms);
+	}
+}
@@ -0,0 +1,368 @@
+package amie.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javatools.administrative.Announce;
+import javatools.datatypes.ByteString;
+import javatools.datatypes.IntHashMap;
+import javatools.parsers.NumberFormatter;
+
+/**
+ * Class ChunkedLoader
+ *
+ * Loads a single file into a KB using several threads. The file is split into
+ * byte ranges aligned to line boundaries and every worker parses and
+ * dictionary-encodes its ranges into a batch of integer triples. In a second
+ * phase the batches are merged into the KB, where every permutation index is
+ * built by its own thread (see {@link KB#addEncoded(TermDictionary, List)}), so
+ * no locks are taken per inserted fact. If a worker fails, the load is aborted
+ * before any fact is added to the KB.
+ */
+public class ChunkedLoader {
+
+	/**
+	 * Order of the components of a triple in each of the six permutation indexes
+	 * (SRO, ROS, OSR, RSO, ORS, SOR), as used by KB and IntKB.
+	 */
+	public static final int[][] PERMUTATIONS = { { 0, 1, 2 }, { 1, 2, 0 }, { 2, 0, 1 },
+			{ 1, 0, 2 }, { 2, 1, 0 }, { 0, 2, 1 } };
+
+	/** Minimum size of a byte range */
+	private static final long MIN_CHUNK_SIZE = 1 << 20;
+
+	/** Number of ranges per worker, to balance the load among threads */
+	private static final int CHUNKS_PER_WORKER = 4;
+
+	/** Size of the read buffer of each worker */
+	private static final int BUFFER_SIZE = 1 << 22;
+
+	/** Maximal number of terms in the cache of identifiers of each worker */
+	private static final int CACHE_SIZE = 1 << 16;
+
+	/**
+	 * Triples encoded by one worker, stored as consecutive (subject, relation, object)
+	 * identifiers.
+	 */
+	public static class Batch {
+
+		int[] triples = new int[3 * 1024];
+
+		int size;
+
+		void add(int subject, int relation, int object) {
+			if (size + 3 > triples.length)
+				triples = Arrays.copyOf(triples, triples.length * 2);
+			triples[size++] = subject;
+			triples[size++] = relation;
+			triples[size++] = object;
+		}
+
+		/** Number of triples in the batch */
+		public int size() {
+			return size / 3;
+		}
+
+		/** Component (0 = subject, 1 = relation, 2 = object) of the i-th triple */
+		public int get(int i, int component) {
+			return triples[3 * i + component];
+		}
+	}
+
+	/**
+	 * It loads the file into the KB with the given number of threads.
+	 * @param kb
+	 * @param file
+	 * @param nThreads
+	 * @throws IOException If the file cannot be read. No fact is added to the KB in that case,
+	 * nor if a worker fails with any other exception, which is rethrown.
+	 */
+	public static void load(KB kb, File file, int nThreads) throws IOException {
+		long size = kb.size();
+		long time = System.currentTimeMillis();
+		Announce.doing("Loading " + file.getName() + " with " + nThreads + " threads");
+		final TermDictionary dictionary = kb instanceof IntKB ?
+				((IntKB) kb).getDictionary() : new TermDictionary();
+
+		try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			final long[] boundaries = split(channel, nThreads);
+			final int[] nextChunk = new int[1];
+			final Throwable[] failure = new Throwable[1];
+			final List<Batch> batches = new ArrayList<>();
+			Thread[] workers = new Thread[nThreads];
+			for (int i = 0; i < nThreads; ++i) {
+				final Batch batch = new Batch();
+				final int workerId = i;
+				batches.add(batch);
+				workers[i] = new Thread() {
+					public void run() {
+						long start = System.currentTimeMillis();
+						IntHashMap<ByteString> cache = new IntHashMap<>();
+						try {
+							while (true) {
+								int chunk;
+								synchronized (nextChunk) {
+									chunk = nextChunk[0]++;
+								}
+								if (chunk >= boundaries.length - 1 || failure[0] != null)
+									break;
+								parse(channel, boundaries[chunk], boundaries[chunk + 1],
+										dictionary, cache, batch);
+							}
+						} catch (Throwable e) {
+							synchronized (nextChunk) {
+								if (failure[0] == null)
+									failure[0] = e;
+							}
+						}
+						long elapsed = Math.max(1, System.currentTimeMillis() - start);
+						synchronized (Announce.blanks) {
+							Announce.message("Worker " + workerId + " parsed " + batch.size() + " facts in "
+									+ NumberFormatter.formatMS(elapsed) + " ("
+									+ (batch.size() * 1000L / elapsed) + " facts/s)");
+						}
+					}
+				};
+				workers[i].start();
+			}
+			joinAll(workers, failure, nextChunk);
+			if (failure[0] != null)
+				rethrow(failure[0]);
+			long merge = System.currentTimeMillis();
+			kb.addEncoded(dictionary, batches);
+			Announce.message("Merged in " + NumberFormatter.formatMS(System.currentTimeMillis() - merge));
+		}
+
+		long elapsed = Math.max(1, System.currentTimeMillis() - time);
+		Announce.done("Loaded " + (kb.size() - size) + " facts in " + NumberFormatter.formatMS(elapsed)
+				+ " (" + ((kb.size() - size) * 1000L / elapsed) + " facts/s)");
+	}
+
+	/**
+	 * Splits the file into byte ranges starting at the beginning of a line. It returns the
+	 * start of every range plus the size of the file.
+	 */
+	private static long[] split(FileChannel channel, int nThreads) throws IOException {
+		long fileSize = channel.size();
+		int nChunks = (int) Math.max(1, Math.min(nThreads * CHUNKS_PER_WORKER, fileSize / MIN_CHUNK_SIZE));
+		long[] boundaries = new long[nChunks + 1];
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		for (int i = 1; i < nChunks; ++i) {
+			long position = Math.max(fileSize * i / nChunks, boundaries[i - 1]);
+			// Move to the first byte after the next line break
+			outer:
+			while (position < fileSize) {
+				buffer.clear();
+				int n = channel.read(buffer, position);
+				if (n <= 0)
+					break;
+				for (int j = 0; j < n; ++j) {
+					if (buffer.get(j) == '\n') {
+						position += j + 1;
+						break outer;
+					}
+				}
+				position += n;
+			}
+			boundaries[i] = Math.min(position, fileSize);
+		}
+		boundaries[nChunks] = fileSize;
+		return boundaries;
+	}
+
+	/**
+	 * Parses the lines in the byte range [start, end) of the file and adds
+	 * the encoded facts to the batch.
+	 */
+	private static void parse(FileChannel channel, long start, long end, TermDictionary dictionary,
+			IntHashMap<ByteString> cache, Batch batch) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(1, end - start)));
+		byte[] line = new byte[1024];
+		int lineLength = 0;
+		long position = start;
+		while (position < end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - position));
+			int n = channel.read(buffer, position);
+			if (n <= 0)
+				break;
+			position += n;
+			byte[] bytes = buffer.array();
+			for (int i = 0; i < n; ++i) {
+				byte b = bytes[i];
+				if (b == '\n') {
+					addLine(line, lineLength, dictionary, cache, batch);
+					lineLength = 0;
+				} else {
+					if (lineLength == line.length)
+						line = Arrays.copyOf(line, line.length * 2);
+					line[lineLength++] = b;
+				}
+			}
+		}
+		if (lineLength > 0)
+			addLine(line, lineLength, dictionary, cache, batch);
+	}
+
+	private static void addLine(byte[] line, int length, TermDictionary dictionary,
+			IntHashMap<ByteString> cache, Batch batch) {
+		if (length > 0 && line[length - 1] == '\r')
+			--length;
+		if (length == 0)
+			return;
+		if (isSpace(line[0]) || !isAscii(line, length)) {
+			String[] fact = KB.parseFact(new String(line, 0, length, StandardCharsets.UTF_8));
+			if (fact == null)
+				return;
+			batch.add(encode(fact[0], dictionary, cache), encode(fact[1], dictionary, cache),
+					encode(fact[2], dictionary, cache));
+			return;
+		}
+		// Same as KB.parseFact, on the bytes of the line
+		if (line[length - 1] == '.')
+			--length;
+		int n = 0;
+		for (int i = 0; i < length; ++i) {
+			if (line[i] != '<' && line[i] != '>')
+				line[n++] = line[i];
+		}
+		length = n;
+		// Start and end of the subject, the relation and the object. The tokens
+		// after the relation are moved to the end of the object.
+		int[] bounds = new int[6];
+		int nTokens = 0;
+		int i = 0;
+		while (i < length) {
+			while (i < length && isSpace(line[i]))
+				++i;
+			if (i == length)
+				break;
+			int start = i;
+			while (i < length && !isSpace(line[i]))
+				++i;
+			if (nTokens < 3) {
+				bounds[2 * nTokens] = start;
+				bounds[2 * nTokens + 1] = i;
+			} else {
+				System.arraycopy(line, start, line, bounds[5], i - start);
+				bounds[5] += i - start;
+			}
+			++nTokens;
+		}
+		if (nTokens < 2)
+			return;
+		batch.add(encode(line, bounds[0], bounds[1], dictionary, cache),
+				encode(line, bounds[2], bounds[3], dictionary, cache),
+				encode(line, bounds[4], bounds[5], dictionary, cache));
+	}
+
+	/** TRUE for the characters matched by \s in regular expressions */
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+	}
+
+	private static boolean isAscii(byte[] line, int length) {
+		for (int i = 0; i < length; ++i) {
+			if (line[i] < 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Encodes the term in the bytes [start, end) of an ASCII line, as KB.compress
+	 * would do with the same characters, without creating a String.
+	 */
+	private static int encode(byte[] line, int start, int end, TermDictionary dictionary,
+			IntHashMap<ByteString> cache) {
+		for (int i = start; i + 2 < end; ++i) {
+			if (line[i] == '"' && line[i + 1] == '^' && line[i + 2] == '^') {
+				end = i + 1;
+				break;
+			}
+		}
+		return encode(ByteString.of(line, start, end), dictionary, cache);
+	}
+
+	/** Encodes a term of a line that is not parsed on its bytes */
+	private static int encode(String term, TermDictionary dictionary, IntHashMap<ByteString> cache) {
+		return encode(KB.compress(term), dictionary, cache);
+	}
+
+	/**
+	 * Encodes a term. The worker keeps its own cache of identifiers, so the shared
+	 * dictionary is mostly accessed for rare terms. The cache is emptied when it
+	 * reaches CACHE_SIZE terms, which the frequent terms quickly fill again.
+	 */
+	private static int encode(ByteString bs, TermDictionary dictionary, IntHashMap<ByteString> cache) {
+		int id = cache.get(bs);
+		if (id == -1) {
+			id = dictionary.getOrAdd(bs);
+			if (cache.size() >= CACHE_SIZE)
+				cache.clear();
+			cache.put(bs, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Waits for the workers to finish. If the current thread is interrupted, the
+	 * interruption is recorded as the failure of the load, so that the workers
+	 * stop at their next range, and the wait goes on: the batches must not be
+	 * merged while a worker can still write to them.
+	 */
+	private static void joinAll(Thread[] workers, Throwable[] failure, Object lock) {
+		boolean interrupted = false;
+		for (Thread worker : workers) {
+			while (true) {
+				try {
+					worker.join();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+					synchronized (lock) {
+						if (failure[0] == null)
+							failure[0] = new InterruptedIOException("Load interrupted");
+					}
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Rethrows the failure of a worker, wrapped in a RuntimeException if it is
+	 * a checked exception other than an IOException.
+	 */
+	private static void rethrow(Throwable failure) throws IOException {
+		if (failure instanceof IOException)
+			throw (IOException) failure;
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+		throw new RuntimeException(failure);
+	}
+
+	/**
+	 * Waits for the threads to finish.
+	 */
+	static void join(Thread[] threads) {
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,592 @@
+package amie.data;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Class CompressedBitmap
+ *
+ * Set of non-negative ints (e.g., term identifiers of a {@link TermDictionary}) split in
+ * chunks of 2^16 values in the manner of Roaring bitmaps. Each chunk is stored as a
+ * sorted array of the lower 16 bits when it holds at most {@value #ARRAY_MAX} values and
+ * as a plain bitmap otherwise. Intersections work chunk by chunk, so sparse and dense
+ * sets are both compact and fast to intersect.
+ *
+ * The class is not synchronized. Bitmaps that are not modified anymore can be read by
+ * any number of threads.
+ */
+public class CompressedBitmap {
+
+	/** Maximum number of values of an array chunk */
+	static final int ARRAY_MAX = 4096;
+
+	/** Number of longs of a bitmap chunk */
+	private static final int WORDS = 1 << 10;
+
+	/** Upper 16 bits of the values of each chunk, sorted */
+	private char[] keys = new char[4];
+
+	/** Chunks, in the order of keys */
+	private Chunk[] chunks = new Chunk[4];
+
+	/** Number of chunks */
+	private int size;
+
+	/**
+	 * It builds a bitmap from the first length values of a sorted array.
+	 * @param sorted
+	 * @param length
+	 * @return
+	 */
+	public static CompressedBitmap of(int[] sorted, int length) {
+		CompressedBitmap result = new CompressedBitmap();
+		int i = 0;
+		while (i < length) {
+			int key = sorted[i] >>> 16;
+			int j = i;
+			while (j < length && sorted[j] >>> 16 == key)
+				++j;
+			Chunk chunk;
+			if (j - i <= ARRAY_MAX) {
+				char[] values = new char[j - i];
+				for (int k = i; k < j; ++k)
+					values[k - i] = (char) sorted[k];
+				chunk = new ArrayChunk(values, values.length);
+			} else {
+				long[] words = new long[WORDS];
+				for (int k = i; k < j; ++k)
+					words[(sorted[k] & 0xFFFF) >>> 6] |= 1L << sorted[k];
+				chunk = new BitmapChunk(words, j - i);
+			}
+			result.append((char) key, chunk);
+			i = j;
+		}
+		return result;
+	}
+
+	/**
+	 * It builds a bitmap with the given values, in any order.
+	 * @param values
+	 * @return
+	 */
+	public static CompressedBitmap of(int... values) {
+		int[] sorted = values.clone();
+		Arrays.sort(sorted);
+		int length = 0;
+		for (int i = 0; i < sorted.length; ++i) {
+			if (length == 0 || sorted[length - 1] != sorted[i])
+				sorted[length++] = sorted[i];
+		}
+		return of(sorted, length);
+	}
+
+	private void append(char key, Chunk chunk) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			chunks = Arrays.copyOf(chunks, size * 2);
+		}
+		keys[size] = key;
+		chunks[size++] = chunk;
+	}
+
+	/** Position of the chunk with the given key or a negative number if absent */
+	private int find(char key) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (keys[mid] < key)
+				low = mid + 1;
+			else if (keys[mid] > key)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * It adds a value to the set.
+	 * @param value A non-negative int
+	 * @return TRUE if the value was not in the set.
+	 */
+	public boolean add(int value) {
+		if (value < 0)
+			throw new IllegalArgumentException("Negative value " + value);
+		char key = (char) (value >>> 16);
+		int i = find(key);
+		if (i < 0) {
+			i = -i - 1;
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				chunks = Arrays.copyOf(chunks, size * 2);
+			}
+			System.arraycopy(keys, i, keys, i + 1, size - i);
+			System.arraycopy(chunks, i, chunks, i + 1, size - i);
+			keys[i] = key;
+			chunks[i] = new ArrayChunk(new char[4], 0);
+			++size;
+		}
+		int cardinality = chunks[i].cardinality();
+		chunks[i] = chunks[i].add((char) value);
+		return chunks[i].cardinality() > cardinality;
+	}
+
+	/**
+	 * It returns TRUE if the value is in the set.
+	 * @param value
+	 * @return
+	 */
+	public boolean contains(int value) {
+		if (value < 0)
+			return false;
+		int i = find((char) (value >>> 16));
+		return i >= 0 && chunks[i].contains((char) value);
+	}
+
+	/**
+	 * Number of values in the set.
+	 * @return
+	 */
+	public long cardinality() {
+		long result = 0;
+		for (int i = 0; i < size; ++i)
+			result += chunks[i].cardinality();
+		return result;
+	}
+
+	/**
+	 * TRUE if the set has no values.
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Size of the intersection with the other bitmap. No bitmap is built.
+	 * @param other
+	 * @return
+	 */
+	public long andCardinality(CompressedBitmap other) {
+		long result = 0;
+		int i = 0;
+		int j = 0;
+		while (i < size && j < other.size) {
+			if (keys[i] < other.keys[j]) {
+				++i;
+			} else if (keys[i] > other.keys[j]) {
+				++j;
+			} else {
+				result += chunks[i].andCardinality(other.chunks[j]);
+				++i;
+				++j;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the intersection with the other bitmap as a new bitmap.
+	 * @param other
+	 * @return
+	 */
+	public CompressedBitmap and(CompressedBitmap other) {
+		CompressedBitmap result = new CompressedBitmap();
+		int i = 0;
+		int j = 0;
+		while (i < size && j < other.size) {
+			if (keys[i] < other.keys[j]) {
+				++i;
+			} else if (keys[i] > other.keys[j]) {
+				++j;
+			} else {
+				Chunk chunk = chunks[i].and(other.chunks[j]);
+				if (chunk.cardinality() > 0)
+					result.append(keys[i], chunk);
+				++i;
+				++j;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the union with the other bitmap as a new bitmap.
+	 * @param other
+	 * @return
+	 */
+	public CompressedBitmap or(CompressedBitmap other) {
+		CompressedBitmap result = new CompressedBitmap();
+		int i = 0;
+		int j = 0;
+		while (i < size || j < other.size) {
+			if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+				result.append(keys[i], chunks[i].copy());
+				++i;
+			} else if (i == size || keys[i] > other.keys[j]) {
+				result.append(other.keys[j], other.chunks[j].copy());
+				++j;
+			} else {
+				result.append(keys[i], chunks[i].or(other.chunks[j]));
+				++i;
+				++j;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Approximate number of bytes used by the bitmap.
+	 * @return
+	 */
+	public long sizeInBytes() {
+		long result = 16 + keys.length * 2L + chunks.length * 8L;
+		for (int i = 0; i < size; ++i)
+			result += chunks[i].sizeInBytes();
+		return result;
+	}
+
+	/**
+	 * Iterates over the values of the set in increasing order.
+	 * @return
+	 */
+	public PrimitiveIterator.OfInt iterator() {
+		return new PrimitiveIterator.OfInt() {
+			int chunk = 0;
+
+			PrimitiveIterator.OfInt values = size > 0 ? chunks[0].iterator() : null;
+
+			@Override
+			public boolean hasNext() {
+				while (values != null && !values.hasNext()) {
+					++chunk;
+					values = chunk < size ? chunks[chunk].iterator() : null;
+				}
+				return values != null;
+			}
+
+			@Override
+			public int nextInt() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return keys[chunk] << 16 | values.nextInt();
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder("{");
+		PrimitiveIterator.OfInt it = iterator();
+		while (it.hasNext()) {
+			result.append(it.nextInt());
+			if (it.hasNext())
+				result.append(", ");
+		}
+		return result.append("}").toString();
+	}
+
+	/** Values of a chunk, i.e., the lower 16 bits of the values sharing the upper 16 bits */
+	private static abstract class Chunk {
+
+		abstract int cardinality();
+
+		abstract boolean contains(char value);
+
+		/** Adds the value, it returns the chunk that holds the result */
+		abstract Chunk add(char value);
+
+		abstract int andCardinality(Chunk other);
+
+		abstract Chunk and(Chunk other);
+
+		abstract Chunk or(Chunk other);
+
+		abstract Chunk copy();
+
+		abstract long sizeInBytes();
+
+		abstract PrimitiveIterator.OfInt iterator();
+	}
+
+	/** Chunk stored as a sorted array */
+	private static final class ArrayChunk extends Chunk {
+
+		char[] values;
+
+		int cardinality;
+
+		ArrayChunk(char[] values, int cardinality) {
+			this.values = values;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+		}
+
+		@Override
+		Chunk add(char value) {
+			int i = Arrays.binarySearch(values, 0, cardinality, value);
+			if (i >= 0)
+				return this;
+			if (cardinality == ARRAY_MAX)
+				return toBitmap().add(value);
+			i = -i - 1;
+			if (cardinality == values.length)
+				values = Arrays.copyOf(values, Math.min(ARRAY_MAX, values.length * 2));
+			System.arraycopy(values, i, values, i + 1, cardinality - i);
+			values[i] = value;
+			++cardinality;
+			return this;
+		}
+
+		BitmapChunk toBitmap() {
+			long[] words = new long[WORDS];
+			for (int i = 0; i < cardinality; ++i)
+				words[values[i] >>> 6] |= 1L << values[i];
+			return new BitmapChunk(words, cardinality);
+		}
+
+		@Override
+		int andCardinality(Chunk other) {
+			if (other instanceof BitmapChunk)
+				return other.andCardinality(this);
+			ArrayChunk array = (ArrayChunk) other;
+			int result = 0;
+			int i = 0;
+			int j = 0;
+			while (i < cardinality && j < array.cardinality) {
+				if (values[i] < array.values[j]) {
+					++i;
+				} else if (values[i] > array.values[j]) {
+					++j;
+				} else {
+					++result;
+					++i;
+					++j;
+				}
+			}
+			return result;
+		}
+
+		@Override
+		Chunk and(Chunk other) {
+			char[] result = new char[Math.min(cardinality, other.cardinality())];
+			int n = 0;
+			if (other instanceof BitmapChunk) {
+				for (int i = 0; i < cardinality; ++i)
+					if (other.contains(values[i]))
+						result[n++] = values[i];
+			} else {
+				ArrayChunk array = (ArrayChunk) other;
+				int i = 0;
+				int j = 0;
+				while (i < cardinality && j < array.cardinality) {
+					if (values[i] < array.values[j]) {
+						++i;
+					} else if (values[i] > array.values[j]) {
+						++j;
+					} else {
+						result[n++] = values[i];
+						++i;
+						++j;
+					}
+				}
+			}
+			return new ArrayChunk(result, n);
+		}
+
+		@Override
+		Chunk or(Chunk other) {
+			if (other instanceof BitmapChunk)
+				return other.or(this);
+			ArrayChunk array = (ArrayChunk) other;
+			if (cardinality + array.cardinality > ARRAY_MAX)
+				return toBitmap().or(other);
+			char[] result = new char[cardinality + array.cardinality];
+			int n = 0;
+			int i = 0;
+			int j = 0;
+			while (i < cardinality || j < array.cardinality) {
+				if (j == array.cardinality || (i < cardinality && values[i] < array.values[j])) {
+					result[n++] = values[i++];
+				} else if (i == cardinality || values[i] > array.values[j]) {
+					result[n++] = array.values[j++];
+				} else {
+					result[n++] = values[i];
+					++i;
+					++j;
+				}
+			}
+			return new ArrayChunk(result, n);
+		}
+
+		@Override
+		Chunk copy() {
+			return new ArrayChunk(Arrays.copyOf(values, cardinality), cardinality);
+		}
+
+		@Override
+		long sizeInBytes() {
+			return 24 + values.length * 2L;
+		}
+
+		@Override
+		PrimitiveIterator.OfInt iterator() {
+			return new PrimitiveIterator.OfInt() {
+				int i = 0;
+
+				@Override
+				public boolean hasNext() {
+					return i < cardinality;
+				}
+
+				@Override
+				public int nextInt() {
+					if (i >= cardinality)
+						throw new NoSuchElementException();
+					return values[i++];
+				}
+			};
+		}
+	}
+
+	/** Chunk stored as a bitmap of 2^16 bits */
+	private static final class BitmapChunk extends Chunk {
+
+		final long[] words;
+
+		int cardinality;
+
+		BitmapChunk(long[] words, int cardinality) {
+			this.words = words;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		@Override
+		Chunk add(char value) {
+			long word = words[value >>> 6];
+			long updated = word | (1L << value);
+			if (updated != word) {
+				words[value >>> 6] = updated;
+				++cardinality;
+			}
+			return this;
+		}
+
+		@Override
+		int andCardinality(Chunk other) {
+			int result = 0;
+			if (other instanceof ArrayChunk) {
+				ArrayChunk array = (ArrayChunk) other;
+				for (int i = 0; i < array.cardinality; ++i)
+					if (contains(array.values[i]))
+						++result;
+			} else {
+				long[] otherWords = ((BitmapChunk) other).words;
+				for (int i = 0; i < WORDS; ++i)
+					result += Long.bitCount(words[i] & otherWords[i]);
+			}
+			return result;
+		}
+
+		@Override
+		Chunk and(Chunk other) {
+			if (other instanceof ArrayChunk)
+				return other.and(this);
+			long[] otherWords = ((BitmapChunk) other).words;
+			long[] result = new long[WORDS];
+			int n = 0;
+			for (int i = 0; i < WORDS; ++i) {
+				result[i] = words[i] & otherWords[i];
+				n += Long.bitCount(result[i]);
+			}
+			if (n > ARRAY_MAX)
+				return new BitmapChunk(result, n);
+			// Sparse results are stored as arrays
+			char[] values = new char[n];
+			int k = 0;
+			for (int i = 0; i < WORDS; ++i) {
+				long word = result[i];
+				while (word != 0) {
+					values[k++] = (char) (i << 6 | Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return new ArrayChunk(values, n);
+		}
+
+		@Override
+		Chunk or(Chunk other) {
+			BitmapChunk result = (BitmapChunk) copy();
+			if (other instanceof ArrayChunk) {
+				ArrayChunk array = (ArrayChunk) other;
+				for (int i = 0; i < array.cardinality; ++i)
+					result.add(array.values[i]);
+			} else {
+				long[] otherWords = ((BitmapChunk) other).words;
+				int n = 0;
+				for (int i = 0; i < WORDS; ++i) {
+					result.words[i] |= otherWords[i];
+					n += Long.bitCount(result.words[i]);
+				}
+				result.cardinality = n;
+			}
+			return result;
+		}
+
+		@Override
+		Chunk copy() {
+			return new BitmapChunk(words.clone(), cardinality);
+		}
+
+		@Override
+		long sizeInBytes() {
+			return 24 + WORDS * 8L;
+		}
+
+		@Override
+		PrimitiveIterator.OfInt iterator() {
+			return new PrimitiveIterator.OfInt() {
+				int word = 0;
+
+				long bits = words[0];
+
+				@Override
+				public boolean hasNext() {
+					while (bits == 0 && word < WORDS - 1)
+						bits = words[++word];
+					return bits != 0;
+				}
+
+				@Override
+				public int nextInt() {
+					if (!hasNext())
+						throw new NoSuchElementException();
+					int result = word << 6 | Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+					return result;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package amie.data;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Class CsrTripleIndex
+ *
+ * Immutable {@link IntTripleIndex} in compressed-sparse-row layout. The keys of each
+ * level are stored sorted in a single array and the children of a key are located
+ * through an offsets array:
+ *
+ * firstKeys[i] has the second-level keys secondKeys[firstOffsets[i] .. firstOffsets[i + 1]),
+ * secondKeys[j] has the values values[secondOffsets[j] .. secondOffsets[j + 1]).
+ *
+ * First-level keys, which are dense term identifiers, are located through a table
+ * built when the index is created; the other lookups are binary searches. The index
+ * can be read by any number of threads without synchronization. The arrays are held as IntBuffers so that they can live
+ * either on the heap or in a memory-mapped KB image (see {@link KBImage}).
+ */
+public class CsrTripleIndex extends IntTripleIndex {
+
+	/** Sorted first-level keys */
+	protected final IntBuffer firstKeys;
+
+	/** Start of the second-level keys of each first-level key, plus the end of the last one */
+	protected final IntBuffer firstOffsets;
+
+	/** Second-level keys, sorted within each first-level key */
+	protected final IntBuffer secondKeys;
+
+	/** Start of the values of each second-level key, plus the end of the last one */
+	protected final IntBuffer secondOffsets;
+
+	/** Values, sorted within each pair of keys */
+	protected final IntBuffer values;
+
+	/** Position of each first-level key in firstKeys, -1 if absent */
+	protected final int[] rows;
+
+	public CsrTripleIndex(IntBuffer firstKeys, IntBuffer firstOffsets, IntBuffer secondKeys,
+			IntBuffer secondOffsets, IntBuffer values) {
+		this.firstKeys = firstKeys;
+		this.firstOffsets = firstOffsets;
+		this.secondKeys = secondKeys;
+		this.secondOffsets = secondOffsets;
+		this.values = values;
+		int limit = firstKeys.limit();
+		rows = new int[limit == 0 ? 0 : firstKeys.get(limit - 1) + 1];
+		Arrays.fill(rows, -1);
+		for (int i = 0; i < limit; ++i)
+			rows[firstKeys.get(i)] = i;
+	}
+
+	/**
+	 * It builds a compacted copy of the given index.
+	 * @param index
+	 * @return
+	 */
+	public static CsrTripleIndex of(IntTripleIndex index) {
+		int[] firstKeys = sorted(index.keys(), index.size());
+		int[] firstOffsets = new int[firstKeys.length + 1];
+		int nSecondKeys = 0;
+		for (int i = 0; i < firstKeys.length; ++i) {
+			nSecondKeys += index.size(firstKeys[i]);
+			firstOffsets[i + 1] = nSecondKeys;
+		}
+
+		int[] secondKeys = new int[nSecondKeys];
+		int[] secondOffsets = new int[nSecondKeys + 1];
+		int nValues = 0;
+		for (int i = 0; i < firstKeys.length; ++i) {
+			int a = firstKeys[i];
+			int[] keys = sorted(index.keys(a), index.size(a));
+			System.arraycopy(keys, 0, secondKeys, firstOffsets[i], keys.length);
+			for (int j = firstOffsets[i]; j < firstOffsets[i + 1]; ++j) {
+				nValues += index.size(a, secondKeys[j]);
+				secondOffsets[j + 1] = nValues;
+			}
+		}
+
+		int[] values = new int[nValues];
+		for (int i = 0; i < firstKeys.length; ++i) {
+			for (int j = firstOffsets[i]; j < firstOffsets[i + 1]; ++j) {
+				PrimitiveIterator.OfInt it = index.values(firstKeys[i], secondKeys[j]);
+				int pos = secondOffsets[j];
+				while (it.hasNext())
+					values[pos++] = it.nextInt();
+				Arrays.sort(values, secondOffsets[j], secondOffsets[j + 1]);
+			}
+		}
+
+		return new CsrTripleIndex(IntBuffer.wrap(firstKeys), IntBuffer.wrap(firstOffsets),
+				IntBuffer.wrap(secondKeys), IntBuffer.wrap(secondOffsets), IntBuffer.wrap(values));
+	}
+
+	private static int[] sorted(PrimitiveIterator.OfInt it, int size) {
+		int[] result = new int[size];
+		for (int i = 0; i < size; ++i)
+			result[i] = it.nextInt();
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * Binary search of the key in the sorted range [from, to) of the buffer. It
+	 * returns the position of the key or a negative number if absent.
+	 */
+	protected static int binarySearch(IntBuffer buffer, int from, int to, int key) {
+		int low = from;
+		int high = to - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int value = buffer.get(mid);
+			if (value < key)
+				low = mid + 1;
+			else if (value > key)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -(low + 1);
+	}
+
+	/** Position of the first-level key or a negative number if absent */
+	protected int find(int a) {
+		return a >= 0 && a < rows.length ? rows[a] : -1;
+	}
+
+	/** Position of the second-level key or a negative number if absent */
+	protected int find(int a, int b) {
+		int i = find(a);
+		if (i < 0)
+			return -1;
+		return binarySearch(secondKeys, firstOffsets.get(i), firstOffsets.get(i + 1), b);
+	}
+
+	@Override
+	public int size() {
+		return firstKeys.limit();
+	}
+
+	@Override
+	public int size(int a) {
+		int i = find(a);
+		return i < 0 ? 0 : firstOffsets.get(i + 1) - firstOffsets.get(i);
+	}
+
+	@Override
+	public int size(int a, int b) {
+		int j = find(a, b);
+		return j < 0 ? 0 : secondOffsets.get(j + 1) - secondOffsets.get(j);
+	}
+
+	@Override
+	public boolean contains(int a, int b, int c) {
+		int j = find(a, b);
+		return j >= 0 && binarySearch(values, secondOffsets.get(j), secondOffsets.get(j + 1), c) >= 0;
+	}
+
+	@Override
+	public PrimitiveIterator.OfInt keys() {
+		return iterator(firstKeys, 0, firstKeys.limit());
+	}
+
+	@Override
+	public PrimitiveIterator.OfInt keys(int a) {
+		int i = find(a);
+		return i < 0 ? EMPTY : iterator(secondKeys, firstOffsets.get(i), firstOffsets.get(i + 1));
+	}
+
+	@Override
+	public PrimitiveIterator.OfInt values(int a, int b) {
+		int j = find(a, b);
+		return j < 0 ? EMPTY : iterator(values, secondOffsets.get(j), secondOffsets.get(j + 1));
+	}
+
+	/**
+	 * Number of facts in the index.
+	 * @return
+	 */
+	public int facts() {
+		return values.limit();
+	}
+
+	/**
+	 * Returns the arrays of the index in the order firstKeys, firstOffsets, secondKeys,
+	 * secondOffsets and values.
+	 * @return
+	 */
+	public IntBuffer[] arrays() {
+		return new IntBuffer[] { firstKeys.duplicate(), firstOffsets.duplicate(), secondKeys.duplicate(),
+				secondOffsets.duplicate(), values.duplicate() };
+	}
+
+	/** Iterates over a slice of an array */
+	private static PrimitiveIterator.OfInt iterator(final IntBuffer array, final int from, final int to) {
+		return new PrimitiveIterator.OfInt() {
+			int pos = from;
+
+			@Override
+			public boolean hasNext() {
+				return pos < to;
+			}
+
+			@Override
+			public int nextInt() {
+				if (pos >= to)
+					throw new NoSuchElementException();
+				return array.get(pos++);
+			}
+		};
+	}
+}
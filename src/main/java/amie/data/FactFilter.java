@@ -0,0 +1,104 @@
+package amie.data;
+
+import javatools.datatypes.ByteString;
+
+/**
+ * Class FactFilter
+ *
+ * Bloom filter of the facts of a KB. It answers "no" for most of the facts that are not
+ * in the KB without looking at the indexes, and "maybe" for the facts of the KB and for
+ * a configurable fraction of the others. The positions of a fact are derived from the
+ * cached hash codes of its terms by double hashing, so a lookup costs a few multiplications
+ * and memory accesses.
+ *
+ * Facts can only be added. The filter is not synchronized: it is built once and can then
+ * be read by any number of threads.
+ */
+public class FactFilter {
+
+	/** Bits of the filter */
+	private final long[] bits;
+
+	/** Number of bits, a power of 2 */
+	private final long nBits;
+
+	/** Number of positions of each fact */
+	private final int nHashes;
+
+	/** Number of added facts */
+	private long size;
+
+	/**
+	 * It creates a filter sized for the given number of facts and false positive rate.
+	 * @param expectedFacts
+	 * @param falsePositiveRate In (0, 1)
+	 */
+	public FactFilter(long expectedFacts, double falsePositiveRate) {
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+			throw new IllegalArgumentException("The false positive rate must be in (0, 1): " + falsePositiveRate);
+		double optimalBits = -Math.max(1, expectedFacts) * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+		long n = Math.max(64, Long.highestOneBit((long) Math.ceil(optimalBits) - 1) << 1);
+		if (n > (long) Integer.MAX_VALUE * 64)
+			throw new IllegalArgumentException("The filter of " + expectedFacts + " facts would be too large");
+		this.nBits = n;
+		this.bits = new long[(int) (n >>> 6)];
+		this.nHashes = Math.max(1, (int) Math.round((double) n / Math.max(1, expectedFacts) * Math.log(2)));
+	}
+
+	/** Hash of a fact, the upper and lower halves are the two base hashes */
+	private static long hash(ByteString subject, ByteString relation, ByteString object) {
+		long h = subject.hashCode();
+		h = h * 0x9E3779B97F4A7C15L + relation.hashCode();
+		h = h * 0x9E3779B97F4A7C15L + object.hashCode();
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * It adds a fact to the filter.
+	 */
+	public void add(ByteString subject, ByteString relation, ByteString object) {
+		long h = hash(subject, relation, object);
+		long h1 = h >>> 32, h2 = (h & 0xFFFFFFFFL) | 1;
+		for (int i = 0; i < nHashes; ++i) {
+			long bit = (h1 + i * h2) & (nBits - 1);
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+		++size;
+	}
+
+	/**
+	 * It returns FALSE if the fact was certainly not added, TRUE if it may have been.
+	 */
+	public boolean mightContain(ByteString subject, ByteString relation, ByteString object) {
+		long h = hash(subject, relation, object);
+		long h1 = h >>> 32, h2 = (h & 0xFFFFFFFFL) | 1;
+		for (int i = 0; i < nHashes; ++i) {
+			long bit = (h1 + i * h2) & (nBits - 1);
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/** Number of added facts */
+	public long size() {
+		return size;
+	}
+
+	/** Memory of the bits in bytes */
+	public long memory() {
+		return (long) bits.length * 8;
+	}
+
+	/**
+	 * Expected rate of false positives given the facts added so far.
+	 */
+	public double getFalsePositiveRate() {
+		return Math.pow(1 - Math.exp(-(double) nHashes * size / nBits), nHashes);
+	}
+}
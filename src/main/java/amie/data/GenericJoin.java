@@ -0,0 +1,382 @@
+package amie.data;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.PrimitiveIterator;
+
+import javatools.datatypes.ByteString;
+
+/**
+ * Class GenericJoin
+ *
+ * Evaluates conjunctive queries over the permutation indexes of an {@link IntKB} with the
+ * generic worst-case optimal join algorithm. Instead of joining one triple pattern at a
+ * time, it binds one variable at a time: the candidates of a variable are enumerated from
+ * the triple pattern that yields the fewest of them, given the variables bound so far, and
+ * every other pattern that contains the variable is probed for each candidate. Variables are
+ * ordered dynamically, so skewed intermediate results do not blow up as in the recursive
+ * nested-loop evaluation of {@link KB}.
+ *
+ * An instance holds the state of a single query evaluation and is not thread-safe.
+ */
+public class GenericJoin {
+
+	/** Marks an unbound variable */
+	private static final int UNBOUND = -1;
+
+	/**
+	 * Permutation whose first two components are the given positions, indexed by
+	 * [first][second]. The third component is the remaining position.
+	 */
+	private static final int[][] PERMUTATION_BY_PREFIX = new int[3][3];
+
+	static {
+		for (int p = 0; p < ChunkedLoader.PERMUTATIONS.length; ++p) {
+			int[] order = ChunkedLoader.PERMUTATIONS[p];
+			PERMUTATION_BY_PREFIX[order[0]][order[1]] = p;
+		}
+	}
+
+	/** Indexes of the KB, in the order of {@link KB.Permutation} */
+	private final IntTripleIndex[] indexes;
+
+	/** Triple patterns. Constants are term identifiers, variable i is encoded as -(i + 1). */
+	private final int[][] atoms;
+
+	/** Number of variables */
+	private final int nVariables;
+
+	/** Atoms that contain each variable */
+	private final int[][] atomsOf;
+
+	/** Names of the variables */
+	private final ByteString[] variables;
+
+	/** Current binding of each variable */
+	private final int[] binding;
+
+	/** FALSE if a constant of the query does not occur in the KB */
+	private final boolean satisfiable;
+
+	/**
+	 * It prepares the evaluation of a query.
+	 * @param indexes The six indexes of the KB
+	 * @param dictionary The dictionary of the KB
+	 * @param query A list of triple patterns without special relations
+	 */
+	public GenericJoin(IntTripleIndex[] indexes, TermDictionary dictionary, List<ByteString[]> query) {
+		this.indexes = indexes;
+		this.atoms = new int[query.size()][3];
+		ByteString[] names = new ByteString[query.size() * 3];
+		int n = 0;
+		boolean satisfiable = true;
+		for (int i = 0; i < query.size(); ++i) {
+			ByteString[] triple = query.get(i);
+			for (int j = 0; j < 3; ++j) {
+				if (KB.isVariable(triple[j])) {
+					int var = -1;
+					for (int k = 0; k < n; ++k)
+						if (names[k].equals(triple[j]))
+							var = k;
+					if (var == -1) {
+						var = n;
+						names[n++] = triple[j];
+					}
+					atoms[i][j] = -(var + 1);
+				} else {
+					atoms[i][j] = dictionary.get(triple[j]);
+					if (atoms[i][j] == -1)
+						satisfiable = false;
+				}
+			}
+		}
+		this.satisfiable = satisfiable;
+		this.nVariables = n;
+		this.variables = new ByteString[n];
+		System.arraycopy(names, 0, variables, 0, n);
+		this.binding = new int[n];
+		Arrays.fill(binding, UNBOUND);
+		this.atomsOf = new int[n][];
+		for (int v = 0; v < n; ++v) {
+			int count = 0;
+			for (int[] atom : atoms)
+				if (contains(atom, v))
+					++count;
+			atomsOf[v] = new int[count];
+			count = 0;
+			for (int i = 0; i < atoms.length; ++i)
+				if (contains(atoms[i], v))
+					atomsOf[v][count++] = i;
+		}
+	}
+
+	/**
+	 * It returns TRUE if the query can be evaluated by this class, i.e., it contains at
+	 * least one triple pattern and no special relations.
+	 * @param kb
+	 * @param query
+	 * @return
+	 */
+	public static boolean supports(KB kb, List<ByteString[]> query) {
+		if (query.isEmpty())
+			return false;
+		for (ByteString[] triple : query)
+			if (triple.length != 3 || kb.isSpecialAtom(triple))
+				return false;
+		return true;
+	}
+
+	/** Index of the variable with the given name or -1 */
+	public int variable(ByteString name) {
+		for (int v = 0; v < nVariables; ++v)
+			if (variables[v].equals(name))
+				return v;
+		return -1;
+	}
+
+	private static boolean contains(int[] atom, int var) {
+		return atom[0] == -(var + 1) || atom[1] == -(var + 1) || atom[2] == -(var + 1);
+	}
+
+	/** Value of a term of an atom under the current bindings, UNBOUND if it is an unbound variable */
+	private int value(int term) {
+		return term >= 0 ? term : binding[-term - 1];
+	}
+
+	/**
+	 * It returns TRUE if the atom has some fact under the current bindings.
+	 */
+	private boolean matches(int[] atom) {
+		int a = value(atom[0]);
+		int b = value(atom[1]);
+		int c = value(atom[2]);
+		int known = (a != UNBOUND ? 1 : 0) + (b != UNBOUND ? 1 : 0) + (c != UNBOUND ? 1 : 0);
+		switch (known) {
+		case 3:
+			return indexes[KB.Permutation.SRO.ordinal()].contains(a, b, c);
+		case 2:
+			int first = a != UNBOUND ? 0 : 1;
+			int second = c != UNBOUND ? 2 : 1;
+			return indexes[PERMUTATION_BY_PREFIX[first][second]].contains(value(atom[first]), value(atom[second]));
+		case 1:
+			int pos = a != UNBOUND ? 0 : b != UNBOUND ? 1 : 2;
+			return indexes[PERMUTATION_BY_PREFIX[pos][(pos + 1) % 3]].contains(value(atom[pos]));
+		default:
+			return indexes[0].size() > 0;
+		}
+	}
+
+	/**
+	 * The index and the bound prefix used to enumerate the values at position target of
+	 * the atom. Positions of the atom with the same (unbound) variable as the target are
+	 * not part of the prefix.
+	 * @return {permutation, number of bound positions, first key, second key}
+	 */
+	private int[] access(int[] atom, int target) {
+		int[] known = new int[2];
+		int nKnown = 0;
+		for (int j = 0; j < 3; ++j)
+			if (j != target && value(atom[j]) != UNBOUND)
+				known[nKnown++] = j;
+		int permutation;
+		switch (nKnown) {
+		case 2:
+			permutation = PERMUTATION_BY_PREFIX[known[0]][known[1]];
+			return new int[] { permutation, 2, value(atom[known[0]]), value(atom[known[1]]) };
+		case 1:
+			permutation = PERMUTATION_BY_PREFIX[known[0]][target];
+			return new int[] { permutation, 1, value(atom[known[0]]), 0 };
+		default:
+			permutation = PERMUTATION_BY_PREFIX[target][(target + 1) % 3];
+			return new int[] { permutation, 0, 0, 0 };
+		}
+	}
+
+	/** Number of distinct values at the position of the atom under the current bindings */
+	private int estimate(int[] access) {
+		IntTripleIndex index = indexes[access[0]];
+		switch (access[1]) {
+		case 2:
+			return index.size(access[2], access[3]);
+		case 1:
+			return index.size(access[2]);
+		default:
+			return index.size();
+		}
+	}
+
+	/** Distinct values at the position of the atom under the current bindings */
+	private PrimitiveIterator.OfInt candidates(int[] access) {
+		IntTripleIndex index = indexes[access[0]];
+		switch (access[1]) {
+		case 2:
+			return index.values(access[2], access[3]);
+		case 1:
+			return index.keys(access[2]);
+		default:
+			return index.keys();
+		}
+	}
+
+	/** Position of the first occurrence of the variable in the atom */
+	private static int position(int[] atom, int var) {
+		for (int j = 0; j < 3; ++j)
+			if (atom[j] == -(var + 1))
+				return j;
+		return -1;
+	}
+
+	/**
+	 * Binds the variable to each of its candidates in turn and calls the visitor for
+	 * those that satisfy all the atoms of the variable.
+	 * @return FALSE if the visitor stopped the enumeration
+	 */
+	private boolean enumerate(int var, Visitor visitor) {
+		// Pick the atom that yields the fewest candidates
+		int[] bestAccess = null;
+		int bestAtom = -1;
+		int bestEstimate = Integer.MAX_VALUE;
+		for (int i : atomsOf[var]) {
+			int[] access = access(atoms[i], position(atoms[i], var));
+			int estimate = estimate(access);
+			if (estimate < bestEstimate) {
+				bestEstimate = estimate;
+				bestAccess = access;
+				bestAtom = i;
+			}
+		}
+		if (bestEstimate == 0)
+			return true;
+		PrimitiveIterator.OfInt it = candidates(bestAccess);
+		try {
+			candidates:
+			while (it.hasNext()) {
+				binding[var] = it.nextInt();
+				for (int i : atomsOf[var]) {
+					// The enumerated atom only needs a check if it repeats the variable
+					if (i == bestAtom && position(atoms[i], var) == lastPosition(atoms[i], var))
+						continue;
+					if (!matches(atoms[i]))
+						continue candidates;
+				}
+				if (!visitor.visit(binding[var]))
+					return false;
+			}
+		} finally {
+			binding[var] = UNBOUND;
+		}
+		return true;
+	}
+
+	private static int lastPosition(int[] atom, int var) {
+		for (int j = 2; j >= 0; --j)
+			if (atom[j] == -(var + 1))
+				return j;
+		return -1;
+	}
+
+	/** Callback of the enumeration of bindings */
+	private interface Visitor {
+		/** @return FALSE to stop the enumeration */
+		boolean visit(int value);
+	}
+
+	/**
+	 * It returns TRUE if the remaining variables can be bound, choosing at each step the
+	 * variable with the fewest candidates.
+	 */
+	private boolean bindRemaining() {
+		int next = -1;
+		int nextEstimate = Integer.MAX_VALUE;
+		for (int v = 0; v < nVariables; ++v) {
+			if (binding[v] != UNBOUND)
+				continue;
+			for (int i : atomsOf[v]) {
+				int estimate = estimate(access(atoms[i], position(atoms[i], v)));
+				if (estimate < nextEstimate) {
+					nextEstimate = estimate;
+					next = v;
+				}
+			}
+		}
+		if (next == -1)
+			return true;
+		if (nextEstimate == 0)
+			return false;
+		final boolean[] found = new boolean[1];
+		enumerate(next, new Visitor() {
+			public boolean visit(int value) {
+				found[0] = bindRemaining();
+				return !found[0];
+			}
+		});
+		return found[0];
+	}
+
+	/** Checks the atoms without variables */
+	private boolean groundAtomsHold() {
+		if (!satisfiable)
+			return false;
+		for (int[] atom : atoms)
+			if (atom[0] >= 0 && atom[1] >= 0 && atom[2] >= 0 && !matches(atom))
+				return false;
+		return true;
+	}
+
+	/**
+	 * It returns TRUE if the query has at least one answer.
+	 * @return
+	 */
+	public boolean exists() {
+		return groundAtomsHold() && bindRemaining();
+	}
+
+	/**
+	 * It returns the distinct bindings of the variable that satisfy the query.
+	 * @param var Index of the variable (see {@link #variable(ByteString)})
+	 * @param output Receives the identifiers of the bindings
+	 */
+	public void selectDistinct(int var, final IntCollector output) {
+		if (!groundAtomsHold())
+			return;
+		enumerate(var, new Visitor() {
+			public boolean visit(int value) {
+				if (bindRemaining())
+					output.collect(value, 1);
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * It counts, for each binding of var, the distinct bindings of the second variable
+	 * that satisfy the query together with it.
+	 * @param var
+	 * @param second
+	 * @param output Receives each binding of var with its count
+	 */
+	public void countBindings(final int var, final int second, final IntCollector output) {
+		if (!groundAtomsHold())
+			return;
+		enumerate(var, new Visitor() {
+			public boolean visit(final int value) {
+				final int[] count = new int[1];
+				enumerate(second, new Visitor() {
+					public boolean visit(int value2) {
+						if (bindRemaining())
+							++count[0];
+						return true;
+					}
+				});
+				if (count[0] > 0)
+					output.collect(value, count[0]);
+				return true;
+			}
+		});
+	}
+
+	/** Receives the results of an evaluation */
+	public interface IntCollector {
+		void collect(int value, int count);
+	}
+}
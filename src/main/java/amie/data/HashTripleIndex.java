@@ -0,0 +1,377 @@
+package amie.data;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Class HashTripleIndex
+ *
+ * Mutable {@link IntTripleIndex} based on primitive open-addressing tables. Small
+ * levels (the vast majority in real KBs, where most subject-relation pairs have
+ * a single object) are kept as plain arrays and are scanned linearly.
+ *
+ * The index is not synchronized, concurrent writers must synchronize externally.
+ */
+public class HashTripleIndex extends IntTripleIndex {
+
+	/** First level of the index */
+	private final IntObjectMap<IntObjectMap<IntSet>> root = new IntObjectMap<>();
+
+	/**
+	 * It adds the triple (a, b, c) to the index.
+	 * @return TRUE if the index changed, i.e., the triple did not exist before.
+	 */
+	public boolean add(int a, int b, int c) {
+		IntObjectMap<IntSet> level2 = root.get(a);
+		if (level2 == null)
+			root.put(a, level2 = new IntObjectMap<>());
+		IntSet values = level2.get(b);
+		if (values == null)
+			level2.put(b, values = new IntSet());
+		return values.add(c);
+	}
+
+	/**
+	 * It removes the triple (a, b, c) from the index, dropping the levels that
+	 * become empty.
+	 * @return TRUE if the triple was in the index.
+	 */
+	public boolean remove(int a, int b, int c) {
+		IntObjectMap<IntSet> level2 = root.get(a);
+		if (level2 == null)
+			return false;
+		IntSet values = level2.get(b);
+		if (values == null || !values.remove(c))
+			return false;
+		if (values.size() == 0) {
+			level2.remove(b);
+			if (level2.size() == 0)
+				root.remove(a);
+		}
+		return true;
+	}
+
+	@Override
+	public int size() {
+		return root.size();
+	}
+
+	@Override
+	public int size(int a) {
+		IntObjectMap<IntSet> level2 = root.get(a);
+		return level2 == null ? 0 : level2.size();
+	}
+
+	@Override
+	public int size(int a, int b) {
+		IntObjectMap<IntSet> level2 = root.get(a);
+		if (level2 == null)
+			return 0;
+		IntSet values = level2.get(b);
+		return values == null ? 0 : values.size();
+	}
+
+	@Override
+	public boolean contains(int a, int b, int c) {
+		IntObjectMap<IntSet> level2 = root.get(a);
+		if (level2 == null)
+			return false;
+		IntSet values = level2.get(b);
+		return values != null && values.contains(c);
+	}
+
+	@Override
+	public PrimitiveIterator.OfInt keys() {
+		return root.keys();
+	}
+
+	@Override
+	public PrimitiveIterator.OfInt keys(int a) {
+		IntObjectMap<IntSet> level2 = root.get(a);
+		return level2 == null ? EMPTY : level2.keys();
+	}
+
+	@Override
+	public PrimitiveIterator.OfInt values(int a, int b) {
+		IntObjectMap<IntSet> level2 = root.get(a);
+		if (level2 == null)
+			return EMPTY;
+		IntSet values = level2.get(b);
+		return values == null ? EMPTY : values.iterator();
+	}
+
+	/** Marks a free slot in the hashed tables. Identifiers are never negative. */
+	private static final int FREE = -1;
+
+	/** Tables up to this length are scanned linearly */
+	private static final int SMALL = 8;
+
+	/** Slot of a key in a hashed table of the given length (a power of 2) */
+	private static int slot(int key, int length) {
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & (length - 1);
+	}
+
+	/**
+	 * Iterates over the used positions of a key array: the first size positions
+	 * if the array is small, the non-free slots otherwise.
+	 */
+	private static PrimitiveIterator.OfInt iterator(final int[] keys, final int size) {
+		return new PrimitiveIterator.OfInt() {
+			int pos = advance(0);
+
+			private int advance(int from) {
+				if (keys.length <= SMALL)
+					return from;
+				while (from < keys.length && keys[from] == FREE)
+					from++;
+				return from;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return keys.length <= SMALL ? pos < size : pos < keys.length;
+			}
+
+			@Override
+			public int nextInt() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				int key = keys[pos];
+				pos = advance(pos + 1);
+				return key;
+			}
+		};
+	}
+
+	/**
+	 * Set of non-negative ints. It is a plain array up to {@value #SMALL} elements
+	 * and an open-addressing table with linear probing afterwards.
+	 */
+	static final class IntSet {
+
+		int[] keys = new int[1];
+
+		int size;
+
+		int size() {
+			return size;
+		}
+
+		private int find(int key) {
+			if (keys.length <= SMALL) {
+				for (int i = 0; i < size; i++)
+					if (keys[i] == key)
+						return i;
+				return -1;
+			}
+			int i = slot(key, keys.length);
+			while (keys[i] != FREE) {
+				if (keys[i] == key)
+					return i;
+				i = (i + 1) & (keys.length - 1);
+			}
+			return -1;
+		}
+
+		boolean contains(int key) {
+			return find(key) != -1;
+		}
+
+		boolean add(int key) {
+			if (find(key) != -1)
+				return false;
+			if (keys.length <= SMALL) {
+				if (size == keys.length) {
+					if (keys.length < SMALL) {
+						keys = Arrays.copyOf(keys, Math.min(keys.length * 2, SMALL));
+					} else {
+						rehash(SMALL * 4);
+						insert(key);
+						return true;
+					}
+				}
+				keys[size++] = key;
+			} else {
+				if ((size + 1) * 4 > keys.length * 3)
+					rehash(keys.length * 2);
+				insert(key);
+			}
+			return true;
+		}
+
+		private void insert(int key) {
+			int i = slot(key, keys.length);
+			while (keys[i] != FREE)
+				i = (i + 1) & (keys.length - 1);
+			keys[i] = key;
+			size++;
+		}
+
+		private void rehash(int length) {
+			int[] old = keys;
+			int oldSize = size;
+			boolean small = old.length <= SMALL;
+			keys = new int[length];
+			Arrays.fill(keys, FREE);
+			size = 0;
+			for (int i = 0; i < old.length; i++) {
+				if (small ? i < oldSize : old[i] != FREE)
+					insert(old[i]);
+			}
+		}
+
+		boolean remove(int key) {
+			int i = find(key);
+			if (i == -1)
+				return false;
+			if (keys.length <= SMALL) {
+				keys[i] = keys[--size];
+				return true;
+			}
+			// Backward shift deletion, so that no tombstones are needed
+			int mask = keys.length - 1;
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+				if (keys[j] == FREE)
+					break;
+				int home = slot(keys[j], keys.length);
+				if ((j > i && (home <= i || home > j)) || (j < i && (home <= i && home > j))) {
+					keys[i] = keys[j];
+					i = j;
+				}
+			}
+			keys[i] = FREE;
+			size--;
+			return true;
+		}
+
+		PrimitiveIterator.OfInt iterator() {
+			return HashTripleIndex.iterator(keys, size);
+		}
+	}
+
+	/**
+	 * Map from non-negative ints to objects with the same layout as {@link IntSet}.
+	 */
+	static final class IntObjectMap<V> {
+
+		int[] keys = new int[1];
+
+		Object[] values = new Object[1];
+
+		int size;
+
+		int size() {
+			return size;
+		}
+
+		private int find(int key) {
+			if (keys.length <= SMALL) {
+				for (int i = 0; i < size; i++)
+					if (keys[i] == key)
+						return i;
+				return -1;
+			}
+			int i = slot(key, keys.length);
+			while (keys[i] != FREE) {
+				if (keys[i] == key)
+					return i;
+				i = (i + 1) & (keys.length - 1);
+			}
+			return -1;
+		}
+
+		@SuppressWarnings("unchecked")
+		V get(int key) {
+			int i = find(key);
+			return i == -1 ? null : (V) values[i];
+		}
+
+		void put(int key, V value) {
+			int i = find(key);
+			if (i != -1) {
+				values[i] = value;
+				return;
+			}
+			if (keys.length <= SMALL) {
+				if (size == keys.length) {
+					if (keys.length < SMALL) {
+						int length = Math.min(keys.length * 2, SMALL);
+						keys = Arrays.copyOf(keys, length);
+						values = Arrays.copyOf(values, length);
+					} else {
+						rehash(SMALL * 4);
+						insert(key, value);
+						return;
+					}
+				}
+				keys[size] = key;
+				values[size++] = value;
+			} else {
+				if ((size + 1) * 4 > keys.length * 3)
+					rehash(keys.length * 2);
+				insert(key, value);
+			}
+		}
+
+		private void insert(int key, Object value) {
+			int i = slot(key, keys.length);
+			while (keys[i] != FREE)
+				i = (i + 1) & (keys.length - 1);
+			keys[i] = key;
+			values[i] = value;
+			size++;
+		}
+
+		private void rehash(int length) {
+			int[] oldKeys = keys;
+			Object[] oldValues = values;
+			int oldSize = size;
+			boolean small = oldKeys.length <= SMALL;
+			keys = new int[length];
+			values = new Object[length];
+			Arrays.fill(keys, FREE);
+			size = 0;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (small ? i < oldSize : oldKeys[i] != FREE)
+					insert(oldKeys[i], oldValues[i]);
+			}
+		}
+
+		void remove(int key) {
+			int i = find(key);
+			if (i == -1)
+				return;
+			if (keys.length <= SMALL) {
+				--size;
+				keys[i] = keys[size];
+				values[i] = values[size];
+				values[size] = null;
+				return;
+			}
+			int mask = keys.length - 1;
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+				if (keys[j] == FREE)
+					break;
+				int home = slot(keys[j], keys.length);
+				if ((j > i && (home <= i || home > j)) || (j < i && (home <= i && home > j))) {
+					keys[i] = keys[j];
+					values[i] = values[j];
+					i = j;
+				}
+			}
+			keys[i] = FREE;
+			values[i] = null;
+			size--;
+		}
+
+		PrimitiveIterator.OfInt keys() {
+			return HashTripleIndex.iterator(keys, size);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package amie.data;
+
+/**
+ * Class HyperLogLog
+ *
+ * Sketch of a set of ints (e.g., term identifiers of a {@link TermDictionary}) that
+ * estimates its number of distinct values with 2^precision registers of one byte. The
+ * relative standard error of the estimate is about 1.04 / sqrt(2^precision). Sketches of
+ * the same precision are mergeable: the sketch of a union is the register-wise maximum
+ * of the sketches of its parts.
+ *
+ * The class is not synchronized. Sketches that are not modified anymore can be read by
+ * any number of threads.
+ */
+public class HyperLogLog {
+
+	/** Smallest supported precision */
+	public static final int MIN_PRECISION = 4;
+
+	/** Largest supported precision */
+	public static final int MAX_PRECISION = 18;
+
+	/** Precision used when none is given: 4096 registers, 1.6% standard error */
+	public static final int DEFAULT_PRECISION = 12;
+
+	private final int precision;
+
+	private final byte[] registers;
+
+	/**
+	 * @param precision Logarithm of the number of registers
+	 */
+	public HyperLogLog(int precision) {
+		if (precision < MIN_PRECISION || precision > MAX_PRECISION)
+			throw new IllegalArgumentException("The precision of a sketch must be in ["
+					+ MIN_PRECISION + ", " + MAX_PRECISION + "]: " + precision);
+		this.precision = precision;
+		this.registers = new byte[1 << precision];
+	}
+
+	public int getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * Relative standard error of the estimates of sketches of the given precision.
+	 */
+	public static double relativeError(int precision) {
+		return 1.04 / Math.sqrt(1 << precision);
+	}
+
+	/** Memory of the registers in bytes */
+	public int memory() {
+		return registers.length;
+	}
+
+	/**
+	 * It adds a value to the set.
+	 * @param value
+	 */
+	public void add(int value) {
+		long hash = mix(value);
+		int register = (int) (hash >>> (64 - precision));
+		// Rank of the first 1-bit of the remaining bits. The sentinel bit bounds it.
+		int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+		if (rank > registers[register])
+			registers[register] = (byte) rank;
+	}
+
+	/** Finalizer of MurmurHash3, which spreads consecutive identifiers over all the bits */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * It adds the values of another sketch to this one.
+	 * @param other A sketch of the same precision
+	 * @return This sketch
+	 */
+	public HyperLogLog merge(HyperLogLog other) {
+		if (other.precision != precision)
+			throw new IllegalArgumentException("Sketches of different precisions cannot be merged: "
+					+ precision + " and " + other.precision);
+		for (int i = 0; i < registers.length; ++i)
+			if (other.registers[i] > registers[i])
+				registers[i] = other.registers[i];
+		return this;
+	}
+
+	/**
+	 * It returns a new sketch of the union of the given sketches, which must have the same precision.
+	 * @param sketches
+	 * @return
+	 */
+	public static HyperLogLog union(HyperLogLog... sketches) {
+		HyperLogLog result = new HyperLogLog(sketches[0].precision);
+		for (HyperLogLog sketch : sketches)
+			result.merge(sketch);
+		return result;
+	}
+
+	/**
+	 * It returns the estimated number of distinct values of the set. Small sets are
+	 * estimated by linear counting of the empty registers.
+	 * @return
+	 */
+	public double cardinality() {
+		int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (byte register : registers) {
+			sum += 1.0 / (1L << register);
+			if (register == 0)
+				++zeros;
+		}
+		double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+		double estimate = alpha * m * m / sum;
+		if (estimate <= 2.5 * m && zeros > 0)
+			return m * Math.log((double) m / zeros);
+		return estimate;
+	}
+}
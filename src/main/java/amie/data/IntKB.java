@@ -0,0 +1,714 @@
+package amie.data;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+
+import javatools.datatypes.ByteString;
+import javatools.datatypes.IntHashMap;
+import javatools.datatypes.PeekIterator;
+
+/**
+ * Class IntKB
+ *
+ * In-memory KB that stores its facts dictionary-encoded: every term is mapped to a
+ * dense integer identifier and the six permutation indexes hold only primitive ints
+ * (see {@link HashTripleIndex}). This avoids the per-entry object overhead of the
+ * nested identity maps used by {@link KB}, which dominates the memory footprint on
+ * large KBs.
+ *
+ * The index fields inherited from KB are read-only views that decode the identifiers
+ * on access, so that all the query methods of KB work unchanged on this class. The
+ * triple patterns with two variables and the projection queries read the indexes directly.
+ */
+public class IntKB extends KB {
+
+	/** Positions of the permutations in the index array, in the order of the KB indexes */
+	protected static final int SRO = 0;
+
+	protected static final int ROS = 1;
+
+	protected static final int OSR = 2;
+
+	protected static final int RSO = 3;
+
+	protected static final int ORS = 4;
+
+	protected static final int SOR = 5;
+
+	/**
+	 * Permutation whose index maps the constant of a triple pattern with two variables
+	 * to the values of the variables at [pos1][pos2], in this order
+	 */
+	private static final int[][] TWO_VARIABLES = { { -1, OSR, RSO }, { ORS, -1, SRO }, { ROS, SOR, -1 } };
+
+	/** Dictionary of terms **/
+	protected final TermDictionary dictionary;
+
+	/** Integer indexes, in the order given by the constants SRO, ROS, etc. **/
+	protected final IntTripleIndex[] indexes;
+
+	/** Views of the indexes, in the order given by the constants SRO, ROS, etc. **/
+	private final IndexView[] views;
+
+	/** If true, queries with several triple patterns are evaluated by {@link GenericJoin} **/
+	protected boolean genericJoin;
+
+	public IntKB() {
+		this(new TermDictionary());
+	}
+
+	/**
+	 * Builds an empty KB that encodes its terms with the given dictionary.
+	 * @param dictionary
+	 */
+	public IntKB(TermDictionary dictionary) {
+		this(dictionary, new IntTripleIndex[] { new HashTripleIndex(), new HashTripleIndex(),
+				new HashTripleIndex(), new HashTripleIndex(), new HashTripleIndex(), new HashTripleIndex() });
+	}
+
+	protected IntKB(TermDictionary dictionary, IntTripleIndex[] indexes) {
+		this(dictionary, indexes, new IndexView[] { new IndexView(indexes, SRO, dictionary),
+				new IndexView(indexes, ROS, dictionary), new IndexView(indexes, OSR, dictionary),
+				new IndexView(indexes, RSO, dictionary), new IndexView(indexes, ORS, dictionary),
+				new IndexView(indexes, SOR, dictionary) });
+	}
+
+	private IntKB(TermDictionary dictionary, IntTripleIndex[] indexes, IndexView[] views) {
+		super(views[SRO], views[ROS], views[OSR], views[RSO], views[ORS], views[SOR]);
+		this.dictionary = dictionary;
+		this.indexes = indexes;
+		this.views = views;
+	}
+
+	/**
+	 * Returns the dictionary used to encode the terms of the KB.
+	 * @return
+	 */
+	public TermDictionary getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * Returns the integer index for the given permutation (SRO, ROS, etc.).
+	 * @param permutation
+	 * @return
+	 */
+	public IntTripleIndex getIndex(int permutation) {
+		return indexes[permutation];
+	}
+
+	/**
+	 * Compacts the indexes into sorted compressed-sparse-row arrays (see {@link CsrTripleIndex}).
+	 * Afterwards the KB is read-only and can be queried by several threads without locks.
+	 */
+	@Override
+	public void freeze() {
+		synchronized (indexes) {
+			if (frozen)
+				return;
+			super.freeze();
+			for (int i = 0; i < indexes.length; ++i)
+				indexes[i] = CsrTripleIndex.of(indexes[i]);
+		}
+	}
+
+	/**
+	 * It writes a binary image of the KB. The KB is frozen.
+	 */
+	@Override
+	public void save(Path path, String description) throws IOException {
+		KBImage.write(this, path, description);
+	}
+
+	/**
+	 * Rebuilds the number of facts and the per-term counters from the indexes,
+	 * e.g., after the indexes have been read from a {@link KBImage}.
+	 */
+	protected void recount() {
+		size = 0;
+		subjectSize.clear();
+		relationSize.clear();
+		objectSize.clear();
+		size = count(indexes[SRO], subjectSize);
+		count(indexes[RSO], relationSize);
+		count(indexes[OSR], objectSize);
+		for (ByteString relation : relationSize) {
+			relationChanged(relation);
+			if (!subject2subjectOverlap.containsKey(relation)) {
+				subject2subjectOverlap.put(relation, new IntHashMap<ByteString>());
+				subject2objectOverlap.put(relation, new IntHashMap<ByteString>());
+				object2objectOverlap.put(relation, new IntHashMap<ByteString>());
+			}
+		}
+	}
+
+	/**
+	 * Stores the number of facts of each first-level key of the index into the counter.
+	 * @return The total number of facts.
+	 */
+	private long count(IntTripleIndex index, IntHashMap<ByteString> counter) {
+		long total = 0;
+		PrimitiveIterator.OfInt keys = index.keys();
+		while (keys.hasNext()) {
+			int a = keys.nextInt();
+			int n = 0;
+			PrimitiveIterator.OfInt keys2 = index.keys(a);
+			while (keys2.hasNext())
+				n += index.size(a, keys2.nextInt());
+			counter.put(dictionary.get(a), n);
+			total += n;
+		}
+		return total;
+	}
+
+	@Override
+	protected boolean add(ByteString subject, ByteString relation, ByteString object) {
+		checkNotFrozen();
+		int s = dictionary.getOrAdd(subject);
+		int r = dictionary.getOrAdd(relation);
+		int o = dictionary.getOrAdd(object);
+		// Each permutation has its own lock, so concurrent writers proceed in a pipeline
+		if (!add(SRO, s, r, o))
+			return false;
+		add(ROS, r, o, s);
+		add(OSR, o, s, r);
+		add(RSO, r, s, o);
+		add(ORS, o, r, s);
+		add(SOR, s, o, r);
+		countFact(subject, relation, object);
+		return true;
+	}
+
+	/** Adds the triple to the index of the given permutation, holding the lock of the index */
+	private boolean add(int permutation, int a, int b, int c) {
+		HashTripleIndex index = mutableIndex(permutation);
+		synchronized (index) {
+			return index.add(a, b, c);
+		}
+	}
+
+	/** Removes the triple from the index of the given permutation, holding the lock of the index */
+	private boolean remove(int permutation, int a, int b, int c) {
+		HashTripleIndex index = mutableIndex(permutation);
+		synchronized (index) {
+			return index.remove(a, b, c);
+		}
+	}
+
+	/**
+	 * Adds a set of encoded facts building each permutation index in its own thread. The
+	 * facts must have been encoded with the dictionary of this KB.
+	 */
+	@Override
+	protected void addEncoded(TermDictionary dictionary, final List<ChunkedLoader.Batch> batches) {
+		if (dictionary != this.dictionary)
+			throw new IllegalArgumentException("The facts were not encoded with the dictionary of the KB");
+		checkNotFrozen();
+		synchronized (indexes) {
+			Thread[] threads = new Thread[indexes.length];
+			for (int p = 0; p < indexes.length; ++p) {
+				final int[] permutation = ChunkedLoader.PERMUTATIONS[p];
+				final HashTripleIndex index = mutableIndex(p);
+				threads[p] = new Thread() {
+					public void run() {
+						for (ChunkedLoader.Batch batch : batches) {
+							for (int i = 0; i < batch.size(); ++i) {
+								index.add(batch.get(i, permutation[0]), batch.get(i, permutation[1]),
+										batch.get(i, permutation[2]));
+							}
+						}
+					}
+				};
+				threads[p].start();
+			}
+			ChunkedLoader.join(threads);
+			recount();
+		}
+	}
+
+	@Override
+	public boolean delete(ByteString subject, ByteString predicate, ByteString object) {
+		checkNotFrozen();
+		int s = dictionary.get(subject);
+		int r = dictionary.get(predicate);
+		int o = dictionary.get(object);
+		if (s == -1 || r == -1 || o == -1 || !remove(SRO, s, r, o))
+			return false;
+		remove(ROS, r, o, s);
+		remove(OSR, o, s, r);
+		remove(RSO, r, s, o);
+		remove(ORS, o, r, s);
+		remove(SOR, s, o, r);
+		uncountFact(subject, predicate, object);
+		return true;
+	}
+
+	/**
+	 * Selects the engine for queries with several triple patterns: the generic
+	 * worst-case optimal join ({@link GenericJoin}) or the recursive nested-loop
+	 * evaluation of {@link KB}. Queries with special relations always use the latter.
+	 * @param on
+	 */
+	public void setGenericJoin(boolean on) {
+		genericJoin = on;
+	}
+
+	/**
+	 * Returns true if queries are evaluated by {@link GenericJoin}.
+	 * @return
+	 */
+	public boolean isGenericJoin() {
+		return genericJoin;
+	}
+
+	/** Returns an evaluator for the query if it has to go through the generic join, null otherwise */
+	private GenericJoin join(List<ByteString[]> query) {
+		if (!genericJoin || query.size() < 2 || !GenericJoin.supports(this, query))
+			return null;
+		return new GenericJoin(indexes, dictionary, query);
+	}
+
+	@Override
+	public boolean existsBS(List<ByteString[]> triples) {
+		GenericJoin join = join(triples);
+		if (join == null)
+			return super.existsBS(triples);
+		return join.exists();
+	}
+
+	@Override
+	public Set<ByteString> selectDistinct(ByteString variable, List<ByteString[]> query) {
+		QueryCache cache = cacheFor(query);
+		if (cache != null)
+			return cache.selectDistinct(this, variable, query);
+		GenericJoin join = join(query);
+		int var = join == null ? -1 : join.variable(variable);
+		if (var == -1)
+			return super.selectDistinct(variable, query);
+		final IntHashMap<ByteString> result = new IntHashMap<>();
+		join.selectDistinct(var, new GenericJoin.IntCollector() {
+			public void collect(int value, int count) {
+				result.add(dictionary.get(value));
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public IntHashMap<ByteString> frequentBindingsOf(ByteString variable,
+			ByteString projectionVariable, List<ByteString[]> query) {
+		GenericJoin join = join(query);
+		int var = join == null ? -1 : join.variable(variable);
+		int projection = join == null ? -1 : join.variable(projectionVariable);
+		if (var == -1 || projection == -1 || var == projection)
+			return super.frequentBindingsOf(variable, projectionVariable, query);
+		final IntHashMap<ByteString> result = new IntHashMap<>();
+		join.countBindings(var, projection, new GenericJoin.IntCollector() {
+			public void collect(int value, int count) {
+				result.add(dictionary.get(value), count);
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public long countDistinctPairs(ByteString var1, ByteString var2, List<ByteString[]> query) {
+		GenericJoin join = join(query);
+		int first = join == null ? -1 : join.variable(var1);
+		int second = join == null ? -1 : join.variable(var2);
+		if (first == -1 || second == -1 || first == second)
+			return super.countDistinctPairs(var1, var2, query);
+		final long[] result = new long[1];
+		join.countBindings(first, second, new GenericJoin.IntCollector() {
+			public void collect(int value, int count) {
+				result[0] += count;
+			}
+		});
+		return result[0];
+	}
+
+	@Override
+	protected boolean contains(ByteString... fact) {
+		if (isSpecialAtom(fact))
+			return super.contains(fact);
+		FactFilter filter = factFilter;
+		if (filter != null && !filter.mightContain(fact[0], fact[1], fact[2]))
+			return false;
+		int s = dictionary.get(fact[0]);
+		int r = dictionary.get(fact[1]);
+		int o = dictionary.get(fact[2]);
+		return s != -1 && r != -1 && o != -1 && indexes[SRO].contains(s, r, o);
+	}
+
+	/**
+	 * Returns the view of the index under the constant of the triple pattern, which
+	 * reads the index directly, instead of going through the maps of KB.
+	 */
+	@Override
+	public Map<ByteString, IntHashMap<ByteString>> resultsTwoVariables(int pos1, int pos2, ByteString[] triple) {
+		if (isSpecialAtom(triple) || pos1 < 0 || pos1 > 2 || pos2 < 0 || pos2 > 2 || pos1 == pos2)
+			return super.resultsTwoVariables(pos1, pos2, triple);
+		int permutation = TWO_VARIABLES[pos1][pos2];
+		int a = dictionary.get(triple[3 - pos1 - pos2]);
+		if (a == -1 || !indexes[permutation].contains(a))
+			return Collections.emptyMap();
+		return views[permutation].row(a);
+	}
+
+	/**
+	 * Iterates the identifiers of the instances of a projection triple with two variables
+	 * in the index and decodes only the values that are checked against the other triples.
+	 */
+	@Override
+	protected IntHashMap<ByteString> countProjectionBindings(int pos, ByteString[] projectionTriple,
+			List<ByteString[]> otherTriples) {
+		if (isSpecialAtom(projectionTriple) || !isVariable(projectionTriple[pos])
+				|| numVariables(projectionTriple) != 2)
+			return super.countProjectionBindings(pos, projectionTriple, otherTriples);
+		int firstVar = firstVariablePos(projectionTriple);
+		int secondVar = secondVariablePos(projectionTriple);
+		IntTripleIndex index = indexes[TWO_VARIABLES[firstVar][secondVar]];
+		IntHashMap<ByteString> result = new IntHashMap<>();
+		int a = dictionary.get(projectionTriple[3 - firstVar - secondVar]);
+		if (a == -1)
+			return result;
+		try (Instantiator insty1 = new Instantiator(otherTriples, projectionTriple[firstVar]);
+				Instantiator insty2 = new Instantiator(otherTriples, projectionTriple[secondVar])) {
+			PrimitiveIterator.OfInt keys = index.keys(a);
+			while (keys.hasNext()) {
+				int b = keys.nextInt();
+				ByteString val1 = dictionary.get(b);
+				insty1.instantiate(val1);
+				PrimitiveIterator.OfInt values = index.values(a, b);
+				while (values.hasNext()) {
+					ByteString val2 = dictionary.get(values.nextInt());
+					if (existsBS(insty2.instantiate(val2)))
+						result.increase(firstVar == pos ? val1 : val2);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the index of the given permutation for writing.
+	 */
+	private HashTripleIndex mutableIndex(int permutation) {
+		return (HashTripleIndex) indexes[permutation];
+	}
+
+	/**
+	 * Adapts a sequence of identifiers into an iterator of terms.
+	 */
+	private static Iterator<ByteString> terms(final PrimitiveIterator.OfInt ids, final TermDictionary dictionary) {
+		return new Iterator<ByteString>() {
+			@Override
+			public boolean hasNext() {
+				return ids.hasNext();
+			}
+
+			@Override
+			public ByteString next() {
+				return dictionary.get(ids.nextInt());
+			}
+		};
+	}
+
+	/**
+	 * Read-only view of an integer index as the 3-level map of terms
+	 * used by the KB. The index is looked up in the array on every access, so the
+	 * view remains valid if the index is replaced.
+	 */
+	protected static class IndexView extends AbstractMap<ByteString, Map<ByteString, IntHashMap<ByteString>>> {
+
+		private final IntTripleIndex[] indexes;
+
+		private final int permutation;
+
+		private final TermDictionary dictionary;
+
+		public IndexView(IntTripleIndex[] indexes, int permutation, TermDictionary dictionary) {
+			this.indexes = indexes;
+			this.permutation = permutation;
+			this.dictionary = dictionary;
+		}
+
+		private int id(Object key) {
+			return key instanceof ByteString ? dictionary.get((ByteString) key) : -1;
+		}
+
+		@Override
+		public Map<ByteString, IntHashMap<ByteString>> get(Object key) {
+			int a = id(key);
+			if (a == -1 || !indexes[permutation].contains(a))
+				return null;
+			return new SecondLevelView(a);
+		}
+
+		/**
+		 * Returns the view of the second and third levels under a first-level identifier.
+		 */
+		Map<ByteString, IntHashMap<ByteString>> row(int a) {
+			return new SecondLevelView(a);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			int a = id(key);
+			return a != -1 && indexes[permutation].contains(a);
+		}
+
+		@Override
+		public int size() {
+			return indexes[permutation].size();
+		}
+
+		@Override
+		public Set<ByteString> keySet() {
+			return new AbstractSet<ByteString>() {
+				@Override
+				public Iterator<ByteString> iterator() {
+					return terms(indexes[permutation].keys(), dictionary);
+				}
+
+				@Override
+				public boolean contains(Object o) {
+					return containsKey(o);
+				}
+
+				@Override
+				public int size() {
+					return IndexView.this.size();
+				}
+			};
+		}
+
+		@Override
+		public Set<Map.Entry<ByteString, Map<ByteString, IntHashMap<ByteString>>>> entrySet() {
+			return new AbstractSet<Map.Entry<ByteString, Map<ByteString, IntHashMap<ByteString>>>>() {
+				@Override
+				public Iterator<Map.Entry<ByteString, Map<ByteString, IntHashMap<ByteString>>>> iterator() {
+					final PrimitiveIterator.OfInt keys = indexes[permutation].keys();
+					return new Iterator<Map.Entry<ByteString, Map<ByteString, IntHashMap<ByteString>>>>() {
+						@Override
+						public boolean hasNext() {
+							return keys.hasNext();
+						}
+
+						@Override
+						public Map.Entry<ByteString, Map<ByteString, IntHashMap<ByteString>>> next() {
+							int a = keys.nextInt();
+							return new SimpleImmutableEntry<ByteString, Map<ByteString, IntHashMap<ByteString>>>(
+									dictionary.get(a), new SecondLevelView(a));
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return IndexView.this.size();
+				}
+			};
+		}
+
+		/**
+		 * View of the second and third levels of the index under a first-level key.
+		 */
+		private class SecondLevelView extends AbstractMap<ByteString, IntHashMap<ByteString>> {
+
+			private final int a;
+
+			SecondLevelView(int a) {
+				this.a = a;
+			}
+
+			@Override
+			public IntHashMap<ByteString> get(Object key) {
+				int b = id(key);
+				if (b == -1 || !indexes[permutation].contains(a, b))
+					return null;
+				return new ValuesView(a, b);
+			}
+
+			@Override
+			public boolean containsKey(Object key) {
+				int b = id(key);
+				return b != -1 && indexes[permutation].contains(a, b);
+			}
+
+			@Override
+			public int size() {
+				return indexes[permutation].size(a);
+			}
+
+			@Override
+			public Set<ByteString> keySet() {
+				return new AbstractSet<ByteString>() {
+					@Override
+					public Iterator<ByteString> iterator() {
+						return terms(indexes[permutation].keys(a), dictionary);
+					}
+
+					@Override
+					public boolean contains(Object o) {
+						return containsKey(o);
+					}
+
+					@Override
+					public int size() {
+						return SecondLevelView.this.size();
+					}
+				};
+			}
+
+			@Override
+			public Set<Map.Entry<ByteString, IntHashMap<ByteString>>> entrySet() {
+				return new AbstractSet<Map.Entry<ByteString, IntHashMap<ByteString>>>() {
+					@Override
+					public Iterator<Map.Entry<ByteString, IntHashMap<ByteString>>> iterator() {
+						final PrimitiveIterator.OfInt keys = indexes[permutation].keys(a);
+						return new Iterator<Map.Entry<ByteString, IntHashMap<ByteString>>>() {
+							@Override
+							public boolean hasNext() {
+								return keys.hasNext();
+							}
+
+							@Override
+							public Map.Entry<ByteString, IntHashMap<ByteString>> next() {
+								int b = keys.nextInt();
+								return new SimpleImmutableEntry<ByteString, IntHashMap<ByteString>>(
+										dictionary.get(b), new ValuesView(a, b));
+							}
+						};
+					}
+
+					@Override
+					public int size() {
+						return SecondLevelView.this.size();
+					}
+				};
+			}
+		}
+
+		/**
+		 * Read-only view of the third level of the index under two keys, as a set of
+		 * terms with value 1. Lookups probe the index with the identifier of the term,
+		 * so nothing is copied.
+		 */
+		private class ValuesView extends IntHashMap<ByteString> {
+
+			private final int a;
+
+			private final int b;
+
+			ValuesView(int a, int b) {
+				super(false);
+				this.a = a;
+				this.b = b;
+			}
+
+			@Override
+			public int get(Object key, int defaultValue) {
+				int c = id(key);
+				return c != -1 && indexes[permutation].contains(a, b, c) ? 1 : defaultValue;
+			}
+
+			@Override
+			public boolean containsKey(Object key) {
+				int c = id(key);
+				return c != -1 && indexes[permutation].contains(a, b, c);
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return containsKey(o);
+			}
+
+			@Override
+			public int size() {
+				return indexes[permutation].size(a, b);
+			}
+
+			@Override
+			public PeekIterator<ByteString> keys() {
+				final PrimitiveIterator.OfInt ids = indexes[permutation].values(a, b);
+				return new PeekIterator<ByteString>() {
+					@Override
+					protected ByteString internalNext() {
+						return ids.hasNext() ? dictionary.get(ids.nextInt()) : null;
+					}
+				};
+			}
+
+			@Override
+			public Iterator<ByteString> iterator() {
+				return terms(indexes[permutation].values(a, b), dictionary);
+			}
+
+			@Override
+			public boolean equals(Object o) {
+				if (!(o instanceof IntHashMap<?>))
+					return false;
+				IntHashMap<?> other = (IntHashMap<?>) o;
+				if (other.size() != size())
+					return false;
+				for (ByteString key : this) {
+					if (other.get(key) != 1)
+						return false;
+				}
+				return true;
+			}
+
+			@Override
+			public int hashCode() {
+				int hash = 0;
+				for (ByteString key : this)
+					hash += key.hashCode();
+				return hash;
+			}
+
+			@Override
+			public int findMax() {
+				return isEmpty() ? Integer.MIN_VALUE : 1;
+			}
+
+			@Override
+			public long computeSum() {
+				return size();
+			}
+
+			@Override
+			public boolean add(ByteString key, int delta) {
+				throw new UnsupportedOperationException("The index views of an IntKB are read-only");
+			}
+
+			@Override
+			public boolean put(ByteString key, int value) {
+				throw new UnsupportedOperationException("The index views of an IntKB are read-only");
+			}
+
+			@Override
+			public boolean decrease(Object key) {
+				throw new UnsupportedOperationException("The index views of an IntKB are read-only");
+			}
+
+			@Override
+			public boolean remove(Object key) {
+				throw new UnsupportedOperationException("The index views of an IntKB are read-only");
+			}
+
+			@Override
+			public void clear() {
+				throw new UnsupportedOperationException("The index views of an IntKB are read-only");
+			}
+		}
+	}
+}
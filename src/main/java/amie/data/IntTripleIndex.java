@@ -0,0 +1,96 @@
+package amie.data;
+
+import java.util.PrimitiveIterator;
+
+/**
+ * Class IntTripleIndex
+ *
+ * A 3-level index over dictionary-encoded triples, e.g., subject -> relation -> objects.
+ * It is the integer counterpart of the nested maps used by the KB, where the three
+ * components of a triple are the identifiers assigned by a {@link TermDictionary}.
+ */
+public abstract class IntTripleIndex {
+
+	/**
+	 * Number of distinct keys in the first level of the index.
+	 * @return
+	 */
+	public abstract int size();
+
+	/**
+	 * Number of distinct second-level keys under the given first-level key.
+	 * @param a
+	 * @return
+	 */
+	public abstract int size(int a);
+
+	/**
+	 * Number of values under the given first and second-level keys.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public abstract int size(int a, int b);
+
+	/**
+	 * It returns TRUE if the index contains the triple (a, b, c)
+	 * @param a
+	 * @param b
+	 * @param c
+	 * @return
+	 */
+	public abstract boolean contains(int a, int b, int c);
+
+	/**
+	 * It returns TRUE if the first-level key exists in the index.
+	 * @param a
+	 * @return
+	 */
+	public boolean contains(int a) {
+		return size(a) > 0;
+	}
+
+	/**
+	 * It returns TRUE if the pair of keys exists in the index.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public boolean contains(int a, int b) {
+		return size(a, b) > 0;
+	}
+
+	/**
+	 * Iterates over the first-level keys of the index.
+	 * @return
+	 */
+	public abstract PrimitiveIterator.OfInt keys();
+
+	/**
+	 * Iterates over the second-level keys under the given first-level key.
+	 * @param a
+	 * @return
+	 */
+	public abstract PrimitiveIterator.OfInt keys(int a);
+
+	/**
+	 * Iterates over the values under the given first and second-level keys.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public abstract PrimitiveIterator.OfInt values(int a, int b);
+
+	/** Iterator over no values **/
+	protected static final PrimitiveIterator.OfInt EMPTY = new PrimitiveIterator.OfInt() {
+		@Override
+		public boolean hasNext() {
+			return false;
+		}
+
+		@Override
+		public int nextInt() {
+			throw new java.util.NoSuchElementException();
+		}
+	};
+}
@@ -7,18 +7,26 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.Path;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PrimitiveIterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.IntConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -53,31 +61,31 @@ public class KB {
 	// ---------------------------------------------------------------------------
 
 	/** Index */
-	public final Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> subject2relation2object = new IdentityHashMap<ByteString, Map<ByteString, IntHashMap<ByteString>>>();
+	public final Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> subject2relation2object;
 
 	/** Index */
-	protected final Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> relation2object2subject = new IdentityHashMap<ByteString, Map<ByteString, IntHashMap<ByteString>>>();
+	protected final Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> relation2object2subject;
 
 	/** Index */
-	public final Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> object2subject2relation = new IdentityHashMap<ByteString, Map<ByteString, IntHashMap<ByteString>>>();
+	public final Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> object2subject2relation;
 
 	/** Index */
-	protected final Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> relation2subject2object = new IdentityHashMap<ByteString, Map<ByteString, IntHashMap<ByteString>>>();
+	protected final Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> relation2subject2object;
 
 	/** Index */
-	public final Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> object2relation2subject = new IdentityHashMap<ByteString, Map<ByteString, IntHashMap<ByteString>>>();
+	public final Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> object2relation2subject;
 
 	/** Index */
-	protected final Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> subject2object2relation = new IdentityHashMap<ByteString, Map<ByteString, IntHashMap<ByteString>>>();
+	protected final Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> subject2object2relation;
 
 	/** Number of facts per subject */
-	protected final IntHashMap<ByteString> subjectSize = new IntHashMap<ByteString>();
+	protected final IntHashMap<ByteString> subjectSize = new StripedIntHashMap<ByteString>();
 
 	/** Number of facts per object */
-	protected final IntHashMap<ByteString> objectSize = new IntHashMap<ByteString>();
+	protected final IntHashMap<ByteString> objectSize = new StripedIntHashMap<ByteString>();
 
 	/** Number of facts per relation */
-	protected final IntHashMap<ByteString> relationSize = new IntHashMap<ByteString>();
+	protected final IntHashMap<ByteString> relationSize = new StripedIntHashMap<ByteString>();
 
 	// ---------------------------------------------------------------------------
 	// Statistics
@@ -86,20 +94,68 @@ public class KB {
 	/**
 	 * Subject-subject overlaps
 	 */
-	protected final Map<ByteString, IntHashMap<ByteString>> subject2subjectOverlap = new IdentityHashMap<ByteString, IntHashMap<ByteString>>();
+	protected final Map<ByteString, IntHashMap<ByteString>> subject2subjectOverlap = new ConcurrentIndexMap<IntHashMap<ByteString>>();
 
 	/**
 	 * Subject-object overlaps
 	 */
-	protected final Map<ByteString, IntHashMap<ByteString>> subject2objectOverlap = new IdentityHashMap<ByteString, IntHashMap<ByteString>>();
+	protected final Map<ByteString, IntHashMap<ByteString>> subject2objectOverlap = new ConcurrentIndexMap<IntHashMap<ByteString>>();
 
 	/**
 	 * Object-object overlaps
 	 */
-	protected final Map<ByteString, IntHashMap<ByteString>> object2objectOverlap = new IdentityHashMap<ByteString, IntHashMap<ByteString>>();
+	protected final Map<ByteString, IntHashMap<ByteString>> object2objectOverlap = new ConcurrentIndexMap<IntHashMap<ByteString>>();
 
 	/** Number of facts */
-	protected long size;
+	protected volatile long size;
+
+	/** Atomic updates of the number of facts */
+	private static final AtomicLongFieldUpdater<KB> sizeUpdater = AtomicLongFieldUpdater.newUpdater(KB.class, "size");
+
+	/** If true, the KB does not accept further changes */
+	protected boolean frozen;
+
+	/** Identifiers of the terms, assigned on demand (see {@link #getDictionary()}) */
+	private volatile TermDictionary termIds;
+
+	/** Subjects of each relation as a bitmap of term identifiers, kept to update the overlap tables */
+	protected final Map<ByteString, CompressedBitmap> relation2subjectBitmap = new ConcurrentIndexMap<CompressedBitmap>();
+
+	/** Objects of each relation as a bitmap of term identifiers, kept to update the overlap tables */
+	protected final Map<ByteString, CompressedBitmap> relation2objectBitmap = new ConcurrentIndexMap<CompressedBitmap>();
+
+	/**
+	 * If true, single-variable star queries are answered with bitmaps (see {@link #selectDistinctBitmap(ByteString, List)}).
+	 * Off by default, since the bitmaps of the relations stay in memory.
+	 */
+	protected boolean bitmapQueries = false;
+
+	/** Number of threads that parse a single file (see {@link ChunkedLoader}), 1 to parse it sequentially */
+	protected int loadThreads = 1;
+
+	/** Relations with facts added or deleted since the overlap tables were built */
+	protected final Set<ByteString> changedRelations = ConcurrentHashMap.newKeySet();
+
+	/** TRUE once the overlap tables have been built */
+	protected volatile boolean overlapTablesBuilt;
+
+	/** If not null, it chooses the order of the joins (see {@link #mostRestrictiveTriple(List)}) */
+	protected volatile QueryPlanner planner;
+
+	/** If not null, it caches the results of the queries issued to the KB */
+	protected volatile QueryCache queryCache;
+
+	/** Precision of the sketches of {@link #countDistinctApproximate(ByteString, List)}, 0 if they are off */
+	protected volatile int sketchPrecision;
+
+	/** Sketches of the bindings of the triple patterns of each relation */
+	protected final Map<ByteString, RelationSketches> relation2sketches = new ConcurrentHashMap<ByteString, RelationSketches>();
+
+	/** False positive rate of the fact filter, 0 if the KB has none (see {@link #setFactFilter(double)}) */
+	protected volatile double factFilterRate;
+
+	/** If not null, it rules out most of the absent facts without looking at the indexes */
+	protected volatile FactFilter factFilter;
 
 
 	
@@ -159,6 +215,12 @@ public class KB {
 	
 	public enum Column { Subject, Relation, Object }
 
+	/**
+	 * The six permutation indexes, named after the order in which they store the
+	 * components of the facts, e.g., SRO is subject2relation2object.
+	 */
+	public enum Permutation { SRO, ROS, OSR, RSO, ORS, SOR }
+
 	public static final String hasNumberOfValuesEquals = "hasNumberOfValuesEquals";
 	
 	public static final String hasNumberOfValuesEqualsInv = "hasNumberOfValuesEqualsInv";
@@ -193,31 +255,252 @@ public class KB {
 	// ---------------------------------------------------------------------------
 
 	public KB() {
+		this(new ConcurrentIndexMap<Map<ByteString, IntHashMap<ByteString>>>(),
+				new ConcurrentIndexMap<Map<ByteString, IntHashMap<ByteString>>>(),
+				new ConcurrentIndexMap<Map<ByteString, IntHashMap<ByteString>>>(),
+				new ConcurrentIndexMap<Map<ByteString, IntHashMap<ByteString>>>(),
+				new ConcurrentIndexMap<Map<ByteString, IntHashMap<ByteString>>>(),
+				new ConcurrentIndexMap<Map<ByteString, IntHashMap<ByteString>>>());
 		//initialize prefixList
 		//prefixList.addAll(prefixMapForCompression.keySet());
 	}
+	/**
+	 * Builds a KB that only maintains the given permutation indexes. The others are
+	 * built from the subject-relation-object index (which is always maintained) the
+	 * first time they are accessed, so modes that do not use them save their memory.
+	 * @param materialized
+	 */
+	public KB(Collection<Permutation> materialized) {
+		this(newIndex(materialized, Permutation.SRO), newIndex(materialized, Permutation.ROS),
+				newIndex(materialized, Permutation.OSR), newIndex(materialized, Permutation.RSO),
+				newIndex(materialized, Permutation.ORS), newIndex(materialized, Permutation.SOR));
+		for (Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> index : indexes()) {
+			if (index instanceof LazyIndexMap)
+				((LazyIndexMap) index).kb = this;
+		}
+	}
+
+	private static Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> newIndex(
+			Collection<Permutation> materialized, Permutation permutation) {
+		if (permutation == Permutation.SRO || materialized.contains(permutation))
+			return new ConcurrentIndexMap<Map<ByteString, IntHashMap<ByteString>>>();
+		return new LazyIndexMap(permutation);
+	}
+
 	public KB(int minRelationSup) {
+		this();
 		//minimumRelationshipSupport = minRelationSup;
 		//this.removeRareRelationships();
 		//initialize prefixList
 		//prefixList.addAll(prefixMapForCompression.keySet());
 	}
 
+	/**
+	 * Builds a KB on top of the given indexes. Subclasses can use it to 
+	 * provide alternative storage for the facts.
+	 */
+	protected KB(Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> subject2relation2object,
+			Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> relation2object2subject,
+			Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> object2subject2relation,
+			Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> relation2subject2object,
+			Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> object2relation2subject,
+			Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> subject2object2relation) {
+		this.subject2relation2object = subject2relation2object;
+		this.relation2object2subject = relation2object2subject;
+		this.object2subject2relation = object2subject2relation;
+		this.relation2subject2object = relation2subject2object;
+		this.object2relation2subject = object2relation2subject;
+		this.subject2object2relation = subject2object2relation;
+	}
+
+	/**
+	 * First level of the indexes and the overlap tables. Threads adding facts with
+	 * different first-level keys do not block each other (see {@link #add(ByteString, ByteString, ByteString, Map)}).
+	 * Like the IdentityHashMaps used before, it accepts lookups of null keys.
+	 */
+	protected static class ConcurrentIndexMap<V> extends ConcurrentHashMap<ByteString, V> {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public V get(Object key) {
+			return key == null ? null : super.get(key);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key != null && super.containsKey(key);
+		}
+
+		@Override
+		public V remove(Object key) {
+			return key == null ? null : super.remove(key);
+		}
+	}
+
+	/**
+	 * Index that is not maintained until it is accessed for the first time. Then it
+	 * is built from the subject-relation-object index and it is maintained afterwards.
+	 */
+	protected static class LazyIndexMap extends ConcurrentIndexMap<Map<ByteString, IntHashMap<ByteString>>> {
+
+		private static final long serialVersionUID = 1L;
+
+		/** Permutation of the index */
+		protected final Permutation permutation;
+
+		/** KB of the index */
+		protected KB kb;
+
+		/** TRUE once the index has been built */
+		protected volatile boolean built;
+
+		protected LazyIndexMap(Permutation permutation) {
+			this.permutation = permutation;
+		}
+
+		/**
+		 * Returns TRUE if the index has been built and must be kept up to date. It waits
+		 * if the index is being built.
+		 */
+		protected boolean isBuilt() {
+			if (built)
+				return true;
+			synchronized (this) {
+				return built;
+			}
+		}
+
+		/** Builds the index if that has not happened yet */
+		protected void ensureBuilt() {
+			if (built)
+				return;
+			synchronized (this) {
+				if (!built) {
+					kb.build(this);
+					built = true;
+				}
+			}
+		}
+
+		/** Adds the triple while building the index */
+		private void insert(ByteString a, ByteString b, ByteString c) {
+			Map<ByteString, IntHashMap<ByteString>> second = super.get(a);
+			if (second == null)
+				super.put(a, second = new IdentityHashMap<ByteString, IntHashMap<ByteString>>());
+			IntHashMap<ByteString> values = second.get(b);
+			if (values == null)
+				second.put(b, values = new IntHashMap<ByteString>());
+			values.add(c);
+		}
+
+		@Override
+		public Map<ByteString, IntHashMap<ByteString>> get(Object key) {
+			ensureBuilt();
+			return super.get(key);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			ensureBuilt();
+			return super.containsKey(key);
+		}
+
+		@Override
+		public boolean containsValue(Object value) {
+			ensureBuilt();
+			return super.containsValue(value);
+		}
+
+		@Override
+		public KeySetView<ByteString, Map<ByteString, IntHashMap<ByteString>>> keySet() {
+			ensureBuilt();
+			return super.keySet();
+		}
+
+		@Override
+		public Set<Map.Entry<ByteString, Map<ByteString, IntHashMap<ByteString>>>> entrySet() {
+			ensureBuilt();
+			return super.entrySet();
+		}
+
+		@Override
+		public Collection<Map<ByteString, IntHashMap<ByteString>>> values() {
+			ensureBuilt();
+			return super.values();
+		}
+
+		@Override
+		public int size() {
+			ensureBuilt();
+			return super.size();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			ensureBuilt();
+			return super.isEmpty();
+		}
+	}
+
+	/**
+	 * Fills a lazy index with the facts of the subject-relation-object index.
+	 */
+	private void build(LazyIndexMap index) {
+		long time = System.currentTimeMillis();
+		int[] order = ChunkedLoader.PERMUTATIONS[index.permutation.ordinal()];
+		ByteString[] fact = new ByteString[3];
+		for (Map.Entry<ByteString, Map<ByteString, IntHashMap<ByteString>>> entry : subject2relation2object.entrySet()) {
+			fact[0] = entry.getKey();
+			synchronized (entry.getValue()) {
+				for (Map.Entry<ByteString, IntHashMap<ByteString>> entry2 : entry.getValue().entrySet()) {
+					fact[1] = entry2.getKey();
+					for (ByteString object : entry2.getValue()) {
+						fact[2] = object;
+						index.insert(fact[order[0]], fact[order[1]], fact[order[2]]);
+					}
+				}
+			}
+		}
+		Announce.message("Built index " + index.permutation + " in "
+				+ NumberFormatter.formatMS(System.currentTimeMillis() - time));
+	}
+
+	/**
+	 * Returns the six indexes in the order of {@link Permutation}.
+	 */
+	protected List<Map<ByteString, Map<ByteString, IntHashMap<ByteString>>>> indexes() {
+		return Arrays.asList(subject2relation2object, relation2object2subject, object2subject2relation,
+				relation2subject2object, object2relation2subject, subject2object2relation);
+	}
+
 	/** Methods to add single facts to the KB **/
 	protected boolean add(ByteString subject, ByteString relation,
 			ByteString object,
 			Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> map) {
-		synchronized (map) {
+		// Lazy indexes that have not been built yet will see the fact when they are built
+		if (map instanceof LazyIndexMap && !((LazyIndexMap) map).isBuilt())
+			return false;
+		while (true) {
 			Map<ByteString, IntHashMap<ByteString>> relation2object = map
 					.get(subject);
-			if (relation2object == null)
-				map.put(subject,
-						relation2object = new IdentityHashMap<ByteString, IntHashMap<ByteString>>());
-			IntHashMap<ByteString> objects = relation2object.get(relation);
-			if (objects == null)
-				relation2object.put(relation,
-						objects = new IntHashMap<ByteString>());
-			return (objects.add(object));
+			if (relation2object == null) {
+				relation2object = new IdentityHashMap<ByteString, IntHashMap<ByteString>>();
+				Map<ByteString, IntHashMap<ByteString>> previous = map.putIfAbsent(subject, relation2object);
+				if (previous != null)
+					relation2object = previous;
+			}
+			// The second level is guarded by its own lock
+			synchronized (relation2object) {
+				// A delete may have dropped it from the index in the meantime
+				if (map.get(subject) != relation2object)
+					continue;
+				IntHashMap<ByteString> objects = relation2object.get(relation);
+				if (objects == null)
+					relation2object.put(relation,
+							objects = new IntHashMap<ByteString>());
+				return (objects.add(object));
+			}
 		}
 	}
 
@@ -261,7 +544,7 @@ public class KB {
 	 * @return TRUE if the KB was changed, i.e., the fact did not exist before.
 	 */	
 	protected boolean add(ByteString subject, ByteString relation, ByteString object) {
-
+		checkNotFrozen();
 		if (!add(subject, relation, object, subject2relation2object))
 			return (false);
 		add(relation, object, subject, relation2object2subject);
@@ -269,45 +552,96 @@ public class KB {
 		add(relation, subject, object, relation2subject2object);
 		add(object, relation, subject, object2relation2subject);
 		add(subject, object, relation, subject2object2relation);
-		synchronized (subjectSize) {
-			subjectSize.increase(subject);
-		}
-		synchronized (relationSize) {
-			relationSize.increase(relation);
-		}
-		synchronized (objectSize) {
+		countFact(subject, relation, object);
+		return (true);
+	}
+
+	/**
+	 * Updates the counters and the entries of the overlap tables after a new fact 
+	 * has been added to the indexes.
+	 * @param subject
+	 * @param relation
+	 * @param object
+	 */
+	protected void countFact(ByteString subject, ByteString relation, ByteString object) {
+		subjectSize.increase(subject);
+		relationSize.increase(relation);
+		objectSize.increase(object);
+
+		if (!subject2subjectOverlap.containsKey(relation))
+			subject2subjectOverlap.putIfAbsent(relation, new IntHashMap<ByteString>());
+
+		if (!subject2objectOverlap.containsKey(relation))
+			subject2objectOverlap.putIfAbsent(relation, new IntHashMap<ByteString>());
+
+		if (!object2objectOverlap.containsKey(relation))
+			object2objectOverlap.putIfAbsent(relation, new IntHashMap<ByteString>());
+
+		relationChanged(relation);
+		sizeUpdater.incrementAndGet(this);
+	}
+
+	/**
+	 * Updates the counters and the entries of the overlap tables after the facts of a
+	 * subject and relation with the given objects have been added to the indexes, like
+	 * {@link #countFact(ByteString, ByteString, ByteString)} does for each of them.
+	 * @param subject
+	 * @param relation
+	 * @param objects
+	 */
+	protected void countFacts(ByteString subject, ByteString relation, IntHashMap<ByteString> objects) {
+		int n = objects.size();
+		if (n == 0)
+			return;
+		subjectSize.add(subject, n);
+		relationSize.add(relation, n);
+		for (ByteString object : objects)
 			objectSize.increase(object);
-		}
 
-		synchronized (subject2subjectOverlap) {
-			IntHashMap<ByteString> overlaps = subject2subjectOverlap
-					.get(relation);
-			if (overlaps == null) {
-				subject2subjectOverlap.put(relation,
-						new IntHashMap<ByteString>());
-			}
-		}
+		if (!subject2subjectOverlap.containsKey(relation))
+			subject2subjectOverlap.putIfAbsent(relation, new IntHashMap<ByteString>());
 
-		synchronized (subject2objectOverlap) {
-			IntHashMap<ByteString> overlaps = subject2objectOverlap
-					.get(relation);
-			if (overlaps == null) {
-				subject2objectOverlap.put(relation,
-						new IntHashMap<ByteString>());
-			}
-		}
+		if (!subject2objectOverlap.containsKey(relation))
+			subject2objectOverlap.putIfAbsent(relation, new IntHashMap<ByteString>());
 
-		synchronized (object2objectOverlap) {
-			IntHashMap<ByteString> overlaps = object2objectOverlap
-					.get(relation);
-			if (overlaps == null) {
-				object2objectOverlap.put(relation,
-						new IntHashMap<ByteString>());
-			}
+		if (!object2objectOverlap.containsKey(relation))
+			object2objectOverlap.putIfAbsent(relation, new IntHashMap<ByteString>());
+
+		relationChanged(relation);
+		sizeUpdater.addAndGet(this, n);
+	}
+
+	/**
+	 * Invalidates the bitmaps of the relation and the cached queries, and marks the
+	 * overlaps of the relation as outdated.
+	 * @param relation
+	 */
+	protected void relationChanged(ByteString relation) {
+		QueryCache cache = queryCache;
+		if (cache != null)
+			cache.clear();
+		if (overlapTablesBuilt)
+			changedRelations.add(relation);
+		if (!relation2subjectBitmap.isEmpty()) {
+			relation2subjectBitmap.remove(relation);
+			relation2objectBitmap.remove(relation);
 		}
+		if (!relation2sketches.isEmpty())
+			relation2sketches.remove(relation);
+	}
 
-		size++;
-		return (true);
+	/**
+	 * Updates the counters after a fact has been removed from the indexes.
+	 * @param subject
+	 * @param relation
+	 * @param object
+	 */
+	protected void uncountFact(ByteString subject, ByteString relation, ByteString object) {
+		subjectSize.decrease(subject);
+		relationSize.decrease(relation);
+		objectSize.decrease(object);
+		relationChanged(relation);
+		sizeUpdater.decrementAndGet(this);
 	}
 	
 
@@ -330,6 +664,75 @@ public class KB {
 		return count;
 	}
 
+	/**
+	 * Makes the KB read-only. It should be called once loading has finished, e.g., before
+	 * mining. Any later attempt to add or delete facts throws an UnsupportedOperationException.
+	 * Subclasses may use it to compact their indexes. The fact filter, if enabled, is built here.
+	 */
+	public void freeze() {
+		frozen = true;
+		if (factFilterRate > 0 && factFilter == null)
+			buildFactFilter();
+	}
+
+	/**
+	 * It makes {@link #contains(ByteString...)} check a Bloom filter of the facts (see
+	 * {@link FactFilter}) before the indexes, so that most lookups of absent facts do not
+	 * touch them. The filter is built when the KB is frozen, or immediately if it is already.
+	 * @param falsePositiveRate Fraction of the absent facts that still go to the indexes,
+	 * 0 to remove the filter
+	 */
+	public void setFactFilter(double falsePositiveRate) {
+		if (falsePositiveRate < 0 || falsePositiveRate >= 1)
+			throw new IllegalArgumentException("The false positive rate must be in [0, 1): " + falsePositiveRate);
+		factFilterRate = falsePositiveRate;
+		factFilter = null;
+		if (falsePositiveRate > 0 && frozen)
+			buildFactFilter();
+	}
+
+	/**
+	 * Returns the fact filter of the KB, null if it has none or the KB is not frozen yet.
+	 * @return
+	 */
+	public FactFilter getFactFilter() {
+		return factFilter;
+	}
+
+	private synchronized void buildFactFilter() {
+		if (factFilter != null)
+			return;
+		long time = System.currentTimeMillis();
+		FactFilter filter = new FactFilter(size(), factFilterRate);
+		for (ByteString subject : subject2relation2object.keySet()) {
+			Map<ByteString, IntHashMap<ByteString>> relations = subject2relation2object.get(subject);
+			for (ByteString relation : relations.keySet())
+				for (ByteString object : relations.get(relation))
+					filter.add(subject, relation, object);
+		}
+		factFilter = filter;
+		Announce.message("Fact filter of " + filter.size() + " facts built in "
+				+ NumberFormatter.formatMS(System.currentTimeMillis() - time) + " using "
+				+ (filter.memory() >> 10) + " KB (false positive rate "
+				+ String.format("%.4f", filter.getFalsePositiveRate()) + ")");
+	}
+
+	/**
+	 * Returns true if the KB has been frozen.
+	 * @return
+	 */
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	/**
+	 * Throws an UnsupportedOperationException if the KB has been frozen.
+	 */
+	protected void checkNotFrozen() {
+		if (frozen)
+			throw new UnsupportedOperationException("The KB is frozen and cannot be modified");
+	}
+
 	/** 
 	 * Returns the number of facts in the KB. 
 	 **/
@@ -382,72 +785,125 @@ public class KB {
 	
 
 	/**
-	 * It clears the overlap tables and rebuilds them. Recommended when new facts has been added
-	 * to the KB after the initial loading.
+	 * It brings the overlap tables up to date. Recommended when new facts has been added
+	 * to the KB after the initial loading. Only the rows and columns of the relations
+	 * whose facts have changed are computed again.
 	 */
 	public void rebuildOverlapTables() {
-		resetOverlapTables(); 
 		buildOverlapTables();
 	}
 
 	/**
-	 * It clears all overlap tables.
-	 */
-	private void resetOverlapTables() {
-		resetMap(subject2subjectOverlap);
-		resetMap(subject2objectOverlap);
-		resetMap(object2objectOverlap);
-		
-	}
-
-	/**
-	 * It resets an overlap index.
-	 * @param map
+	 * Returns the dictionary of term identifiers of the KB. Identifiers are assigned
+	 * the first time they are needed.
+	 * @return
 	 */
-	private void resetMap(Map<ByteString, IntHashMap<ByteString>> map) {
-		for (ByteString key : map.keySet()) {
-			map.put(key, new IntHashMap<ByteString>());
+	public TermDictionary getDictionary() {
+		if (termIds == null) {
+			synchronized (this) {
+				if (termIds == null)
+					termIds = new TermDictionary();
+			}
 		}
+		return termIds;
 	}
 
 	/**
 	 * It builds the overlap tables for relations. They contain the number of subjects and
 	 * objects in common between pairs of relations. They can be used for join cardinality estimation.
+	 * The subjects and objects of each relation are stored as compressed bitmaps of term identifiers
+	 * and the intersections are computed row by row with one thread per core. The bitmaps are kept,
+	 * so later calls only compute the overlaps of the relations that changed.
 	 */
 	public void buildOverlapTables() {
-		for (ByteString r1 : relationSize) {
-			Set<ByteString> subjects1 = relation2subject2object.get(r1)
-					.keySet();
-			Set<ByteString> objects1 = relation2object2subject.get(r1)
-					.keySet();
-			for (ByteString r2 : relationSize) {
-				Set<ByteString> subjects2 = relation2subject2object.get(r2)
-						.keySet();
-				Set<ByteString> objects2 = relation2object2subject.get(r2)
-						.keySet();
-
-				if (!r1.equals(r2)) {
-					int ssoverlap = computeOverlap(subjects1, subjects2);
-					subject2subjectOverlap.get(r1).put(r2, ssoverlap);
-					subject2subjectOverlap.get(r2).put(r1, ssoverlap);
+		long time = System.currentTimeMillis();
+		final List<ByteString> relations = new ArrayList<ByteString>(relationSize);
+		Set<ByteString> current = new HashSet<ByteString>(relations);
+		final Set<ByteString> changed = new HashSet<ByteString>();
+		for (ByteString relation : relations) {
+			if (!overlapTablesBuilt || changedRelations.contains(relation)
+					|| !relation2subjectBitmap.containsKey(relation))
+				changed.add(relation);
+		}
+		changedRelations.clear();
+
+		// Forget the relations without facts
+		relation2subjectBitmap.keySet().retainAll(current);
+		relation2objectBitmap.keySet().retainAll(current);
+		for (Map<ByteString, IntHashMap<ByteString>> overlaps : Arrays.asList(
+				subject2subjectOverlap, subject2objectOverlap, object2objectOverlap)) {
+			overlaps.keySet().retainAll(current);
+			for (ByteString relation : relations) {
+				IntHashMap<ByteString> row = overlaps.get(relation);
+				if (row == null) {
+					overlaps.put(relation, new IntHashMap<ByteString>());
 				} else {
-					subject2subjectOverlap.get(r1).put(r1, subjects2.size());
+					// The iterators of IntHashMap do not support removal
+					for (ByteString column : new ArrayList<ByteString>(row))
+						if (!current.contains(column))
+							row.remove(column);
 				}
+			}
+		}
 
-				int soverlap1 = computeOverlap(subjects1, objects2);
-				subject2objectOverlap.get(r1).put(r2, soverlap1);
-				int soverlap2 = computeOverlap(subjects2, objects1);
-				subject2objectOverlap.get(r2).put(r1, soverlap2);
-
-				if (!r1.equals(r2)) {
-					int oooverlap = computeOverlap(objects1, objects2);
-					object2objectOverlap.get(r1).put(r2, oooverlap);
-					object2objectOverlap.get(r2).put(r1, oooverlap);
-				} else {
-					object2objectOverlap.get(r1).put(r1, objects2.size());
+		final List<ByteString> changedList = new ArrayList<ByteString>(changed);
+		parallelFor(changedList.size(), new IntConsumer() {
+			public void accept(int i) {
+				ByteString relation = changedList.get(i);
+				relation2subjectBitmap.put(relation, bitmap(relation2subject2object.get(relation)));
+				relation2objectBitmap.put(relation, bitmap(relation2object2subject.get(relation)));
+			}
+		});
+
+		// Each row is only written by one thread
+		parallelFor(relations.size(), new IntConsumer() {
+			public void accept(int i) {
+				ByteString r1 = relations.get(i);
+				List<ByteString> columns = changed.contains(r1) ? relations : changedList;
+				CompressedBitmap subjects1 = relation2subjectBitmap.get(r1);
+				CompressedBitmap objects1 = relation2objectBitmap.get(r1);
+				IntHashMap<ByteString> ssRow = subject2subjectOverlap.get(r1);
+				IntHashMap<ByteString> soRow = subject2objectOverlap.get(r1);
+				IntHashMap<ByteString> ooRow = object2objectOverlap.get(r1);
+				for (ByteString r2 : columns) {
+					CompressedBitmap subjects2 = relation2subjectBitmap.get(r2);
+					CompressedBitmap objects2 = relation2objectBitmap.get(r2);
+					ssRow.put(r2, (int) subjects1.andCardinality(subjects2));
+					soRow.put(r2, (int) subjects1.andCardinality(objects2));
+					ooRow.put(r2, (int) objects1.andCardinality(objects2));
 				}
 			}
+		});
+		overlapTablesBuilt = true;
+		Announce.message("Overlap tables of " + changed.size() + " out of " + relations.size()
+				+ " relations computed in " + NumberFormatter.formatMS(System.currentTimeMillis() - time));
+	}
+
+	/**
+	 * Returns the keys of the given index level as a bitmap of term identifiers.
+	 */
+	private CompressedBitmap bitmap(Map<ByteString, IntHashMap<ByteString>> map) {
+		if (map == null)
+			return new CompressedBitmap();
+		return bitmap(map.keySet());
+	}
+
+	/**
+	 * Runs task.accept(i) for every i in [0, n) using one thread per core.
+	 */
+	protected static void parallelFor(final int n, final IntConsumer task) {
+		final AtomicInteger next = new AtomicInteger();
+		Thread[] threads = new Thread[Math.max(1, Math.min(n, Runtime.getRuntime().availableProcessors()))];
+		for (int t = 0; t < threads.length; ++t) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = next.getAndIncrement(); i < n; i = next.getAndIncrement())
+						task.accept(i);
+				}
+			};
+			threads[t].start();
 		}
+		ChunkedLoader.join(threads);
 	}
 
 	/**
@@ -499,21 +955,6 @@ public class KB {
 		}
 	}
 
-	/**
-	 * Calculates the number of elements in the intersection of two sets of ByteStrings.
-	 * @param s1
-	 * @param s2
-	 * @return
-	 */
-	private static int computeOverlap(Set<ByteString> s1, Set<ByteString> s2) {
-		int overlap = 0;
-		for (ByteString r : s1) {
-			if (s2.contains(r))
-				++overlap;
-		}
-		return overlap;
-	}
-
 	/**
 	 * It loads the contents of the given files into the in-memory database.
 	 * @param files
@@ -531,6 +972,16 @@ public class KB {
 	public void load(List<File> files) {
 		if (files.isEmpty())
 			return;
+
+		if (files.size() == 1 && files.get(0).isFile() && loadThreads > 1) {
+			// A single file is split among the loading threads
+			try {
+				loadChunked(files.get(0), loadThreads);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			return;
+		}
 		
 		long size = size();
 		long time = System.currentTimeMillis();
@@ -598,34 +1049,159 @@ public class KB {
 							- time));
 		}
 		for (String line : new FileLines(f, "UTF-8", message)) {
-			if (line.endsWith("."))
-				line = Char17.cutLast(line);
-			line = line.replace("<","");
-			line = line.replace(">","");
-			String[] split = line.split("\\s+");
-			//System.out.println(split.length);
-			//for(String s : split){
-			//	System.out.println(s);
-			//}
-			if (split.length == 3) {
-				add(split[0].trim(), split[1].trim(), split[2].trim());
-			} else {
-//				if (split.length == 4)
-//				add(split[1].trim(), split[2].trim(), split[3].trim());
-				String str = "";
-				for(int i = 2; i < split.length; i++) {
-					str = str + split[i];
-				}
-
-				add(split[0].trim(), split[1].trim(), str);
-			}
-
+			String[] fact = parseFact(line);
+			if (fact != null)
+				add(fact[0], fact[1], fact[2]);
 		}
 
 		if (message != null)
 			Announce.message("     Loaded", (size() - size), "facts");
 	}
 
+	/**
+	 * It writes a binary image of the KB (see {@link KBImage}) that can be opened later with
+	 * {@link #openMapped(Path)} without parsing the source files again.
+	 * @param path
+	 * @throws IOException
+	 */
+	public void save(Path path) throws IOException {
+		save(path, "");
+	}
+
+	/**
+	 * It writes a binary image of the KB with a description, which must be given
+	 * to {@link #openMapped(Path, String)} to open it.
+	 * @param path
+	 * @param description
+	 * @throws IOException
+	 */
+	public void save(Path path, String description) throws IOException {
+		IntKB encoded = new IntKB();
+		encoded.add(this);
+		KBImage.write(encoded, path, description);
+	}
+
+	/**
+	 * It opens a KB from a binary image written by {@link #save(Path)}. The indexes are
+	 * memory-mapped and the returned KB is frozen.
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public static KB openMapped(Path path) throws IOException {
+		return KBImage.open(path);
+	}
+
+	/**
+	 * It opens a KB from a binary image written by {@link #save(Path, String)} with
+	 * the given description.
+	 * @param path
+	 * @param description
+	 * @return
+	 * @throws IOException If the image has another description
+	 */
+	public static KB openMapped(Path path, String description) throws IOException {
+		return KBImage.open(path, description);
+	}
+
+	/**
+	 * Sets the number of threads that parse a file when a single file is loaded
+	 * (see {@link #loadChunked(File, int)}). With 1, the default, the file is
+	 * parsed sequentially.
+	 * @param nThreads
+	 */
+	public void setLoadThreads(int nThreads) {
+		if (nThreads < 1)
+			throw new IllegalArgumentException("The number of loading threads must be positive: " + nThreads);
+		loadThreads = nThreads;
+	}
+
+	/**
+	 * It loads a single file using several threads, each parsing a different 
+	 * portion of the file (see {@link ChunkedLoader}).
+	 * @param file
+	 * @param nThreads
+	 * @throws IOException
+	 */
+	public void loadChunked(File file, int nThreads) throws IOException {
+		ChunkedLoader.load(this, file, nThreads);
+	}
+
+	/**
+	 * Adds a set of dictionary-encoded facts, e.g., the output of the {@link ChunkedLoader}.
+	 * Each of the six indexes is built by its own thread, so insertions do not
+	 * contend for the same lock. It must not run concurrently with other changes to the KB.
+	 * @param dictionary The dictionary used to encode the facts
+	 * @param batches
+	 */
+	protected void addEncoded(final TermDictionary dictionary, final List<ChunkedLoader.Batch> batches) {
+		checkNotFrozen();
+		final List<Map<ByteString, Map<ByteString, IntHashMap<ByteString>>>> maps = indexes();
+		// Facts that were not in the KB before, according to the first index
+		final List<BitSet> newFacts = new ArrayList<>();
+		for (ChunkedLoader.Batch batch : batches)
+			newFacts.add(new BitSet(batch.size()));
+
+		Thread[] threads = new Thread[maps.size()];
+		for (int p = 0; p < maps.size(); ++p) {
+			final int[] permutation = ChunkedLoader.PERMUTATIONS[p];
+			final Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> map = maps.get(p);
+			final boolean first = p == 0;
+			threads[p] = new Thread() {
+				public void run() {
+					for (int b = 0; b < batches.size(); ++b) {
+						ChunkedLoader.Batch batch = batches.get(b);
+						for (int i = 0; i < batch.size(); ++i) {
+							boolean added = add(dictionary.get(batch.get(i, permutation[0])),
+									dictionary.get(batch.get(i, permutation[1])),
+									dictionary.get(batch.get(i, permutation[2])), map);
+							if (first && added)
+								newFacts.get(b).set(i);
+						}
+					}
+				}
+			};
+			threads[p].start();
+		}
+		ChunkedLoader.join(threads);
+
+		for (int b = 0; b < batches.size(); ++b) {
+			ChunkedLoader.Batch batch = batches.get(b);
+			BitSet added = newFacts.get(b);
+			for (int i = added.nextSetBit(0); i >= 0; i = added.nextSetBit(i + 1)) {
+				countFact(dictionary.get(batch.get(i, 0)), dictionary.get(batch.get(i, 1)),
+						dictionary.get(batch.get(i, 2)));
+			}
+		}
+	}
+
+	/**
+	 * It parses a line of a TSV or N-Triples file into a fact. Angle brackets and the
+	 * final dot are removed and the tokens after the relation are concatenated
+	 * into the object.
+	 * @param line
+	 * @return The fact as an array [subject, relation, object] or null if the line
+	 * does not contain a fact.
+	 */
+	public static String[] parseFact(String line) {
+		if (line.endsWith("."))
+			line = Char17.cutLast(line);
+		line = line.replace("<","");
+		line = line.replace(">","");
+		String[] split = line.split("\\s+");
+		if (split.length < 2)
+			return null;
+		if (split.length == 3) {
+			return new String[] { split[0].trim(), split[1].trim(), split[2].trim() };
+		} else {
+			StringBuilder str = new StringBuilder();
+			for(int i = 2; i < split.length; i++) {
+				str.append(split[i]);
+			}
+			return new String[] { split[0].trim(), split[1].trim(), str.toString() };
+		}
+	}
+
 	/** Loads the files */
 	public void loadSequential(List<File> files) {
 		long size = size();
@@ -1085,6 +1661,9 @@ public class KB {
 	 * @param fact A triple without variables, e.g., [Barack_Obama, wasBornIn, Hawaii]
 	 **/
 	protected boolean contains(ByteString... fact) {
+		FactFilter filter = factFilter;
+		if (filter != null && !filter.mightContain(fact[0], fact[1], fact[2]) && !isSpecialAtom(fact))
+			return false;
 		if (fact[1] == DIFFERENTFROMbs)
 			return (differentFrom(fact));
 		if (fact[1] == EQUALSbs)
@@ -1612,6 +2191,9 @@ public class KB {
 	 * instantiations.
 	 **/
 	protected int mostRestrictiveTriple(List<ByteString[]> triples) {
+		QueryPlanner planner = this.planner;
+		if (planner != null && !containsSpecialAtoms(triples))
+			return checkNotEmpty(planner.mostRestrictiveTriple(triples), triples);
 		int bestPos = -1;
 		long count = Long.MAX_VALUE;
 		for (int i = 0; i < triples.size(); i++) {
@@ -1627,13 +2209,55 @@ public class KB {
 		return (bestPos);
 	}
 
+	/**
+	 * It returns the given position, or -1 if the triple at that position has no instances.
+	 */
+	private int checkNotEmpty(int pos, List<ByteString[]> triples) {
+		if (pos != -1 && count(triples.get(pos)) == 0)
+			return -1;
+		return pos;
+	}
+
+	/**
+	 * Returns true if any atom of the query includes a special non-materialized relation.
+	 */
+	private boolean containsSpecialAtoms(List<ByteString[]> triples) {
+		for (ByteString[] triple : triples)
+			if (isSpecialAtom(triple))
+				return true;
+		return false;
+	}
+
+	/**
+	 * It makes the KB choose the order of the joins with a {@link QueryPlanner} based on
+	 * the given statistics, which are usually computed once with {@link KBStatistics#compute(KB)}
+	 * and read from a file afterwards. The plans are cached per query shape. The statistics
+	 * are not updated when facts are added or deleted, which only affects the quality of
+	 * the plans. If null, the KB goes back to counting the instances of every triple pattern.
+	 * The KB takes the overlap tables of the statistics if it has not built its own.
+	 * @param statistics
+	 */
+	public void setQueryPlanner(KBStatistics statistics) {
+		if (statistics != null)
+			statistics.copyOverlapTables(this);
+		planner = statistics == null ? null : new QueryPlanner(this, statistics);
+	}
+
+	/**
+	 * Returns the query planner of the KB, null if it has none.
+	 * @return
+	 */
+	public QueryPlanner getQueryPlanner() {
+		return planner;
+	}
+
 	/**
 	 * Returns true if the atom includes any of the special non-materialized relations.
 	 * This types of relations are normally computed in the KB.
 	 * @param byteStrings
 	 * @return
 	 */
-	private boolean isSpecialAtom(ByteString[] atom) {
+	protected boolean isSpecialAtom(ByteString[] atom) {
 		return specialRelations.contains(atom[1]) ||
 				parseCardinalityRelation(atom[1]) != null;
 	}
@@ -1647,6 +2271,9 @@ public class KB {
 	 **/
 	protected int mostRestrictiveTriple(List<ByteString[]> triples,
 			ByteString variable) {
+		QueryPlanner planner = this.planner;
+		if (planner != null && !containsSpecialAtoms(triples))
+			return checkNotEmpty(planner.mostRestrictiveTriple(triples, variable), triples);
 		int bestPos = -1;
 		long count = Long.MAX_VALUE;
 		for (int i = 0; i < triples.size(); i++) {
@@ -1673,6 +2300,9 @@ public class KB {
 	 **/
 	protected int mostRestrictiveTriple(List<ByteString[]> triples,
 			ByteString var1, ByteString var2) {
+		QueryPlanner planner = this.planner;
+		if (planner != null && !containsSpecialAtoms(triples))
+			return checkNotEmpty(planner.mostRestrictiveTriple(triples, var1, var2), triples);
 		int bestPos = -1;
 		long count = Long.MAX_VALUE;
 		for (int i = 0; i < triples.size(); i++) {
@@ -1837,9 +2467,458 @@ public class KB {
 
 	/** returns the number of instances that fulfill a certain condition */
 	public long countDistinct(ByteString variable, List<ByteString[]> query) {
+		QueryCache cache = cacheFor(query);
+		if (cache != null)
+			return cache.countDistinct(this, variable, query);
+		if (query.size() > 1 && isBitmapQuery(variable, query))
+			return starBitmap(variable, query, true).cardinality();
 		return (long) (selectDistinct(variable, query).size());
 	}
 
+	/**
+	 * It returns the number of distinct bindings of the variable that satisfy the query,
+	 * or the limit if there are more. The evaluation stops as soon as the limit is reached,
+	 * so it is much cheaper than {@link #countDistinct(ByteString, List)} when the caller
+	 * only compares the count with a threshold.
+	 * @param variable Projection variable
+	 * @param query The list of triple patterns
+	 * @param limit
+	 * @return
+	 */
+	public long countDistinctUpTo(ByteString variable, List<ByteString[]> query, long limit) {
+		if (limit <= 0)
+			return 0;
+		QueryCache cache = cacheFor(query);
+		long cached = cache == null ? -1 : cache.peekCount(variable, query);
+		if (cached != -1)
+			return Math.min(cached, limit);
+		// Queries that are answered from the indexes or with bitmaps are not worth bounding
+		if (query.size() == 1 || isBitmapQuery(variable, query) || containsSpecialAtoms(query))
+			return Math.min(countDistinct(variable, query), limit);
+		int bestPos = mostRestrictiveTriple(query, variable);
+		if (bestPos == -1)
+			return 0;
+		ByteString[] best = query.get(bestPos);
+		int pos = varpos(variable, best);
+		for (int i = pos + 1; i < best.length; ++i)
+			if (best[i].equals(variable))
+				return Math.min(countDistinct(variable, query), limit);
+
+		// Check the candidates of the most restrictive triple one by one
+		long count = 0;
+		Set<ByteString> candidates = selectDistinct(variable, KB.triples(best));
+		try (Instantiator insty = new Instantiator(query, variable)) {
+			for (ByteString candidate : candidates) {
+				if (existsBS(insty.instantiate(candidate)) && ++count >= limit)
+					return limit;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * It returns TRUE if at least k distinct bindings of the variable satisfy the query.
+	 * The evaluation stops as soon as k bindings are found (see {@link #countDistinctUpTo(ByteString, List, long)}).
+	 * @param variable Projection variable
+	 * @param query The list of triple patterns
+	 * @param k
+	 * @return
+	 */
+	public boolean countDistinctAtLeast(ByteString variable, List<ByteString[]> query, long k) {
+		return countDistinctUpTo(variable, query, k) >= k;
+	}
+
+	/**
+	 * It makes the KB cache the results of countDistinct and selectDistinct for queries with
+	 * several triple patterns (see {@link QueryCache}). The cache is emptied whenever facts are
+	 * added or deleted.
+	 * @param capacity Maximal total weight of the cache, roughly the number of terms it stores.
+	 * If not positive, the KB stops caching.
+	 */
+	public void setQueryCache(long capacity) {
+		queryCache = capacity > 0 ? new QueryCache(capacity) : null;
+	}
+
+	/**
+	 * Returns the query cache of the KB, null if it has none.
+	 * @return
+	 */
+	public QueryCache getQueryCache() {
+		return queryCache;
+	}
+
+	/**
+	 * It returns the cache that answers the query, null if the query must be evaluated
+	 * directly: there is no cache, the query has a single triple pattern, which is answered
+	 * from the indexes, or the query is part of the evaluation of a cached query.
+	 */
+	protected QueryCache cacheFor(List<ByteString[]> query) {
+		QueryCache cache = queryCache;
+		if (cache == null || query.size() < 2 || cache.isEvaluating())
+			return null;
+		return cache;
+	}
+
+	// ---------------------------------------------------------------------------
+	// Approximate counting
+	// ---------------------------------------------------------------------------
+
+	/** Maximal number of triple patterns of the queries answered from sketches */
+	public static final int MAX_SKETCH_PATTERNS = 5;
+
+	/**
+	 * Maximal relative error of the estimates of {@link #countDistinctApproximate(ByteString, List)},
+	 * with a confidence of three standard deviations
+	 */
+	public static final double MAX_SKETCH_ERROR = 0.1;
+
+	/** Sketches of the bindings of the triple patterns of a relation */
+	protected static class RelationSketches {
+
+		/** Subjects and objects of the relation */
+		volatile HyperLogLog subjects, objects;
+
+		/** Subjects of each object and objects of each subject */
+		final Map<ByteString, HyperLogLog> subjectsOf = new ConcurrentHashMap<ByteString, HyperLogLog>(),
+				objectsOf = new ConcurrentHashMap<ByteString, HyperLogLog>();
+	}
+
+	/**
+	 * It turns the approximate counting of {@link #countDistinctApproximate(ByteString, List)}
+	 * on or off, and drops the sketches built so far.
+	 * @param precision Precision of the sketches (see {@link HyperLogLog}), 0 to turn it off
+	 */
+	public void setSketchPrecision(int precision) {
+		if (precision != 0 && (precision < HyperLogLog.MIN_PRECISION || precision > HyperLogLog.MAX_PRECISION))
+			throw new IllegalArgumentException("The precision of the sketches must be in ["
+					+ HyperLogLog.MIN_PRECISION + ", " + HyperLogLog.MAX_PRECISION + "]: " + precision);
+		sketchPrecision = precision;
+		relation2sketches.clear();
+	}
+
+	public int getSketchPrecision() {
+		return sketchPrecision;
+	}
+
+	/**
+	 * Maximal relative error of the estimates of {@link #countDistinctApproximate(ByteString, List)},
+	 * 0 if approximate counting is off.
+	 * @return
+	 */
+	public double getSketchError() {
+		return sketchPrecision == 0 ? 0 : MAX_SKETCH_ERROR;
+	}
+
+	/**
+	 * Memory of the sketches built so far, in bytes.
+	 * @return
+	 */
+	public long getSketchMemory() {
+		long memory = 0;
+		for (RelationSketches sketches : relation2sketches.values()) {
+			for (HyperLogLog sketch : new HyperLogLog[] { sketches.subjects, sketches.objects })
+				if (sketch != null)
+					memory += sketch.memory();
+			for (HyperLogLog sketch : sketches.subjectsOf.values())
+				memory += sketch.memory();
+			for (HyperLogLog sketch : sketches.objectsOf.values())
+				memory += sketch.memory();
+		}
+		return memory;
+	}
+
+	/**
+	 * It estimates the number of distinct bindings of the variable that satisfy the query.
+	 * Star-shaped queries (see {@link #isStarQuery(ByteString, List)}) of up to
+	 * {@value #MAX_SKETCH_PATTERNS} triple patterns are answered from {@link HyperLogLog}
+	 * sketches of the bindings of each pattern, which are built on first use and kept per
+	 * relation, and per constant for the patterns with many bindings. The size of the
+	 * intersection is estimated by inclusion-exclusion over the unions of the sketches and
+	 * it is bounded by the exact size of the smallest pattern. Since the errors of the unions
+	 * add up, small intersections of large patterns cannot be estimated precisely: if the
+	 * error may exceed {@link #MAX_SKETCH_ERROR} of the estimate, the query is counted
+	 * exactly. So are the other queries, and all
+	 * queries when approximate counting is off (see {@link #setSketchPrecision(int)}), get
+	 * the exact count of {@link #countDistinct(ByteString, List)}.
+	 * @param variable Projection variable
+	 * @param query The list of triple patterns
+	 * @return
+	 */
+	public long countDistinctApproximate(ByteString variable, List<ByteString[]> query) {
+		int precision = sketchPrecision;
+		if (precision == 0 || query.size() < 2 || query.size() > MAX_SKETCH_PATTERNS
+				|| !isStarQuery(variable, query))
+			return countDistinct(variable, query);
+		int n = query.size();
+		HyperLogLog[] sketches = new HyperLogLog[n];
+		double estimate = 0;
+		long upperBound = Long.MAX_VALUE;
+		for (int i = 0; i < n; ++i) {
+			ByteString[] triple = query.get(i);
+			int pos = varpos(variable, triple);
+			if (pos == 1 || isVariable(triple[1]))
+				return countDistinct(variable, query);
+			// The bindings of a single pattern are counted exactly from the indexes
+			long size = countDistinct(variable, KB.triples(triple));
+			if (size == 0)
+				return 0;
+			upperBound = Math.min(upperBound, size);
+			estimate += size;
+		}
+		for (int i = 0; i < n; ++i) {
+			ByteString[] triple = query.get(i);
+			sketches[i] = sketch(variable, triple, varpos(variable, triple), precision);
+		}
+		// |A & B & ...| = sum over the non-empty subsets S of (-1)^(|S| + 1) |union of S|
+		double unions = 0;
+		for (int subset = 1; subset < 1 << n; ++subset) {
+			int size = Integer.bitCount(subset);
+			if (size == 1)
+				continue;
+			HyperLogLog union = new HyperLogLog(precision);
+			for (int i = 0; i < n; ++i)
+				if ((subset & (1 << i)) != 0)
+					union.merge(sketches[i]);
+			double cardinality = union.cardinality();
+			unions += cardinality;
+			estimate += size % 2 == 1 ? cardinality : -cardinality;
+		}
+		estimate = Math.max(0, Math.min(upperBound, estimate));
+		// Worst case of three standard errors on every union
+		if (3 * HyperLogLog.relativeError(precision) * unions > MAX_SKETCH_ERROR * estimate)
+			return countDistinct(variable, query);
+		return Math.round(estimate);
+	}
+
+	/**
+	 * The sketch of the bindings of the variable at position pos of the triple. Sketches
+	 * of patterns with a constant are kept only if they are smaller than the bindings.
+	 */
+	private HyperLogLog sketch(ByteString variable, ByteString[] triple, int pos, int precision) {
+		RelationSketches sketches = relation2sketches.get(triple[1]);
+		if (sketches == null) {
+			relation2sketches.putIfAbsent(triple[1], new RelationSketches());
+			sketches = relation2sketches.get(triple[1]);
+		}
+		ByteString other = triple[2 - pos];
+		if (isVariable(other)) {
+			HyperLogLog sketch = pos == 0 ? sketches.subjects : sketches.objects;
+			if (sketch == null) {
+				Map<ByteString, IntHashMap<ByteString>> index = pos == 0 ?
+						relation2subject2object.get(triple[1]) : relation2object2subject.get(triple[1]);
+				sketch = sketch(index == null ? Collections.<ByteString>emptySet() : index.keySet(), precision);
+				if (pos == 0)
+					sketches.subjects = sketch;
+				else
+					sketches.objects = sketch;
+			}
+			return sketch;
+		}
+		Map<ByteString, HyperLogLog> cache = pos == 0 ? sketches.subjectsOf : sketches.objectsOf;
+		HyperLogLog sketch = cache.get(other);
+		if (sketch == null) {
+			Set<ByteString> bindings = selectDistinct(variable, KB.triples(triple));
+			sketch = sketch(bindings, precision);
+			if (bindings.size() >= sketch.memory())
+				cache.put(other, sketch);
+		}
+		return sketch;
+	}
+
+	private HyperLogLog sketch(Collection<ByteString> terms, int precision) {
+		TermDictionary dictionary = getDictionary();
+		HyperLogLog sketch = new HyperLogLog(precision);
+		for (ByteString term : terms)
+			sketch.add(dictionary.getOrAdd(term));
+		return sketch;
+	}
+
+	/**
+	 * Turns the answering of queries with bitmaps on or off (see {@link #selectDistinctBitmap(ByteString, List)}).
+	 * @param on
+	 */
+	public void setBitmapQueries(boolean on) {
+		bitmapQueries = on;
+	}
+
+	/**
+	 * It returns the instantiations of the variable that fulfill the query as a
+	 * bitmap of term identifiers (see {@link #getDictionary()}). Star-shaped queries, where
+	 * every triple pattern contains the variable and the other variables occur only once,
+	 * are answered by intersecting the bindings of each triple pattern, which are cached
+	 * per relation. Other queries are answered by {@link #selectDistinct(ByteString, List)}.
+	 * @param variable Projection variable
+	 * @param query The list of triple patterns
+	 * @return
+	 */
+	public CompressedBitmap selectDistinctBitmap(ByteString variable, List<ByteString[]> query) {
+		if (isBitmapQuery(variable, query))
+			return starBitmap(variable, query, false);
+		return bitmap(selectDistinct(variable, query));
+	}
+
+	/**
+	 * TRUE if star-shaped queries are answered with bitmaps and the query is one of them.
+	 */
+	private boolean isBitmapQuery(ByteString variable, List<ByteString[]> query) {
+		return bitmapQueries && isStarQuery(variable, query);
+	}
+
+	/**
+	 * It returns TRUE if the query is star-shaped around the variable, i.e., every triple
+	 * pattern contains the variable once, any other variable occurs only once in the query
+	 * and there are no special relations.
+	 * @param variable
+	 * @param query
+	 * @return
+	 */
+	public boolean isStarQuery(ByteString variable, List<ByteString[]> query) {
+		if (query.isEmpty())
+			return false;
+		Set<ByteString> others = new HashSet<ByteString>();
+		for (ByteString[] triple : query) {
+			if (isSpecialAtom(triple))
+				return false;
+			int occurrences = 0;
+			for (ByteString term : triple) {
+				if (term.equals(variable))
+					++occurrences;
+				else if (isVariable(term) && !others.add(term))
+					return false;
+			}
+			if (occurrences != 1)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Intersects the bindings of the variable in each triple pattern of a star-shaped query,
+	 * starting with the smallest ones.
+	 * @param shared If true, the result may be a cached bitmap and must not be modified.
+	 */
+	private CompressedBitmap starBitmap(ByteString variable, List<ByteString[]> query, boolean shared) {
+		List<CompressedBitmap> bindings = new ArrayList<CompressedBitmap>(query.size());
+		for (ByteString[] triple : query) {
+			CompressedBitmap bitmap = bindings(variable, triple);
+			if (bitmap.isEmpty())
+				return new CompressedBitmap();
+			bindings.add(bitmap);
+		}
+		Collections.sort(bindings, new Comparator<CompressedBitmap>() {
+			public int compare(CompressedBitmap b1, CompressedBitmap b2) {
+				return Long.compare(b1.cardinality(), b2.cardinality());
+			}
+		});
+		CompressedBitmap result = bindings.get(0);
+		for (int i = 1; i < bindings.size() && !result.isEmpty(); ++i)
+			result = result.and(bindings.get(i));
+		return shared || bindings.size() > 1 ? result : result.or(new CompressedBitmap());
+	}
+
+	/**
+	 * Bindings of the variable in a single triple pattern as a bitmap. Patterns of the
+	 * form (?x, r, ?y) and (?y, r, ?x) use the bitmaps cached per relation.
+	 */
+	private CompressedBitmap bindings(ByteString variable, ByteString[] triple) {
+		int pos = varpos(variable, triple);
+		if (pos != 1 && !isVariable(triple[1]) && isVariable(triple[2 - pos]))
+			return relationBitmap(triple[1], pos);
+		return bitmap(selectDistinct(variable, KB.triples(triple)));
+	}
+
+	/**
+	 * The subjects (pos = 0) or objects (pos = 2) of the relation as a cached bitmap.
+	 */
+	private CompressedBitmap relationBitmap(ByteString relation, int pos) {
+		Map<ByteString, CompressedBitmap> cache = pos == 0 ? relation2subjectBitmap : relation2objectBitmap;
+		CompressedBitmap bitmap = cache.get(relation);
+		if (bitmap == null) {
+			bitmap = bitmap(pos == 0 ? relation2subject2object.get(relation) : relation2object2subject.get(relation));
+			cache.put(relation, bitmap);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * It restricts the bindings of a variable in a star-shaped query (see {@link #isStarQuery(ByteString, List)})
+	 * to those that also satisfy a new triple pattern. The other variables of the triple must
+	 * not occur in the query, so that the result is the bindings of the query with the triple.
+	 * @param bindings Result of {@link #selectDistinctBitmap(ByteString, List)} for the query
+	 * @param variable
+	 * @param triple
+	 * @return A new bitmap
+	 */
+	public CompressedBitmap extendBindings(CompressedBitmap bindings, ByteString variable, ByteString[] triple) {
+		return bindings.and(bindings(variable, triple));
+	}
+
+	/**
+	 * For each relation r, it counts the bindings of a variable that also occur as
+	 * subjects (position 0) or objects (position 2) of r. If the bindings are those of
+	 * ?x in a star-shaped query, the result is that of frequentBindingsOf(?r, ?x, query)
+	 * after adding the pattern (?x, ?r, ?y), or (?y, ?r, ?x), with fresh variables.
+	 * @param bindings
+	 * @param position
+	 * @return The number of bindings per relation, for the relations with at least one
+	 */
+	public IntHashMap<ByteString> countBindingsPerRelation(CompressedBitmap bindings, int position) {
+		if (position != 0 && position != 2)
+			throw new IllegalArgumentException("The position must be 0 (subject) or 2 (object): " + position);
+		IntHashMap<ByteString> result = new IntHashMap<>();
+		for (ByteString relation : relationSize) {
+			long count = bindings.andCardinality(relationBitmap(relation, position));
+			if (count > 0)
+				result.put(relation, (int) count);
+		}
+		return result;
+	}
+
+	/**
+	 * For each value y of the relation, it counts the bindings of a variable ?x such that
+	 * (?x, relation, y) holds (position 0) or (y, relation, ?x) holds (position 2). If the
+	 * bindings are those of ?x in a star-shaped query, the result is that of
+	 * frequentBindingsOf(?y, ?x, query) after adding the corresponding pattern.
+	 * @param bindings
+	 * @param relation
+	 * @param position Position of ?x in the pattern
+	 * @return
+	 */
+	public IntHashMap<ByteString> countBindingsPerValue(CompressedBitmap bindings, ByteString relation, int position) {
+		if (position != 0 && position != 2)
+			throw new IllegalArgumentException("The position must be 0 (subject) or 2 (object): " + position);
+		IntHashMap<ByteString> result = new IntHashMap<>();
+		Map<ByteString, IntHashMap<ByteString>> index = (position == 0 ? relation2subject2object
+				: relation2object2subject).get(relation);
+		if (index == null)
+			return result;
+		TermDictionary dictionary = getDictionary();
+		PrimitiveIterator.OfInt it = bindings.iterator();
+		while (it.hasNext()) {
+			IntHashMap<ByteString> values = index.get(dictionary.get(it.nextInt()));
+			if (values != null)
+				for (ByteString value : values)
+					result.increase(value);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the given terms as a bitmap of term identifiers.
+	 */
+	private CompressedBitmap bitmap(Collection<ByteString> terms) {
+		TermDictionary dictionary = getDictionary();
+		int[] ids = new int[terms.size()];
+		int n = 0;
+		for (ByteString term : terms) {
+			if (n == ids.length)
+				ids = Arrays.copyOf(ids, n * 2 + 1);
+			ids[n++] = dictionary.getOrAdd(term);
+		}
+		Arrays.sort(ids, 0, n);
+		return CompressedBitmap.of(ids, n);
+	}
+
 	// ---------------------------------------------------------------------------
 	// Selection
 	// ---------------------------------------------------------------------------
@@ -1853,6 +2932,9 @@ public class KB {
 	/** returns the instances that fulfill a certain condition */
 	public Set<ByteString> selectDistinct(ByteString variable,
 			List<ByteString[]> query) {
+		QueryCache cache = cacheFor(query);
+		if (cache != null)
+			return cache.selectDistinct(this, variable, query);
 		// Only one triple
 		if (query.size() == 1) {
 			ByteString[] triple = query.get(0);
@@ -3036,8 +4118,6 @@ public class KB {
 			return ((ByteString) s);
 		String str = s.toString();
 		int pos = str.indexOf("\"^^");
-		if (pos != -1)
-			str = str.substring(0, pos + 1);
 		//for(String url : prefixList){
 			//if(str.contains(url)){
 			//str = str.replace(url, prefixMapForCompression.get(url));
@@ -3046,7 +4126,7 @@ public class KB {
 		//
 		//
 		// }
-		return (ByteString.of(str));
+		return (ByteString.of(str, 0, pos == -1 ? str.length() : pos + 1));
 	}
 
 	/** Makes a list of triples */
@@ -3968,41 +5048,45 @@ public class KB {
 	 * @return
 	 */
 	public boolean delete(ByteString subject, ByteString predicate, ByteString object) {
-		if (contains(subject, predicate, object)) {
-			subjectSize.decrease(subject);
-			relationSize.decrease(predicate);
-			objectSize.decrease(object);
-			removeFromIndex(subject, predicate, object, subject2relation2object);
+		checkNotFrozen();
+		// The first index decides which thread deletes the fact
+		if (removeFromIndex(subject, predicate, object, subject2relation2object)) {
 			removeFromIndex(subject, object, predicate, subject2object2relation);
 			removeFromIndex(predicate, subject, object, relation2subject2object);
 			removeFromIndex(predicate, object, subject, relation2object2subject);
 			removeFromIndex(object, subject, predicate, object2subject2relation);
 			removeFromIndex(object, predicate, subject, object2relation2subject);
-			--size;
+			uncountFact(subject, predicate, object);
 			return true;
 		}
 		
 		return false;
 	}
 	
-	/** Remove a triple from an index **/
-	protected void removeFromIndex(
+	/** Remove a triple from an index. It returns TRUE if the triple was in the index. **/
+	protected boolean removeFromIndex(
 			ByteString s1,
 			ByteString s2,
 			ByteString s3,
 			Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> index) {
+		if (index instanceof LazyIndexMap && !((LazyIndexMap) index).isBuilt())
+			return false;
 		Map<ByteString, IntHashMap<ByteString>> imap2 = index.get(s1);
-		IntHashMap<ByteString> imap3 = imap2.get(s2);
-		if (imap3 == null) {
-			System.out.println("Problem for prediction " + s1 + " " + s2 + " " + s3);
-		}
-		imap3.remove(s3);
-		if (imap3.isEmpty()) {
-			imap2.remove(s2);
-			if (imap2.isEmpty()) {
-				index.remove(s1);
+		if (imap2 == null)
+			return false;
+		synchronized (imap2) {
+			IntHashMap<ByteString> imap3 = imap2.get(s2);
+			if (imap3 == null || !imap3.contains(s3))
+				return false;
+			imap3.remove(s3);
+			if (imap3.isEmpty()) {
+				imap2.remove(s2);
+				if (imap2.isEmpty()) {
+					index.remove(s1);
+				}
 			}
 		}
+		return true;
 	}
 	
 	/**
@@ -0,0 +1,250 @@
+package amie.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import javatools.administrative.Announce;
+import javatools.datatypes.ByteString;
+import javatools.parsers.NumberFormatter;
+
+/**
+ * Class KBImage
+ *
+ * Reads and writes binary images of a frozen {@link IntKB}, so that a KB can be
+ * opened without parsing its TSV files again. The layout of an image is:
+ *
+ * <pre>
+ * header:     magic (8 bytes), version (int), length (int) and UTF-8 bytes of the description,
+ *             number of terms (int), number of facts (long)
+ * dictionary: for each term in identifier order, its length (int) and its characters, one
+ *             byte each (ISO-8859-1) as in ByteString
+ * indexes:    for each permutation (SRO, ROS, OSR, RSO, ORS, SOR) the five arrays of the
+ *             {@link CsrTripleIndex}, each one as its length (long) followed by the ints
+ * </pre>
+ *
+ * Header and dictionary use the big-endian format of DataOutput. Index arrays are
+ * little-endian and aligned to 8 bytes; they are mapped with FileChannel.map when
+ * opening the image, so they are loaded lazily by the OS and several processes can
+ * share them through the page cache.
+ *
+ * The description is a free text given by the writer, e.g., the options that determine
+ * the content of the KB. An image is only opened if the reader expects the same description.
+ */
+public class KBImage {
+
+	/** First bytes of every image */
+	private static final byte[] MAGIC = "AMIEKBIM".getBytes(StandardCharsets.US_ASCII);
+
+	/** Version of the format. Increase it on any change of the layout. */
+	public static final int VERSION = 3;
+
+	/** Byte order of the index arrays */
+	private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	/** Number of permutation indexes */
+	private static final int N_INDEXES = 6;
+
+	/** Number of arrays per index */
+	private static final int N_ARRAYS = 5;
+
+	/**
+	 * It writes the image of the given KB with an empty description. The KB is frozen if it was not.
+	 * @param kb
+	 * @param path
+	 * @throws IOException
+	 */
+	public static void write(IntKB kb, Path path) throws IOException {
+		write(kb, path, "");
+	}
+
+	/**
+	 * It writes the image of the given KB. The KB is frozen if it was not.
+	 * @param kb
+	 * @param path
+	 * @param description Text that the readers of the image must expect
+	 * @throws IOException
+	 */
+	public static void write(IntKB kb, Path path, String description) throws IOException {
+		long time = System.currentTimeMillis();
+		Announce.doing("Writing KB image " + path);
+		kb.freeze();
+		TermDictionary dictionary = kb.getDictionary();
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+			out.write(MAGIC);
+			out.writeInt(VERSION);
+			byte[] text = description.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(text.length);
+			out.write(text);
+			out.writeInt(dictionary.size());
+			out.writeLong(kb.size());
+			for (int id = 0; id < dictionary.size(); ++id) {
+				byte[] bytes = dictionary.get(id).toString().getBytes(StandardCharsets.ISO_8859_1);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			out.flush();
+
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ORDER);
+			for (int i = 0; i < N_INDEXES; ++i) {
+				IntBuffer[] arrays = ((CsrTripleIndex) kb.getIndex(i)).arrays();
+				for (IntBuffer array : arrays) {
+					pad(channel, buffer);
+					buffer.putLong(array.limit());
+					array.rewind();
+					while (array.hasRemaining()) {
+						if (buffer.remaining() < 4)
+							flush(channel, buffer);
+						buffer.putInt(array.get());
+					}
+					flush(channel, buffer);
+				}
+			}
+		}
+		Announce.done("Wrote " + kb.size() + " facts in "
+				+ NumberFormatter.formatMS(System.currentTimeMillis() - time));
+	}
+
+	/** Writes zeros until the end of the file is aligned to 8 bytes */
+	private static void pad(FileChannel channel, ByteBuffer buffer) throws IOException {
+		flush(channel, buffer);
+		long position = channel.position();
+		while (position % 8 != 0) {
+			buffer.put((byte) 0);
+			++position;
+		}
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * It opens an image written by {@link #write(IntKB, Path)}, whatever its description.
+	 * @param path
+	 * @return
+	 * @throws IOException If the file is not an image or has an unsupported version.
+	 */
+	public static IntKB open(Path path) throws IOException {
+		return open(path, null);
+	}
+
+	/**
+	 * It opens an image written by {@link #write(IntKB, Path, String)}. The term dictionary
+	 * is read into memory while the indexes stay memory-mapped. The resulting KB is frozen.
+	 * @param path
+	 * @param description Expected description of the image, null to accept any
+	 * @return
+	 * @throws IOException If the file is not an image, has an unsupported version or
+	 * another description.
+	 */
+	public static IntKB open(Path path, String description) throws IOException {
+		long time = System.currentTimeMillis();
+		Announce.doing("Opening KB image " + path);
+		TermDictionary dictionary = new TermDictionary();
+		IntTripleIndex[] indexes = new IntTripleIndex[N_INDEXES];
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC))
+				throw new IOException(path + " is not a KB image");
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported KB image version " + version
+						+ " (expected " + VERSION + ")");
+			byte[] text = new byte[in.readInt()];
+			in.readFully(text);
+			String written = new String(text, StandardCharsets.UTF_8);
+			if (description != null && !description.equals(written))
+				throw new IOException("The KB image " + path + " was written for \"" + written
+						+ "\", not for \"" + description + "\"");
+			int nTerms = in.readInt();
+			long nFacts = in.readLong();
+			long position = MAGIC.length + 4 + 4 + text.length + 4 + 8;
+			byte[] bytes = new byte[256];
+			for (int id = 0; id < nTerms; ++id) {
+				int length = in.readInt();
+				if (length > bytes.length)
+					bytes = new byte[Math.max(length, bytes.length * 2)];
+				in.readFully(bytes, 0, length);
+				position += 4 + length;
+				ByteString term = ByteString.of(bytes, 0, length);
+				if (dictionary.getOrAdd(term) != id)
+					throw new IOException("Corrupted KB image " + path + ": duplicated term " + term);
+			}
+
+			ByteBuffer lengthBuffer = ByteBuffer.allocate(8).order(ORDER);
+			for (int i = 0; i < N_INDEXES; ++i) {
+				IntBuffer[] arrays = new IntBuffer[N_ARRAYS];
+				for (int j = 0; j < N_ARRAYS; ++j) {
+					position = (position + 7) / 8 * 8;
+					lengthBuffer.clear();
+					while (lengthBuffer.hasRemaining())
+						if (channel.read(lengthBuffer, position + lengthBuffer.position()) < 0)
+							throw new IOException("Truncated KB image " + path);
+					long length = lengthBuffer.getLong(0);
+					position += 8;
+					arrays[j] = map(channel, position, length);
+					position += length * 4;
+				}
+				indexes[i] = new CsrTripleIndex(arrays[0], arrays[1], arrays[2], arrays[3], arrays[4]);
+			}
+
+			IntKB kb = new IntKB(dictionary, indexes);
+			kb.recount();
+			kb.frozen = true;
+			if (kb.size() != nFacts)
+				throw new IOException("Corrupted KB image " + path + ": expected " + nFacts
+						+ " facts, found " + kb.size());
+			Announce.done("Opened " + nFacts + " facts in "
+					+ NumberFormatter.formatMS(System.currentTimeMillis() - time));
+			return kb;
+		}
+	}
+
+	/**
+	 * Maps an array of ints of the image. Arrays that do not fit in a single mapping
+	 * (2GB) are read into the heap instead.
+	 */
+	private static IntBuffer map(FileChannel channel, long position, long length) throws IOException {
+		long bytes = length * 4;
+		if (bytes <= Integer.MAX_VALUE) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, position, bytes).order(ORDER).asIntBuffer();
+		}
+		int[] array = new int[(int) length];
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ORDER);
+		int pos = 0;
+		long offset = position;
+		while (pos < array.length) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), (array.length - pos) * 4L));
+			while (buffer.hasRemaining())
+				if (channel.read(buffer, offset + buffer.position()) < 0)
+					throw new IOException("Truncated KB image");
+			offset += buffer.limit();
+			buffer.flip();
+			while (buffer.hasRemaining())
+				array[pos++] = buffer.getInt();
+		}
+		return IntBuffer.wrap(array);
+	}
+}
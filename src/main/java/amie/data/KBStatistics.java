@@ -0,0 +1,305 @@
+package amie.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+
+import javatools.administrative.Announce;
+import javatools.datatypes.ByteString;
+import javatools.datatypes.IntHashMap;
+import javatools.parsers.NumberFormatter;
+
+/**
+ * Class KBStatistics
+ *
+ * Cardinality statistics of a KB used by the {@link QueryPlanner}: the number of facts
+ * and of distinct subjects and objects, globally and per relation, and histograms of the
+ * number of facts per subject and per object. Bucket i of a histogram covers the degrees
+ * in [2^i, 2^(i+1)) and stores the number of terms and the sum of their degrees.
+ * They also keep a copy of the overlap tables of the KB (see {@link KB#buildOverlapTables()}),
+ * from which the planner estimates the selectivity of the joins.
+ *
+ * The statistics can be written to a file and read back, so that they are computed only
+ * once per KB (see {@link #write(Path)}).
+ */
+public class KBStatistics {
+
+	/** First bytes of every statistics file */
+	private static final byte[] MAGIC = "AMIESTAT".getBytes(StandardCharsets.US_ASCII);
+
+	/** Version of the format. Increase it on any change of the layout. */
+	public static final int VERSION = 2;
+
+	/** Number of buckets of the degree histograms */
+	private static final int BUCKETS = 32;
+
+	/** Statistics of a set of facts, either a relation or the whole KB */
+	public static class Cardinality {
+
+		/** Number of facts */
+		public final long size;
+
+		/** Number of distinct subjects */
+		public final int subjects;
+
+		/** Number of distinct objects */
+		public final int objects;
+
+		/** Degree histograms: number of terms and sum of degrees per bucket */
+		private final long[] subjectTerms, subjectFacts, objectTerms, objectFacts;
+
+		private Cardinality(long size, int subjects, int objects) {
+			this.size = size;
+			this.subjects = subjects;
+			this.objects = objects;
+			this.subjectTerms = new long[BUCKETS];
+			this.subjectFacts = new long[BUCKETS];
+			this.objectTerms = new long[BUCKETS];
+			this.objectFacts = new long[BUCKETS];
+		}
+
+		/**
+		 * Expected number of facts of a subject that is reached by following a fact, i.e.,
+		 * the mean degree weighted by degree. On skewed relations it is much larger than the
+		 * plain mean, because joins reach the hubs more often.
+		 */
+		public double subjectDegree() {
+			return weightedDegree(subjectTerms, subjectFacts);
+		}
+
+		/** Expected number of facts of an object that is reached by following a fact */
+		public double objectDegree() {
+			return weightedDegree(objectTerms, objectFacts);
+		}
+
+		private double weightedDegree(long[] terms, long[] facts) {
+			double squares = 0;
+			double total = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				if (terms[i] > 0) {
+					// Within a bucket all the terms are assumed to have the mean degree
+					squares += (double) facts[i] * facts[i] / terms[i];
+					total += facts[i];
+				}
+			}
+			return total == 0 ? 0 : squares / total;
+		}
+
+		private static void count(long[] terms, long[] facts, int degree) {
+			int bucket = 31 - Integer.numberOfLeadingZeros(Math.max(1, degree));
+			++terms[bucket];
+			facts[bucket] += degree;
+		}
+	}
+
+	/** Statistics of the whole KB */
+	private Cardinality total;
+
+	/** Statistics of each relation */
+	private final Map<ByteString, Cardinality> relations = new ConcurrentHashMap<ByteString, Cardinality>();
+
+	/** Subject-subject, subject-object and object-object overlaps between relations */
+	private final List<Map<ByteString, IntHashMap<ByteString>>> overlaps = Arrays.asList(
+			new ConcurrentHashMap<ByteString, IntHashMap<ByteString>>(),
+			new ConcurrentHashMap<ByteString, IntHashMap<ByteString>>(),
+			new ConcurrentHashMap<ByteString, IntHashMap<ByteString>>());
+
+	private KBStatistics() {
+	}
+
+	/**
+	 * It returns the statistics of the whole KB.
+	 * @return
+	 */
+	public Cardinality total() {
+		return total;
+	}
+
+	/**
+	 * It returns the statistics of the relation or null if the relation has no facts.
+	 * @param relation
+	 * @return
+	 */
+	public Cardinality relation(ByteString relation) {
+		return relations.get(relation);
+	}
+
+	/**
+	 * Number of relations
+	 */
+	public int size() {
+		return relations.size();
+	}
+
+	/**
+	 * It copies the overlap tables into the KB, unless the KB has built its own. The KB
+	 * keeps them until facts of a relation are added or deleted.
+	 * @param kb
+	 */
+	public void copyOverlapTables(KB kb) {
+		if (kb.overlapTablesBuilt)
+			return;
+		copy(overlaps, Arrays.asList(kb.subject2subjectOverlap, kb.subject2objectOverlap, kb.object2objectOverlap));
+		kb.changedRelations.clear();
+		kb.overlapTablesBuilt = true;
+	}
+
+	private static void copy(List<Map<ByteString, IntHashMap<ByteString>>> from,
+			List<Map<ByteString, IntHashMap<ByteString>>> to) {
+		for (int i = 0; i < from.size(); ++i) {
+			for (Map.Entry<ByteString, IntHashMap<ByteString>> row : from.get(i).entrySet()) {
+				IntHashMap<ByteString> copy = new IntHashMap<ByteString>();
+				copy.add(row.getValue());
+				to.get(i).put(row.getKey(), copy);
+			}
+		}
+	}
+
+	/**
+	 * It computes the statistics of the KB, one relation per core, and builds the overlap
+	 * tables of the KB if they are not up to date.
+	 * @param kb
+	 * @return
+	 */
+	public static KBStatistics compute(final KB kb) {
+		long time = System.currentTimeMillis();
+		final KBStatistics statistics = new KBStatistics();
+		final List<ByteString> relations = new ArrayList<ByteString>(kb.relationSize);
+		KB.parallelFor(relations.size(), new IntConsumer() {
+			public void accept(int i) {
+				ByteString relation = relations.get(i);
+				Map<ByteString, IntHashMap<ByteString>> subjects = kb.relation2subject2object.get(relation);
+				Map<ByteString, IntHashMap<ByteString>> objects = kb.relation2object2subject.get(relation);
+				if (subjects == null || objects == null)
+					return;
+				Cardinality cardinality = new Cardinality(kb.relationSize.get(relation, 0),
+						subjects.size(), objects.size());
+				for (IntHashMap<ByteString> values : subjects.values())
+					Cardinality.count(cardinality.subjectTerms, cardinality.subjectFacts, values.size());
+				for (IntHashMap<ByteString> values : objects.values())
+					Cardinality.count(cardinality.objectTerms, cardinality.objectFacts, values.size());
+				statistics.relations.put(relation, cardinality);
+			}
+		});
+		Cardinality total = new Cardinality(kb.size(), kb.subjectSize.size(), kb.objectSize.size());
+		for (ByteString subject : kb.subjectSize)
+			Cardinality.count(total.subjectTerms, total.subjectFacts, kb.subjectSize.get(subject));
+		for (ByteString object : kb.objectSize)
+			Cardinality.count(total.objectTerms, total.objectFacts, kb.objectSize.get(object));
+		statistics.total = total;
+		kb.buildOverlapTables();
+		copy(Arrays.asList(kb.subject2subjectOverlap, kb.subject2objectOverlap, kb.object2objectOverlap),
+				statistics.overlaps);
+		Announce.message("Statistics of " + relations.size() + " relations computed in "
+				+ NumberFormatter.formatMS(System.currentTimeMillis() - time));
+		return statistics;
+	}
+
+	/**
+	 * It writes the statistics to a file.
+	 * @param path
+	 * @throws IOException
+	 */
+	public void write(Path path) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+			out.write(MAGIC);
+			out.writeInt(VERSION);
+			write(out, total);
+			out.writeInt(relations.size());
+			for (Map.Entry<ByteString, Cardinality> entry : relations.entrySet()) {
+				write(out, entry.getKey());
+				write(out, entry.getValue());
+			}
+			for (Map<ByteString, IntHashMap<ByteString>> table : overlaps) {
+				out.writeInt(table.size());
+				for (Map.Entry<ByteString, IntHashMap<ByteString>> row : table.entrySet()) {
+					write(out, row.getKey());
+					out.writeInt(row.getValue().size());
+					for (ByteString column : row.getValue()) {
+						write(out, column);
+						out.writeInt(row.getValue().get(column));
+					}
+				}
+			}
+		}
+	}
+
+	private static void write(DataOutputStream out, ByteString term) throws IOException {
+		byte[] bytes = term.toString().getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static void write(DataOutputStream out, Cardinality cardinality) throws IOException {
+		out.writeLong(cardinality.size);
+		out.writeInt(cardinality.subjects);
+		out.writeInt(cardinality.objects);
+		for (long[] histogram : Arrays.asList(cardinality.subjectTerms, cardinality.subjectFacts,
+				cardinality.objectTerms, cardinality.objectFacts))
+			for (long value : histogram)
+				out.writeLong(value);
+	}
+
+	/**
+	 * It reads statistics written by {@link #write(Path)}.
+	 * @param path
+	 * @return
+	 * @throws IOException If the file is not a statistics file of the current version
+	 */
+	public static KBStatistics read(Path path) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC))
+				throw new IOException(path + " is not a statistics file");
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported statistics version " + version + " in " + path);
+			KBStatistics statistics = new KBStatistics();
+			statistics.total = read(in);
+			int n = in.readInt();
+			for (int i = 0; i < n; ++i)
+				statistics.relations.put(readTerm(in), read(in));
+			for (Map<ByteString, IntHashMap<ByteString>> table : statistics.overlaps) {
+				int rows = in.readInt();
+				for (int i = 0; i < rows; ++i) {
+					ByteString relation = readTerm(in);
+					IntHashMap<ByteString> row = new IntHashMap<ByteString>();
+					int columns = in.readInt();
+					for (int j = 0; j < columns; ++j)
+						row.put(readTerm(in), in.readInt());
+					table.put(relation, row);
+				}
+			}
+			return statistics;
+		}
+	}
+
+	private static ByteString readTerm(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return ByteString.of(new String(bytes, StandardCharsets.UTF_8));
+	}
+
+	private static Cardinality read(DataInputStream in) throws IOException {
+		Cardinality cardinality = new Cardinality(in.readLong(), in.readInt(), in.readInt());
+		for (long[] histogram : Arrays.asList(cardinality.subjectTerms, cardinality.subjectFacts,
+				cardinality.objectTerms, cardinality.objectFacts))
+			for (int i = 0; i < BUCKETS; ++i)
+				histogram[i] = in.readLong();
+		return cardinality;
+	}
+}
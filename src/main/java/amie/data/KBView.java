@@ -0,0 +1,161 @@
+package amie.data;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javatools.datatypes.ByteString;
+import javatools.datatypes.IntHashMap;
+
+/**
+ * Class KBView
+ *
+ * KB with the facts of a base KB whose subject is in a given set, e.g., a cluster of the
+ * entities of a complete KB. The subjects are a bitmap of term identifiers of the base KB,
+ * whose dictionary the view shares, so the bitmaps of the view and of the base can be
+ * combined directly. The sets of objects of each subject and relation are shared with the
+ * base as well: the subject-relation-object and relation-subject-object indexes of the view
+ * only hold references to them. The other four indexes are built from these the first time
+ * they are accessed (see {@link KB.LazyIndexMap}), so a view does not pay for the indexes
+ * that the mining does not use.
+ *
+ * Facts can be added to the view (e.g., the types of a cluster) without changing the base,
+ * but not removed. The base must be frozen.
+ */
+public class KBView extends KB {
+
+	/** KB of the facts */
+	protected final KB base;
+
+	/** Identifiers of the subjects of the view in the dictionary of the base */
+	protected final CompressedBitmap subjects;
+
+	/** Relations with facts that are not in the base */
+	protected final Set<ByteString> addedRelations = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Sets of objects that belong to the view, the others are shared with the base. The
+	 * sets are compared by identity, since a base may return a new read-only set on
+	 * every lookup (see {@link IntKB}).
+	 */
+	private final Set<IntHashMap<ByteString>> ownObjects = Collections.synchronizedSet(
+			Collections.newSetFromMap(new IdentityHashMap<IntHashMap<ByteString>, Boolean>()));
+
+	/**
+	 * @param base A frozen KB
+	 * @param subjects Identifiers of the subjects in the dictionary of the base
+	 */
+	public KBView(KB base, CompressedBitmap subjects) {
+		super(EnumSet.of(Permutation.SRO, Permutation.RSO));
+		if (!base.isFrozen())
+			throw new IllegalArgumentException("The base of a view must be frozen");
+		this.base = base;
+		this.subjects = subjects;
+		TermDictionary dictionary = base.getDictionary();
+		PrimitiveIterator.OfInt it = subjects.iterator();
+		while (it.hasNext()) {
+			ByteString subject = dictionary.get(it.nextInt());
+			Map<ByteString, IntHashMap<ByteString>> relations = base.subject2relation2object.get(subject);
+			if (relations == null)
+				continue;
+			for (Map.Entry<ByteString, IntHashMap<ByteString>> entry : relations.entrySet())
+				share(subject, entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Adds the facts of a subject and relation of the base, whose set of objects is shared.
+	 */
+	private void share(ByteString subject, ByteString relation, IntHashMap<ByteString> objects) {
+		row(subject2relation2object, subject).put(relation, objects);
+		row(relation2subject2object, relation).put(subject, objects);
+		countFacts(subject, relation, objects);
+	}
+
+	private static Map<ByteString, IntHashMap<ByteString>> row(
+			Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> index, ByteString key) {
+		Map<ByteString, IntHashMap<ByteString>> row = index.get(key);
+		if (row == null) {
+			row = new IdentityHashMap<ByteString, IntHashMap<ByteString>>();
+			Map<ByteString, IntHashMap<ByteString>> previous = index.putIfAbsent(key, row);
+			if (previous != null)
+				row = previous;
+		}
+		return row;
+	}
+
+	/** The KB of the facts of the view */
+	public KB getBase() {
+		return base;
+	}
+
+	/** Identifiers of the subjects of the view in the dictionary of the base */
+	public CompressedBitmap getSubjects() {
+		return subjects;
+	}
+
+	/**
+	 * It returns TRUE if the facts of the relation in the view are exactly those of the base
+	 * whose subject is in the view, i.e., no fact of the relation was added to the view.
+	 */
+	public boolean isRestriction(ByteString relation) {
+		return !addedRelations.contains(relation);
+	}
+
+	/**
+	 * Returns the dictionary of the base.
+	 */
+	@Override
+	public TermDictionary getDictionary() {
+		return base.getDictionary();
+	}
+
+	/**
+	 * Adds a fact to the view only. The objects of the subject and relation are copied
+	 * first if they are shared with the base.
+	 */
+	@Override
+	protected boolean add(ByteString subject, ByteString relation, ByteString object) {
+		checkNotFrozen();
+		Map<ByteString, IntHashMap<ByteString>> relations = row(subject2relation2object, subject);
+		IntHashMap<ByteString> objects;
+		synchronized (relations) {
+			objects = relations.get(relation);
+			if (objects != null && objects.contains(object))
+				return false;
+			if (objects == null || !ownObjects.contains(objects)) {
+				IntHashMap<ByteString> copy = new IntHashMap<ByteString>();
+				if (objects != null) {
+					for (ByteString value : objects)
+						copy.add(value);
+				}
+				ownObjects.add(copy);
+				relations.put(relation, objects = copy);
+			}
+			objects.add(object);
+		}
+		Map<ByteString, IntHashMap<ByteString>> subject2objects = row(relation2subject2object, relation);
+		synchronized (subject2objects) {
+			subject2objects.put(subject, objects);
+		}
+		add(relation, object, subject, relation2object2subject);
+		add(object, subject, relation, object2subject2relation);
+		add(object, relation, subject, object2relation2subject);
+		add(subject, object, relation, subject2object2relation);
+		addedRelations.add(relation);
+		countFact(subject, relation, object);
+		return true;
+	}
+
+	/**
+	 * Facts cannot be removed from a view, since it shares them with its base.
+	 */
+	@Override
+	public boolean delete(ByteString subject, ByteString predicate, ByteString object) {
+		throw new UnsupportedOperationException("Facts cannot be removed from a view of a KB");
+	}
+}
@@ -0,0 +1,219 @@
+package amie.data;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javatools.datatypes.ByteString;
+
+/**
+ * Class QueryCache
+ *
+ * Bounded cache of the results of {@link KB#countDistinct(ByteString, List)} and
+ * {@link KB#selectDistinct(ByteString, List)}, keyed by the query with its variables
+ * renamed (see {@link CanonicalQuery}). Every entry weighs the size of its key plus the
+ * number of values it stores, and the least recently used entries are evicted when the
+ * total weight exceeds the capacity. Results too heavy for the cache are not stored.
+ * A cached set of bindings also answers the count of the same query.
+ *
+ * The cache is split into segments with their own lock, so that concurrent miners rarely
+ * wait for each other. Only the queries issued from outside the KB are cached: the
+ * queries that the KB evaluates recursively for each instantiation of a variable would
+ * only flood the cache.
+ */
+public class QueryCache {
+
+	/** Number of segments */
+	private static final int SEGMENTS = 16;
+
+	/** Maximal weight of each segment */
+	private final long segmentCapacity;
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	private final AtomicLong weight = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	/** TRUE while the current thread evaluates a query of the cache */
+	private final ThreadLocal<boolean[]> evaluating = new ThreadLocal<boolean[]>() {
+		protected boolean[] initialValue() {
+			return new boolean[1];
+		}
+	};
+
+	/**
+	 * @param capacity Maximal total weight of the entries
+	 */
+	public QueryCache(long capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("The capacity of the cache must be positive: " + capacity);
+		this.segmentCapacity = Math.max(1, capacity / SEGMENTS);
+		for (int i = 0; i < SEGMENTS; ++i)
+			segments[i] = new Segment();
+	}
+
+	/** A LRU map with its own lock */
+	private class Segment extends LinkedHashMap<CanonicalQuery, Object> {
+
+		private static final long serialVersionUID = 1L;
+
+		private long weight;
+
+		Segment() {
+			super(16, 0.75f, true);
+		}
+
+		synchronized Object lookup(CanonicalQuery key) {
+			return get(key);
+		}
+
+		synchronized void store(CanonicalQuery key, Object value) {
+			// An entry heavier than the segment would evict everything else
+			if (weight(key, value) > segmentCapacity)
+				return;
+			Object old = put(key, value);
+			long delta = weight(key, value) - (old == null ? 0 : weight(key, old));
+			weight += delta;
+			QueryCache.this.weight.addAndGet(delta);
+			Iterator<Map.Entry<CanonicalQuery, Object>> it = entrySet().iterator();
+			while (weight > segmentCapacity && it.hasNext()) {
+				Map.Entry<CanonicalQuery, Object> eldest = it.next();
+				long w = weight(eldest.getKey(), eldest.getValue());
+				it.remove();
+				weight -= w;
+				QueryCache.this.weight.addAndGet(-w);
+				evictions.incrementAndGet();
+			}
+		}
+
+		synchronized void reset() {
+			QueryCache.this.weight.addAndGet(-weight);
+			weight = 0;
+			clear();
+		}
+	}
+
+	private static long weight(CanonicalQuery key, Object value) {
+		return key.size() + (value instanceof Set ? ((Set<?>) value).size() : 1);
+	}
+
+	private Segment segment(CanonicalQuery key) {
+		int h = key.hashCode();
+		return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * It returns TRUE if the current thread is evaluating a cached query, in which case
+	 * the queries it issues must not go through the cache.
+	 */
+	boolean isEvaluating() {
+		return evaluating.get()[0];
+	}
+
+	/**
+	 * It returns the number of distinct bindings of the variable, computing them with
+	 * {@link KB#countDistinct(ByteString, List)} on a miss.
+	 */
+	long countDistinct(KB kb, ByteString variable, List<ByteString[]> query) {
+		CanonicalQuery key = new CanonicalQuery(query, false, variable);
+		Segment segment = segment(key);
+		Object value = segment.lookup(key);
+		if (value != null) {
+			hits.incrementAndGet();
+			return value instanceof Set ? ((Set<?>) value).size() : (Long) value;
+		}
+		misses.incrementAndGet();
+		boolean[] flag = evaluating.get();
+		long result;
+		flag[0] = true;
+		try {
+			result = kb.countDistinct(variable, query);
+		} finally {
+			flag[0] = false;
+		}
+		segment.store(key, result);
+		return result;
+	}
+
+	/**
+	 * It returns the cached number of distinct bindings of the variable, -1 if the query
+	 * is not in the cache.
+	 */
+	long peekCount(ByteString variable, List<ByteString[]> query) {
+		CanonicalQuery key = new CanonicalQuery(query, false, variable);
+		Object value = segment(key).lookup(key);
+		if (value == null)
+			return -1;
+		hits.incrementAndGet();
+		return value instanceof Set ? ((Set<?>) value).size() : (Long) value;
+	}
+
+	/**
+	 * It returns the distinct bindings of the variable, computing them with
+	 * {@link KB#selectDistinct(ByteString, List)} on a miss. The result is read-only.
+	 */
+	Set<ByteString> selectDistinct(KB kb, ByteString variable, List<ByteString[]> query) {
+		CanonicalQuery key = new CanonicalQuery(query, false, variable);
+		Segment segment = segment(key);
+		Object value = segment.lookup(key);
+		if (value instanceof Set) {
+			hits.incrementAndGet();
+			@SuppressWarnings("unchecked")
+			Set<ByteString> result = (Set<ByteString>) value;
+			return result;
+		}
+		misses.incrementAndGet();
+		boolean[] flag = evaluating.get();
+		Set<ByteString> result;
+		flag[0] = true;
+		try {
+			result = Collections.unmodifiableSet(kb.selectDistinct(variable, query));
+		} finally {
+			flag[0] = false;
+		}
+		segment.store(key, result);
+		return result;
+	}
+
+	/** Removes all the entries, e.g., after the KB has changed */
+	public void clear() {
+		if (weight.get() == 0)
+			return;
+		for (Segment segment : segments)
+			segment.reset();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/** Total weight of the entries */
+	public long getWeight() {
+		return weight.get();
+	}
+
+	@Override
+	public String toString() {
+		long total = hits.get() + misses.get();
+		return "Query cache: " + hits.get() + " hits, " + misses.get() + " misses ("
+				+ String.format("%.1f", total == 0 ? 0.0 : 100.0 * hits.get() / total) + "% hit rate), "
+				+ evictions.get() + " evictions, weight " + weight.get() + " of " + segmentCapacity * SEGMENTS;
+	}
+}
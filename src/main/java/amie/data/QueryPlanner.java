@@ -0,0 +1,214 @@
+package amie.data;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javatools.datatypes.ByteString;
+import javatools.datatypes.IntHashMap;
+
+/**
+ * Class QueryPlanner
+ *
+ * Chooses the triple pattern that the recursive evaluation of {@link KB} binds first.
+ * The choice is made from {@link KBStatistics} and the overlap tables of the KB, without
+ * looking at the facts, so it depends only on the shape of the query: its relations and
+ * which of its terms are variables. Constants are abstracted away, hence all the
+ * instantiations that the recursion produces for a query, and the queries that rule
+ * refinement produces over and over, reuse the same cached plan.
+ *
+ * The cost of binding a pattern first is the estimated number of its bindings plus, for
+ * each binding that survives the joins with the other patterns, the estimated number of
+ * bindings of the cheapest pattern left. The survival rate of a join on a variable is
+ * estimated from the overlap tables, if they have been built.
+ */
+public class QueryPlanner {
+
+	/** Maximal number of cached plans. The cache is emptied when it grows beyond. */
+	public static final int MAX_PLANS = 1 << 17;
+
+	private final KB kb;
+
+	private final KBStatistics statistics;
+
+	/** Position of the first pattern for each query shape */
+	private final Map<CanonicalQuery, Integer> plans = new ConcurrentHashMap<CanonicalQuery, Integer>();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param kb The KB whose queries are planned
+	 * @param statistics Statistics of the KB
+	 */
+	public QueryPlanner(KB kb, KBStatistics statistics) {
+		this.kb = kb;
+		this.statistics = statistics;
+	}
+
+	public KBStatistics getStatistics() {
+		return statistics;
+	}
+
+	/** Number of queries answered from the cache */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/** Number of queries that had to be planned */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/** Forgets all the cached plans */
+	public void clear() {
+		plans.clear();
+	}
+
+	/**
+	 * It returns the position of the pattern to bind first, -1 if no pattern qualifies.
+	 * The query must not contain special relations.
+	 * @param query
+	 * @param variables If not empty, only the patterns with at least one of these variables qualify
+	 * @return
+	 */
+	public int mostRestrictiveTriple(List<ByteString[]> query, ByteString... variables) {
+		CanonicalQuery shape = new CanonicalQuery(query, true, variables);
+		Integer position = plans.get(shape);
+		if (position != null) {
+			hits.incrementAndGet();
+			return position;
+		}
+		misses.incrementAndGet();
+		position = plan(query, variables);
+		if (plans.size() >= MAX_PLANS)
+			plans.clear();
+		plans.put(shape, position);
+		return position;
+	}
+
+	/** Chooses the first pattern of the query */
+	private int plan(List<ByteString[]> query, ByteString... variables) {
+		int best = -1;
+		double bestCost = Double.MAX_VALUE;
+		for (int i = 0; i < query.size(); ++i) {
+			ByteString[] triple = query.get(i);
+			if (variables.length > 0 && !containsAny(triple, variables))
+				continue;
+			double cost = cost(query, i);
+			if (cost < bestCost) {
+				best = i;
+				bestCost = cost;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Estimated work of binding the pattern at the given position first. Patterns with three
+	 * variables come last, since the recursive evaluation does not support them everywhere.
+	 */
+	private double cost(List<ByteString[]> query, int position) {
+		ByteString[] triple = query.get(position);
+		if (KB.numVariables(triple) == 3)
+			return Double.MAX_VALUE / 2;
+		double bindings = estimate(triple, null);
+		if (bindings == 0)
+			return 0;
+		double next = Double.MAX_VALUE;
+		double survival = 1;
+		for (int j = 0; j < query.size(); ++j) {
+			if (j == position)
+				continue;
+			ByteString[] other = query.get(j);
+			next = Math.min(next, estimate(other, triple));
+			survival *= survival(triple, other);
+		}
+		if (next == Double.MAX_VALUE)
+			next = 0;
+		return bindings + bindings * survival * next;
+	}
+
+	/**
+	 * Estimated number of bindings of a pattern. The variables that occur in the
+	 * pattern bound, if not null, count as constants.
+	 */
+	private double estimate(ByteString[] triple, ByteString[] bound) {
+		boolean subject = isBound(triple[0], bound);
+		boolean relation = isBound(triple[1], bound);
+		boolean object = isBound(triple[2], bound);
+		KBStatistics.Cardinality cardinality = relation && !KB.isVariable(triple[1]) ?
+				statistics.relation(triple[1]) : statistics.total();
+		if (cardinality == null)
+			return 0;
+		if (subject && object)
+			return relation ? 0 : 1;
+		if (subject)
+			return cardinality.subjectDegree();
+		if (object)
+			return cardinality.objectDegree();
+		return cardinality.size;
+	}
+
+	private static boolean isBound(ByteString term, ByteString[] bound) {
+		if (!KB.isVariable(term))
+			return true;
+		if (bound != null)
+			for (ByteString b : bound)
+				if (term.equals(b))
+					return true;
+		return false;
+	}
+
+	/**
+	 * Estimated fraction of the bindings of the first pattern that join with the other
+	 * one, computed from the overlap of the columns of their shared variables.
+	 */
+	private double survival(ByteString[] first, ByteString[] other) {
+		if (!kb.overlapTablesBuilt || KB.isVariable(first[1]) || KB.isVariable(other[1]))
+			return 1;
+		double survival = 1;
+		for (int p = 0; p <= 2; p += 2) {
+			if (!KB.isVariable(first[p]))
+				continue;
+			for (int q = 0; q <= 2; q += 2) {
+				if (!first[p].equals(other[q]))
+					continue;
+				KBStatistics.Cardinality cardinality = statistics.relation(first[1]);
+				int distinct = cardinality == null ? 0 : p == 0 ? cardinality.subjects : cardinality.objects;
+				int overlap = overlap(first[1], p, other[1], q);
+				if (distinct > 0 && overlap >= 0)
+					survival *= Math.min(1.0, (double) overlap / distinct);
+			}
+		}
+		return survival;
+	}
+
+	/** Overlap between a column of a relation and a column of another one, -1 if unknown */
+	private int overlap(ByteString relation1, int column1, ByteString relation2, int column2) {
+		Map<ByteString, IntHashMap<ByteString>> table;
+		ByteString row = relation1, column = relation2;
+		if (column1 == 0 && column2 == 0) {
+			table = kb.subject2subjectOverlap;
+		} else if (column1 == 2 && column2 == 2) {
+			table = kb.object2objectOverlap;
+		} else {
+			table = kb.subject2objectOverlap;
+			if (column1 == 2) {
+				row = relation2;
+				column = relation1;
+			}
+		}
+		IntHashMap<ByteString> overlaps = table.get(row);
+		return overlaps == null ? -1 : overlaps.get(column);
+	}
+
+	private static boolean containsAny(ByteString[] triple, ByteString[] variables) {
+		for (ByteString variable : variables)
+			if (triple[0].equals(variable) || triple[1].equals(variable) || triple[2].equals(variable))
+				return true;
+		return false;
+	}
+}
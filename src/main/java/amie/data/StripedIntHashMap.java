@@ -0,0 +1,187 @@
+package amie.data;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javatools.datatypes.IntHashMap;
+import javatools.datatypes.PeekIterator;
+
+/**
+ * IntHashMap that can be updated concurrently. The keys are split in stripes by
+ * hash code and each stripe has its own lock, so that threads counting different
+ * keys do not wait for each other.
+ *
+ * Single operations are atomic; iterations see a snapshot of each stripe, not of
+ * the whole map.
+ */
+public class StripedIntHashMap<K> extends IntHashMap<K> {
+
+	/** Number of stripes (a power of 2) */
+	private static final int STRIPES = 64;
+
+	/** Keys and values, split in stripes by hash code */
+	protected final IntHashMap<K>[] stripes;
+
+	/** Number of keys */
+	protected final AtomicInteger nKeys = new AtomicInteger();
+
+	@SuppressWarnings("unchecked")
+	public StripedIntHashMap() {
+		super(false);
+		stripes = new IntHashMap[STRIPES];
+		for (int i = 0; i < STRIPES; ++i)
+			stripes[i] = new IntHashMap<K>();
+	}
+
+	/** Stripe of the key */
+	private IntHashMap<K> stripe(Object key) {
+		int h = key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+
+	@Override
+	public int get(Object key, int defaultValue) {
+		IntHashMap<K> stripe = stripe(key);
+		synchronized (stripe) {
+			return stripe.get(key, defaultValue);
+		}
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		IntHashMap<K> stripe = stripe(key);
+		synchronized (stripe) {
+			return stripe.containsKey(key);
+		}
+	}
+
+	@Override
+	public boolean add(K key, int delta) {
+		IntHashMap<K> stripe = stripe(key);
+		boolean added;
+		synchronized (stripe) {
+			added = stripe.add(key, delta);
+		}
+		if (added)
+			nKeys.incrementAndGet();
+		return added;
+	}
+
+	@Override
+	public boolean put(K key, int value) {
+		IntHashMap<K> stripe = stripe(key);
+		boolean added;
+		synchronized (stripe) {
+			added = stripe.put(key, value);
+		}
+		if (added)
+			nKeys.incrementAndGet();
+		return added;
+	}
+
+	@Override
+	public boolean decrease(Object key) {
+		IntHashMap<K> stripe = stripe(key);
+		boolean removed;
+		synchronized (stripe) {
+			if (!stripe.decrease(key))
+				return false;
+			removed = !stripe.containsKey(key);
+		}
+		if (removed)
+			nKeys.decrementAndGet();
+		return true;
+	}
+
+	@Override
+	public boolean remove(Object key) {
+		IntHashMap<K> stripe = stripe(key);
+		boolean removed;
+		synchronized (stripe) {
+			removed = stripe.remove(key);
+		}
+		if (removed)
+			nKeys.decrementAndGet();
+		return removed;
+	}
+
+	@Override
+	public PeekIterator<K> keys() {
+		List<K> snapshot = new ArrayList<>(size());
+		for (IntHashMap<K> stripe : stripes) {
+			synchronized (stripe) {
+				for (K key : stripe.keys())
+					snapshot.add(key);
+			}
+		}
+		final Iterator<K> it = snapshot.iterator();
+		return new PeekIterator<K>() {
+			@Override
+			protected K internalNext() {
+				return it.hasNext() ? it.next() : null;
+			}
+		};
+	}
+
+	@Override
+	public int size() {
+		return nKeys.get();
+	}
+
+	@Override
+	public void clear() {
+		for (IntHashMap<K> stripe : stripes) {
+			synchronized (stripe) {
+				nKeys.addAndGet(-stripe.size());
+				stripe.clear();
+			}
+		}
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof IntHashMap<?>))
+			return false;
+		IntHashMap<?> other = (IntHashMap<?>) o;
+		if (other.size() != size())
+			return false;
+		for (K key : keys()) {
+			if (get(key) != other.get(key))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = 0;
+		for (K key : keys())
+			hash += key.hashCode() ^ get(key);
+		return hash;
+	}
+
+	@Override
+	public int findMax() {
+		int max = Integer.MIN_VALUE;
+		for (IntHashMap<K> stripe : stripes) {
+			synchronized (stripe) {
+				if (!stripe.isEmpty())
+					max = Math.max(max, stripe.findMax());
+			}
+		}
+		return max;
+	}
+
+	@Override
+	public long computeSum() {
+		long sum = 0;
+		for (IntHashMap<K> stripe : stripes) {
+			synchronized (stripe) {
+				sum += stripe.computeSum();
+			}
+		}
+		return sum;
+	}
+}
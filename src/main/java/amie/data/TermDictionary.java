@@ -0,0 +1,102 @@
+package amie.data;
+
+import java.util.Arrays;
+
+import javatools.datatypes.ByteString;
+import javatools.datatypes.IntHashMap;
+
+/**
+ * Class TermDictionary
+ *
+ * It maps the terms (entities, relations and literals) of a KB to dense
+ * integer identifiers and back. Identifiers are assigned in order of first
+ * appearance, starting at 0.
+ *
+ * Terms can be looked up and added concurrently. The table of identifiers is split
+ * in stripes with their own lock, so that threads working on different stripes do not
+ * wait for each other; only the assignment of new identifiers is serialized. Terms are
+ * looked up by identifier without locks.
+ */
+public class TermDictionary {
+
+	/** Number of stripes of the table of identifiers (a power of 2) */
+	private static final int STRIPES = 64;
+
+	/** Identifier of each term, split in stripes by hash code */
+	protected final IntHashMap<ByteString>[] term2id;
+
+	/** Term of each identifier */
+	protected ByteString[] id2term = new ByteString[1024];
+
+	/** Number of terms */
+	protected volatile int size;
+
+	@SuppressWarnings("unchecked")
+	public TermDictionary() {
+		term2id = new IntHashMap[STRIPES];
+		for (int i = 0; i < STRIPES; ++i)
+			term2id[i] = new IntHashMap<ByteString>();
+	}
+
+	/** Stripe of the term */
+	private IntHashMap<ByteString> stripe(ByteString term) {
+		int h = term.hashCode();
+		return term2id[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+
+	/**
+	 * It returns the identifier of the given term, assigning a new one if the term
+	 * has not been seen before.
+	 * @param term
+	 * @return
+	 */
+	public int getOrAdd(ByteString term) {
+		IntHashMap<ByteString> stripe = stripe(term);
+		synchronized (stripe) {
+			int id = stripe.get(term);
+			if (id == -1) {
+				synchronized (this) {
+					id = size;
+					if (id == id2term.length)
+						id2term = Arrays.copyOf(id2term, id2term.length * 2);
+					id2term[id] = term;
+					size = id + 1;
+				}
+				stripe.put(term, id);
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * It returns the identifier of the given term or -1 if the term is not in the dictionary.
+	 * @param term
+	 * @return
+	 */
+	public int get(ByteString term) {
+		IntHashMap<ByteString> stripe = stripe(term);
+		synchronized (stripe) {
+			return stripe.get(term);
+		}
+	}
+
+	/**
+	 * It returns the term with the given identifier or null if the identifier
+	 * has not been assigned.
+	 * @param id
+	 * @return
+	 */
+	public ByteString get(int id) {
+		if (id < 0 || id >= size)
+			return null;
+		return id2term[id];
+	}
+
+	/**
+	 * Number of terms in the dictionary. Identifiers range from 0 to size() - 1.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+}
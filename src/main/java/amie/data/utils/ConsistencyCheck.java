@@ -0,0 +1,799 @@
+package amie.data.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import amie.data.CompressedBitmap;
+import amie.data.HyperLogLog;
+import amie.data.IntKB;
+import amie.data.KB;
+import amie.data.KBImage;
+import amie.data.KBStatistics;
+import amie.data.QueryCache;
+import amie.data.TermDictionary;
+import amie.mining.MiningScheduler;
+import amie.rules.Rule;
+import javatools.datatypes.ByteString;
+import javatools.datatypes.IntHashMap;
+import javatools.parsers.NumberFormatter;
+
+/**
+ * Checks the data structures and query engines that have a simpler equivalent against
+ * it on random inputs:
+ * - CompressedBitmap against java.util.BitSet
+ * - the estimates of HyperLogLog and of KB.countDistinctApproximate against their error bounds
+ * - the rules refined by the MiningScheduler against all the rules that can be derived,
+ *   also in best-first mode
+ * - the generic join of IntKB against its nested-loop evaluation
+ * - a KB image against the IntKB it was written from
+ * - the answers of a KB with a query cache against those of a KB without it
+ * - the statistics of the query planner against the exact counts, and the queries
+ *   evaluated in the order of the planner against the default order
+ * - the facts loaded by the chunked loader against those loaded sequentially
+ * - a KB that builds its indexes on first access against one that maintains all of them
+ * - the star queries answered with bitmaps against those answered without them
+ * - the bindings that the mining assistants extend atom by atom against the full
+ *   evaluation of the rule bodies, for KB and IntKB
+ * Every check throws an IllegalStateException at the first difference.
+ * Usage: ConsistencyCheck [-queries N] [KB files]
+ * Without files, the synthetic KB of {@link JoinBenchmark} is generated.
+ */
+public class ConsistencyCheck {
+
+	private static final ByteString X = ByteString.of("?x");
+
+	public static void main(String[] args) throws IOException {
+		int nQueries = 100;
+		List<File> files = new ArrayList<>();
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("-queries"))
+				nQueries = Integer.parseInt(args[++i]);
+			else
+				files.add(new File(args[i]));
+		}
+
+		long time = System.currentTimeMillis();
+		checkBitmaps(new Random(1));
+		report("CompressedBitmap", time);
+
+		time = System.currentTimeMillis();
+		checkSketches(new Random(2));
+		report("HyperLogLog", time);
+
+		time = System.currentTimeMillis();
+		checkScheduler();
+		report("Mining scheduler", time);
+
+		time = System.currentTimeMillis();
+		checkBestFirst();
+		report("Best-first scheduler", time);
+
+		KB[] kbs = { new KB(), new IntKB() };
+		for (KB kb : kbs) {
+			if (files.isEmpty())
+				JoinBenchmark.generate(kb, new Random(42));
+			else
+				kb.load(files);
+			kb.freeze();
+		}
+		IntKB intKB = (IntKB) kbs[1];
+		List<ByteString> relations = kbs[0].getRelationsList();
+
+		time = System.currentTimeMillis();
+		checkGenericJoin(intKB, relations, new Random(3), nQueries);
+		report("Generic join", time);
+
+		time = System.currentTimeMillis();
+		checkImage(intKB, relations, new Random(4), nQueries);
+		report("KB image", time);
+
+		time = System.currentTimeMillis();
+		checkChunkedLoad(kbs[0], files, 4);
+		report("Chunked loading", time);
+
+		time = System.currentTimeMillis();
+		checkLazyIndexes(new Random(7), nQueries);
+		report("Lazy indexes", time);
+
+		time = System.currentTimeMillis();
+		checkQueryCache(new Random(10), nQueries);
+		report("Query cache", time);
+
+		for (KB kb : kbs) {
+			time = System.currentTimeMillis();
+			checkQueryPlanner(kb, relations, new Random(9), nQueries);
+			report("Query planner (" + kb.getClass().getSimpleName() + ")", time);
+
+			time = System.currentTimeMillis();
+			checkBitmapQueries(kb, relations, new Random(8), nQueries);
+			report("Bitmap queries (" + kb.getClass().getSimpleName() + ")", time);
+
+			time = System.currentTimeMillis();
+			checkIncrementalBindings(kb, relations, new Random(5), nQueries);
+			report("Incremental bindings (" + kb.getClass().getSimpleName() + ")", time);
+
+			time = System.currentTimeMillis();
+			checkApproximateCounts(kb, relations, new Random(6), nQueries);
+			report("Approximate counts (" + kb.getClass().getSimpleName() + ")", time);
+		}
+	}
+
+	private static void report(String check, long time) {
+		System.out.println(check + ": OK in " + NumberFormatter.formatMS(System.currentTimeMillis() - time));
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new IllegalStateException(message);
+	}
+
+	/**
+	 * Builds sparse, dense and mixed sets both with of() and with add(), and compares
+	 * them and their intersections and unions with the same sets as BitSets.
+	 */
+	static void checkBitmaps(Random random) {
+		for (int round = 0; round < 60; ++round) {
+			BitSet[] sets = { randomSet(random, round % 3), randomSet(random, (round + 1) % 3) };
+			CompressedBitmap[] bitmaps = new CompressedBitmap[2];
+			for (int s = 0; s < 2; ++s) {
+				int[] values = sets[s].stream().toArray();
+				bitmaps[s] = CompressedBitmap.of(shuffle(random, values.clone()));
+				CompressedBitmap added = new CompressedBitmap();
+				BitSet seen = new BitSet();
+				for (int value : shuffle(random, values.clone())) {
+					check(added.add(value) != seen.get(value), "add(" + value + ") reported a wrong change");
+					seen.set(value);
+					check(!added.add(value), "add(" + value + ") added a value twice");
+				}
+				compare(sets[s], bitmaps[s], random, "of");
+				compare(sets[s], added, random, "add");
+			}
+			BitSet and = (BitSet) sets[0].clone();
+			and.and(sets[1]);
+			BitSet or = (BitSet) sets[0].clone();
+			or.or(sets[1]);
+			compare(and, bitmaps[0].and(bitmaps[1]), random, "and");
+			compare(or, bitmaps[0].or(bitmaps[1]), random, "or");
+			check(bitmaps[0].andCardinality(bitmaps[1]) == and.cardinality(),
+					"andCardinality " + bitmaps[0].andCardinality(bitmaps[1]) + " instead of " + and.cardinality());
+			check(bitmaps[1].andCardinality(bitmaps[0]) == and.cardinality(), "andCardinality is not symmetric");
+		}
+	}
+
+	/** A set of non-negative ints: sparse (0), dense in a few chunks (1) or both (2) */
+	private static BitSet randomSet(Random random, int kind) {
+		BitSet set = new BitSet();
+		if (kind != 1) {
+			int n = random.nextInt(5000);
+			for (int i = 0; i < n; ++i)
+				set.set(random.nextInt(1 << 22));
+		}
+		if (kind != 0) {
+			int chunks = 1 + random.nextInt(3);
+			for (int c = 0; c < chunks; ++c) {
+				int base = random.nextInt(64) << 16;
+				// Around the threshold between array and bitmap chunks
+				int n = 3000 + random.nextInt(4000);
+				for (int i = 0; i < n; ++i)
+					set.set(base + random.nextInt(1 << 14));
+			}
+		}
+		return set;
+	}
+
+	private static int[] shuffle(Random random, int[] values) {
+		for (int i = values.length - 1; i > 0; --i) {
+			int j = random.nextInt(i + 1);
+			int value = values[i];
+			values[i] = values[j];
+			values[j] = value;
+		}
+		return values;
+	}
+
+	private static void compare(BitSet expected, CompressedBitmap bitmap, Random random, String operation) {
+		check(bitmap.cardinality() == expected.cardinality(), operation + ": cardinality "
+				+ bitmap.cardinality() + " instead of " + expected.cardinality());
+		check(bitmap.isEmpty() == expected.isEmpty(), operation + ": wrong isEmpty()");
+		PrimitiveIterator.OfInt it = bitmap.iterator();
+		for (int value = expected.nextSetBit(0); value >= 0; value = expected.nextSetBit(value + 1)) {
+			check(it.hasNext(), operation + ": the iterator ends before " + value);
+			int next = it.nextInt();
+			check(next == value, operation + ": the iterator returns " + next + " instead of " + value);
+		}
+		check(!it.hasNext(), operation + ": the iterator returns too many values");
+		for (int i = 0; i < 2000; ++i) {
+			int value = random.nextInt(1 << 22);
+			check(bitmap.contains(value) == expected.get(value), operation + ": wrong contains(" + value + ")");
+		}
+		check(!bitmap.contains(-1), operation + ": contains a negative value");
+	}
+
+	/**
+	 * Estimates sets of increasing sizes and their unions, which must be within three
+	 * standard errors of the exact sizes.
+	 */
+	static void checkSketches(Random random) {
+		for (int precision : new int[] { HyperLogLog.MIN_PRECISION + 4, HyperLogLog.DEFAULT_PRECISION, 14 }) {
+			double error = 3 * HyperLogLog.relativeError(precision);
+			for (int size : new int[] { 0, 1, 10, 100, 1000, 10000, 100000, 1000000 }) {
+				int offset = random.nextInt(1 << 20);
+				HyperLogLog first = new HyperLogLog(precision);
+				HyperLogLog second = new HyperLogLog(precision);
+				for (int i = 0; i < size; ++i) {
+					first.add(offset + i);
+					// Adding a value again must not change the estimate
+					first.add(offset + i);
+					second.add(offset + size / 2 + i);
+				}
+				checkEstimate(first.cardinality(), size, error, "precision " + precision);
+				int union = size == 0 ? 0 : size + size / 2;
+				checkEstimate(HyperLogLog.union(first, second).cardinality(), union, error,
+						"union, precision " + precision);
+				checkEstimate(first.merge(second).cardinality(), union, error, "merge, precision " + precision);
+			}
+		}
+	}
+
+	private static void checkEstimate(double estimate, long exact, double error, String what) {
+		check(Math.abs(estimate - exact) <= error * exact + 1, what + ": estimate " + estimate
+				+ " of " + exact + " values is out of the error bound " + error);
+	}
+
+	/** Compares the counts and bindings of the generic join with those of the nested loops */
+	static void checkGenericJoin(IntKB kb, List<ByteString> relations, Random random, int nQueries) {
+		for (int i = 0; i < nQueries; ++i) {
+			List<ByteString[]> body = JoinBenchmark.randomBody(random, kb, relations, 2 + random.nextInt(2));
+			kb.setGenericJoin(false);
+			long count = kb.countDistinct(X, body);
+			Set<ByteString> bindings = kb.selectDistinct(X, body);
+			kb.setGenericJoin(true);
+			long joinCount = kb.countDistinct(X, body);
+			Set<ByteString> joinBindings = kb.selectDistinct(X, body);
+			kb.setGenericJoin(false);
+			check(count == joinCount, "Different counts for " + KB.toString(body) + ": " + count + " and " + joinCount);
+			check(sameSet(bindings, joinBindings), "Different bindings for " + KB.toString(body));
+		}
+	}
+
+	/** TRUE if both sets have the same elements, whatever counts they keep (see IntHashMap#equals) */
+	private static boolean sameSet(Set<ByteString> first, Set<ByteString> second) {
+		return new HashSet<ByteString>(first).equals(new HashSet<ByteString>(second));
+	}
+
+	/**
+	 * Writes the KB as an image, opens it and compares the queries on both. Writing the
+	 * opened KB must give the same bytes, and an image must not open for another description.
+	 */
+	static void checkImage(IntKB kb, List<ByteString> relations, Random random, int nQueries) throws IOException {
+		Path path = Files.createTempFile("amie", ".kbimg");
+		Path copy = Files.createTempFile("amie", ".kbimg");
+		try {
+			KBImage.write(kb, path, "check");
+			IntKB opened = KBImage.open(path, "check");
+			check(opened.size() == kb.size(), "The image has " + opened.size() + " facts instead of " + kb.size());
+			for (KB.Column column : KB.Column.values())
+				check(opened.size(column) == kb.size(column), "The image has a different number of " + column);
+			compareQueries(kb, opened, relations, random, nQueries, "The image");
+			KBImage.write(opened, copy, "check");
+			check(Arrays.equals(Files.readAllBytes(path), Files.readAllBytes(copy)),
+					"Writing the opened image gives a different file");
+			boolean rejected = false;
+			try {
+				KBImage.open(path, "other");
+			} catch (IOException e) {
+				rejected = true;
+			}
+			check(rejected, "The image was opened for another description");
+		} finally {
+			Files.deleteIfExists(path);
+			Files.deleteIfExists(copy);
+		}
+	}
+
+	/**
+	 * Loads the files sequentially and with the chunked loader, for KB and IntKB, and
+	 * compares the facts. Without files, the facts of the KB are written to a file with
+	 * some lines that the chunked loader parses as Strings.
+	 */
+	static void checkChunkedLoad(KB kb, List<File> files, int nThreads) throws IOException {
+		File written = null;
+		if (files.isEmpty()) {
+			written = File.createTempFile("amie", ".tsv");
+			try (PrintWriter writer = new PrintWriter(written, StandardCharsets.UTF_8.name())) {
+				for (ByteString relation : kb.getRelationsList()) {
+					List<ByteString[]> query = KB.triples(KB.triple(ByteString.of("?s"), relation, ByteString.of("?o")));
+					Map<ByteString, IntHashMap<ByteString>> pairs = kb.selectDistinct(ByteString.of("?s"),
+							ByteString.of("?o"), query);
+					for (ByteString subject : pairs.keySet()) {
+						for (ByteString object : pairs.get(subject))
+							writer.print(subject + "\t" + relation + "\t" + object + "\n");
+					}
+				}
+				writer.print("<e1> <r1> \"12\"^^xsd:integer .\n");
+				writer.print("<e\u00e9> <r1> <e2>\r\n");
+				writer.print("  <e3>\t<r2>\t\"two words\"\n\n");
+				writer.print("<e4>\t<r2>");
+			}
+			files = Arrays.asList(written);
+		}
+		try {
+			KB[][] pairs = { { new KB(), new KB() }, { new IntKB(), new IntKB() } };
+			for (KB[] pair : pairs) {
+				for (File file : files) {
+					pair[0].load(file);
+					pair[1].loadChunked(file, nThreads);
+				}
+				String storage = pair[0].getClass().getSimpleName();
+				check(pair[0].size() == pair[1].size(), storage + ": " + pair[1].size()
+						+ " facts loaded by chunks instead of " + pair[0].size());
+				for (KB.Column column : KB.Column.values())
+					check(pair[0].size(column) == pair[1].size(column),
+							storage + ": different number of " + column + " loaded by chunks");
+				for (ByteString relation : pair[0].getRelationsList()) {
+					List<ByteString[]> query = KB.triples(KB.triple(ByteString.of("?s"), relation, ByteString.of("?o")));
+					Map<ByteString, IntHashMap<ByteString>> expected = pair[0].selectDistinct(ByteString.of("?s"),
+							ByteString.of("?o"), query);
+					Map<ByteString, IntHashMap<ByteString>> actual = pair[1].selectDistinct(ByteString.of("?s"),
+							ByteString.of("?o"), query);
+					check(expected.keySet().equals(actual.keySet()),
+							storage + ": different subjects of " + relation + " loaded by chunks");
+					for (ByteString subject : expected.keySet())
+						check(sameSet(expected.get(subject), actual.get(subject)), storage
+								+ ": different objects of " + subject + " " + relation + " loaded by chunks");
+				}
+			}
+		} finally {
+			if (written != null)
+				written.delete();
+		}
+	}
+
+	/** Compares the counts and bindings of random queries on both KBs */
+	private static void compareQueries(KB expected, KB actual, List<ByteString> relations, Random random,
+			int nQueries, String what) {
+		for (int i = 0; i < nQueries; ++i) {
+			List<ByteString[]> body = JoinBenchmark.randomBody(random, expected, relations, 1 + random.nextInt(3));
+			check(expected.countDistinct(X, body) == actual.countDistinct(X, body),
+					what + " gives a different count for " + KB.toString(body));
+			check(sameSet(expected.selectDistinct(X, body), actual.selectDistinct(X, body)),
+					what + " gives different bindings for " + KB.toString(body));
+		}
+	}
+
+	/**
+	 * Compares a KB that only maintains the subject-relation-object index with one that
+	 * maintains all of them, on random queries, then again after facts have been added
+	 * to and deleted from both, when some of the lazy indexes have been built.
+	 */
+	static void checkLazyIndexes(Random random, int nQueries) {
+		KB eager = new KB();
+		KB lazy = new KB(EnumSet.noneOf(KB.Permutation.class));
+		JoinBenchmark.generate(eager, new Random(7));
+		JoinBenchmark.generate(lazy, new Random(7));
+		List<ByteString> relations = eager.getRelationsList();
+		compareQueries(eager, lazy, relations, random, nQueries, "The KB with lazy indexes");
+		for (int i = 0; i < 1000; ++i) {
+			ByteString[] fact = { ByteString.of("<e" + random.nextInt(25000) + ">"),
+					relations.get(random.nextInt(relations.size())), ByteString.of("<e" + random.nextInt(25000) + ">") };
+			check(eager.add(fact) == lazy.add(fact), "Adding " + KB.toString(fact) + " changed only one KB");
+		}
+		for (ByteString relation : relations) {
+			List<ByteString[]> query = KB.triples(KB.triple(ByteString.of("?s"), relation, ByteString.of("?o")));
+			Map<ByteString, IntHashMap<ByteString>> pairs = eager.selectDistinct(ByteString.of("?s"),
+					ByteString.of("?o"), query);
+			int deleted = 0;
+			for (ByteString subject : new ArrayList<>(pairs.keySet())) {
+				if (deleted++ == 50)
+					break;
+				ByteString object = pairs.get(subject).iterator().next();
+				check(eager.delete(subject, relation, object) == lazy.delete(subject, relation, object),
+						"Deleting " + subject + " " + relation + " " + object + " changed only one KB");
+			}
+		}
+		check(eager.size() == lazy.size(), "The KB with lazy indexes has " + lazy.size()
+				+ " facts instead of " + eager.size());
+		compareQueries(eager, lazy, relations, random, nQueries, "The updated KB with lazy indexes");
+	}
+
+	/**
+	 * Answers star-shaped bodies with bitmaps and compares the supports and the decoded
+	 * bindings with those computed without bitmaps.
+	 */
+	static void checkBitmapQueries(KB kb, List<ByteString> relations, Random random, int nQueries) {
+		TermDictionary dictionary = kb.getDictionary();
+		for (int i = 0; i < nQueries; ++i) {
+			List<ByteString[]> body = randomStar(random, kb, relations, 1 + random.nextInt(4));
+			kb.setBitmapQueries(false);
+			long support = kb.countDistinct(X, body);
+			Set<ByteString> bindings = kb.selectDistinct(X, body);
+			kb.setBitmapQueries(true);
+			check(kb.countDistinct(X, body) == support, "Bitmap support differs for " + KB.toString(body));
+			Set<ByteString> decoded = new HashSet<>();
+			PrimitiveIterator.OfInt it = kb.selectDistinctBitmap(X, body).iterator();
+			while (it.hasNext())
+				decoded.add(dictionary.get(it.nextInt()));
+			check(sameSet(bindings, decoded), "Bitmap bindings differ for " + KB.toString(body));
+		}
+		kb.setBitmapQueries(false);
+	}
+
+	/**
+	 * Compares the statistics of the planner with the exact sizes of the KB and of every
+	 * relation, also after writing and reading them, and the answers to random queries
+	 * in the order chosen by the planner with those in the default order.
+	 */
+	static void checkQueryPlanner(KB kb, List<ByteString> relations, Random random, int nQueries) throws IOException {
+		Path path = Files.createTempFile("amie", ".stats");
+		try {
+			KBStatistics.compute(kb).write(path);
+			KBStatistics statistics = KBStatistics.read(path);
+			check(statistics.total().size == kb.size(), "The statistics count " + statistics.total().size
+					+ " facts instead of " + kb.size());
+			check(statistics.total().subjects == kb.size(KB.Column.Subject)
+					&& statistics.total().objects == kb.size(KB.Column.Object),
+					"The statistics count a different number of subjects or objects");
+			for (ByteString relation : relations) {
+				List<ByteString[]> query = KB.triples(KB.triple(ByteString.of("?s"), relation, ByteString.of("?o")));
+				Map<ByteString, IntHashMap<ByteString>> pairs = kb.selectDistinct(ByteString.of("?s"),
+						ByteString.of("?o"), query);
+				long size = 0;
+				for (IntHashMap<ByteString> objects : pairs.values())
+					size += objects.size();
+				KBStatistics.Cardinality cardinality = statistics.relation(relation);
+				check(cardinality != null && cardinality.size == size && cardinality.subjects == pairs.size()
+						&& cardinality.objects == kb.selectDistinct(ByteString.of("?o"), query).size(),
+						"The statistics of " + relation + " differ from its exact counts");
+			}
+			long[] counts = new long[nQueries];
+			List<Set<ByteString>> bindings = new ArrayList<>();
+			List<List<ByteString[]>> bodies = new ArrayList<>();
+			for (int i = 0; i < nQueries; ++i) {
+				bodies.add(JoinBenchmark.randomBody(random, kb, relations, 2 + random.nextInt(2)));
+				counts[i] = kb.countDistinct(X, bodies.get(i));
+				bindings.add(kb.selectDistinct(X, bodies.get(i)));
+			}
+			kb.setQueryPlanner(statistics);
+			for (int i = 0; i < nQueries; ++i) {
+				List<ByteString[]> body = bodies.get(i);
+				check(kb.countDistinct(X, body) == counts[i], "The planner gives a different count for "
+						+ KB.toString(body));
+				check(sameSet(kb.selectDistinct(X, body), bindings.get(i)),
+						"The planner gives different bindings for " + KB.toString(body));
+			}
+			check(kb.getQueryPlanner().getHits() + kb.getQueryPlanner().getMisses() > 0, "The planner was not used");
+		} finally {
+			kb.setQueryPlanner(null);
+			Files.deleteIfExists(path);
+		}
+	}
+
+	/**
+	 * Answers a pool of random bodies of two atoms over and over on a KB with a small query
+	 * cache, as given and with their atoms reversed and their variables renamed, and compares
+	 * the answers with those of the same KB without cache. The same facts are then added to
+	 * and deleted from both KBs, which must empty the cache, and the bodies are answered
+	 * again.
+	 */
+	static void checkQueryCache(Random random, int nQueries) {
+		KB plain = new KB();
+		KB cached = new KB();
+		JoinBenchmark.generate(plain, new Random(10));
+		JoinBenchmark.generate(cached, new Random(10));
+		cached.setQueryCache(1 << 16);
+		List<ByteString> relations = plain.getRelationsList();
+		List<List<ByteString[]>> bodies = new ArrayList<>();
+		for (int i = 0; i < Math.max(1, nQueries / 4); ++i)
+			bodies.add(JoinBenchmark.randomBody(random, plain, relations, 2));
+		for (int round = 0; round < 2; ++round) {
+			if (round == 1)
+				update(plain, cached, bodies, relations, random);
+			List<Set<ByteString>> bindings = new ArrayList<>();
+			for (List<ByteString[]> body : bodies)
+				bindings.add(plain.selectDistinct(X, body));
+			for (int i = 0; i < nQueries; ++i) {
+				int b = random.nextInt(bodies.size());
+				List<ByteString[]> body = random.nextBoolean() ? renamed(bodies.get(b)) : bodies.get(b);
+				check(cached.countDistinct(X, body) == bindings.get(b).size(),
+						"The cache gives a different count for " + KB.toString(body));
+				check(sameSet(cached.selectDistinct(X, body), bindings.get(b)),
+						"The cache gives different bindings for " + KB.toString(body));
+			}
+		}
+		QueryCache cache = cached.getQueryCache();
+		check(cache.getHits() > 0, "The cache was never hit");
+	}
+
+	/**
+	 * Deletes from both KBs some facts of the first atom of every body that has two
+	 * variables, and adds the same random facts to both.
+	 */
+	private static void update(KB first, KB second, List<List<ByteString[]>> bodies,
+			List<ByteString> relations, Random random) {
+		for (List<ByteString[]> body : bodies) {
+			for (ByteString[] atom : body) {
+				if (!KB.isVariable(atom[0]) || !KB.isVariable(atom[2]))
+					continue;
+				Map<ByteString, IntHashMap<ByteString>> pairs = first.selectDistinct(atom[0], atom[2],
+						KB.triples(atom));
+				List<ByteString> subjects = new ArrayList<>(pairs.keySet());
+				for (ByteString subject : subjects.subList(0, Math.min(20, subjects.size()))) {
+					ByteString object = pairs.get(subject).iterator().next();
+					check(first.delete(subject, atom[1], object) == second.delete(subject, atom[1], object),
+							"Deleting a fact changed only one KB");
+				}
+				break;
+			}
+		}
+		for (int i = 0; i < 1000; ++i) {
+			ByteString[] fact = { ByteString.of("<e" + random.nextInt(25000) + ">"),
+					relations.get(random.nextInt(relations.size())), ByteString.of("<e" + random.nextInt(25000) + ">") };
+			check(first.add(fact) == second.add(fact), "Adding " + KB.toString(fact) + " changed only one KB");
+		}
+	}
+
+	/** The body with its atoms in reverse order and every variable but ?x renamed */
+	private static List<ByteString[]> renamed(List<ByteString[]> body) {
+		List<ByteString[]> result = new ArrayList<>();
+		for (ByteString[] atom : body) {
+			ByteString[] copy = atom.clone();
+			for (int i = 0; i < copy.length; ++i) {
+				if (KB.isVariable(copy[i]) && !copy[i].equals(X))
+					copy[i] = ByteString.of("?renamed" + copy[i].toString().substring(1));
+			}
+			result.add(copy);
+		}
+		Collections.reverse(result);
+		return result;
+	}
+
+	/**
+	 * Extends the bindings of ?x in star-shaped bodies one atom at a time, as the mining
+	 * assistants do for the refinements of a rule, and compares their number with the
+	 * support computed on the whole body. The counts per relation and per value of a new
+	 * atom are compared with the supports of the corresponding refinements.
+	 */
+	static void checkIncrementalBindings(KB kb, List<ByteString> relations, Random random, int nQueries) {
+		for (int i = 0; i < nQueries; ++i) {
+			List<ByteString[]> body = randomStar(random, kb, relations, 1 + random.nextInt(4));
+			check(kb.isStarQuery(X, body), KB.toString(body) + " is not star-shaped");
+			kb.setBitmapQueries(true);
+			CompressedBitmap bindings = kb.selectDistinctBitmap(X, body.subList(0, 1));
+			for (int k = 1; k <= body.size(); ++k) {
+				List<ByteString[]> prefix = body.subList(0, k);
+				if (k > 1)
+					bindings = kb.extendBindings(bindings, X, body.get(k - 1));
+				kb.setBitmapQueries(false);
+				long support = kb.countDistinct(X, prefix);
+				check(bindings.cardinality() == support, "Incremental support " + bindings.cardinality()
+						+ " instead of " + support + " for " + KB.toString(prefix));
+				kb.setBitmapQueries(true);
+				check(kb.countDistinct(X, prefix) == support, "Bitmap support differs for " + KB.toString(prefix));
+			}
+			kb.setBitmapQueries(false);
+			int position = random.nextBoolean() ? 0 : 2;
+			IntHashMap<ByteString> perRelation = kb.countBindingsPerRelation(bindings, position);
+			for (ByteString relation : relations) {
+				long support = kb.countDistinct(X, refine(body, atom(position, relation, ByteString.of("?new"))));
+				check(perRelation.get(relation, 0) == support, "Support " + perRelation.get(relation, 0)
+						+ " instead of " + support + " when adding " + relation + " to " + KB.toString(body));
+			}
+			ByteString relation = relations.get(random.nextInt(relations.size()));
+			IntHashMap<ByteString> perValue = kb.countBindingsPerValue(bindings, relation, position);
+			int checked = 0;
+			for (ByteString value : perValue) {
+				if (checked++ == 5)
+					break;
+				long support = kb.countDistinct(X, refine(body, atom(position, relation, value)));
+				check(perValue.get(value) == support, "Support " + perValue.get(value) + " instead of "
+						+ support + " when adding " + relation + " " + value + " to " + KB.toString(body));
+			}
+		}
+		kb.setBitmapQueries(false);
+	}
+
+	/** A body of the given length where every atom contains ?x and a fresh variable or a constant */
+	private static List<ByteString[]> randomStar(Random random, KB kb, List<ByteString> relations, int length) {
+		List<ByteString[]> body = new ArrayList<>();
+		for (int i = 0; i < length; ++i) {
+			ByteString relation = relations.get(random.nextInt(relations.size()));
+			int position = random.nextBoolean() ? 0 : 2;
+			ByteString other = ByteString.of("?v" + i);
+			if (random.nextInt(4) == 0) {
+				List<ByteString> values = new ArrayList<>(kb.selectDistinct(other,
+						KB.triples(atom(position, relation, other))));
+				other = values.get(random.nextInt(values.size()));
+			}
+			body.add(atom(position, relation, other));
+		}
+		return body;
+	}
+
+	/** The atom with ?x at the given position (0 or 2) and the other term at the other one */
+	private static ByteString[] atom(int position, ByteString relation, ByteString other) {
+		return position == 0 ? KB.triple(X, relation, other) : KB.triple(other, relation, X);
+	}
+
+	private static List<ByteString[]> refine(List<ByteString[]> body, ByteString[] atom) {
+		List<ByteString[]> result = new ArrayList<>(body);
+		result.add(atom);
+		return result;
+	}
+
+	/** Number of relations of the synthetic rules of the scheduler check */
+	private static final int SCHEDULER_RELATIONS = 6;
+
+	/** Maximal number of body atoms of the synthetic rules of the scheduler check */
+	private static final int SCHEDULER_DEPTH = 4;
+
+	/**
+	 * Refines synthetic rules with 1, 2 and 4 workers (see {@link SyntheticRefiner}). Every
+	 * distinct rule must be refined, no rule must stay pending, and a failing refinement
+	 * must stop the run with its exception.
+	 */
+	static void checkScheduler() {
+		for (int nThreads : new int[] { 1, 2, 4 }) {
+			SyntheticRefiner refiner = new SyntheticRefiner(null);
+			MiningScheduler scheduler = new MiningScheduler(nThreads, refiner);
+			scheduler.run(syntheticSeeds());
+			String workers = nThreads + " workers";
+			check(refiner.refined.size() == distinctSyntheticRules(), workers + " refined " + refiner.refined.size()
+					+ " distinct rules instead of " + distinctSyntheticRules());
+			check(scheduler.getPendingRules() == 0, workers + " left " + scheduler.getPendingRules() + " rules pending");
+			checkFailure(new MiningScheduler(nThreads, new SyntheticRefiner("r1,r2")), workers);
+		}
+	}
+
+	/** Best-first order of the synthetic rules, by their relations */
+	private static final Comparator<Rule> BY_SYNTHETIC_KEY = new Comparator<Rule>() {
+		public int compare(Rule r1, Rule r2) {
+			return syntheticKey(r1).compareTo(syntheticKey(r2));
+		}
+	};
+
+	/**
+	 * Refines synthetic rules in best-first mode with 1, 2 and 4 workers. Without bounds
+	 * every distinct rule must be refined. With a beam and a bounded frontier, rules must
+	 * be dropped and the frontier must stay within its bound. No rule must stay pending,
+	 * and a failing refinement must stop the run with its exception.
+	 */
+	static void checkBestFirst() {
+		for (int nThreads : new int[] { 1, 2, 4 }) {
+			String workers = nThreads + " best-first workers";
+			SyntheticRefiner refiner = new SyntheticRefiner(null);
+			MiningScheduler scheduler = new MiningScheduler(nThreads, refiner);
+			scheduler.setBestFirst(BY_SYNTHETIC_KEY, 0, 0);
+			scheduler.run(syntheticSeeds());
+			check(refiner.refined.size() == distinctSyntheticRules(), workers + " refined " + refiner.refined.size()
+					+ " distinct rules instead of " + distinctSyntheticRules());
+			check(scheduler.getDroppedRules() == 0, workers + " dropped rules without bounds");
+			check(scheduler.getPendingRules() == 0, workers + " left " + scheduler.getPendingRules() + " rules pending");
+
+			refiner = new SyntheticRefiner(null);
+			scheduler = new MiningScheduler(nThreads, refiner);
+			scheduler.setBestFirst(BY_SYNTHETIC_KEY, 2, 10);
+			scheduler.run(syntheticSeeds());
+			check(scheduler.getDroppedRules() > 0, workers + " dropped no rule with a beam of 2");
+			check(refiner.refined.size() < distinctSyntheticRules(), workers + " refined every rule with a beam of 2");
+			check(scheduler.getMaxFrontierSize() <= 10, workers + " let the frontier grow to "
+					+ scheduler.getMaxFrontierSize() + " rules instead of 10");
+			check(scheduler.getPendingRules() == 0, workers + " left " + scheduler.getPendingRules()
+					+ " rules pending with a beam of 2");
+
+			scheduler = new MiningScheduler(nThreads, new SyntheticRefiner("r1,r2"));
+			scheduler.setBestFirst(BY_SYNTHETIC_KEY, 0, 0);
+			checkFailure(scheduler, workers);
+		}
+	}
+
+	/** Runs a scheduler whose refiner fails, which must throw the exception of the refiner */
+	private static void checkFailure(MiningScheduler scheduler, String what) {
+		boolean failed = false;
+		try {
+			scheduler.run(syntheticSeeds());
+		} catch (UnsupportedOperationException e) {
+			failed = true;
+		}
+		check(failed, what + " did not report the failure of a refinement");
+	}
+
+	/** Number of distinct synthetic rules: the multisets of at most SCHEDULER_DEPTH relations */
+	private static long distinctSyntheticRules() {
+		long total = 0;
+		long multisets = 1;
+		for (int length = 0; length <= SCHEDULER_DEPTH; ++length) {
+			total += multisets;
+			multisets = multisets * (SCHEDULER_RELATIONS + length) / (length + 1);
+		}
+		return total;
+	}
+
+	/**
+	 * The seed has a body atom, so that the length of the rules differs from their
+	 * generation, which both take part in their hash codes.
+	 */
+	private static List<Rule> syntheticSeeds() {
+		List<Rule> seeds = new ArrayList<>();
+		seeds.add(new Rule(KB.triple(X, ByteString.of("<head>"), ByteString.of("?y")),
+				KB.triples(KB.triple(X, ByteString.of("<seed>"), ByteString.of("?s"))), 100));
+		return seeds;
+	}
+
+	/** The relations of the body of a synthetic rule after the seed, sorted */
+	private static String syntheticKey(Rule rule) {
+		List<String> relations = new ArrayList<>();
+		for (ByteString[] atom : rule.getTriples().subList(2, rule.getTriples().size()))
+			relations.add(atom[1].toString());
+		Collections.sort(relations);
+		return String.join(",", relations);
+	}
+
+	/**
+	 * Extends a rule with an atom (?x, r, ?new) for every relation r, up to SCHEDULER_DEPTH
+	 * atoms after the one of the seed. Two rules are equal if their bodies have the same relations, whatever their
+	 * order, so most rules are reached several times. It counts the refinements of every
+	 * distinct rule, and throws an UnsupportedOperationException for the rule with the
+	 * given relations, if any.
+	 */
+	private static final class SyntheticRefiner implements MiningScheduler.Refiner {
+
+		final ConcurrentHashMap<String, AtomicInteger> refined = new ConcurrentHashMap<>();
+
+		private final String failure;
+
+		SyntheticRefiner(String failure) {
+			this.failure = failure;
+		}
+
+		@Override
+		public void refine(Rule rule, Collection<Rule> refinements) {
+			List<ByteString[]> body = rule.getTriples().subList(1, rule.getTriples().size());
+			String key = syntheticKey(rule);
+			if (key.equals(failure))
+				throw new UnsupportedOperationException("Refinement of " + rule + " failed");
+			refined.putIfAbsent(key, new AtomicInteger());
+			refined.get(key).incrementAndGet();
+			if (body.size() - 1 == SCHEDULER_DEPTH)
+				return;
+			for (int r = 0; r < SCHEDULER_RELATIONS; ++r) {
+				List<ByteString[]> extended = new ArrayList<>(body);
+				extended.add(KB.triple(X, ByteString.of("r" + r), ByteString.of("?v" + body.size())));
+				refinements.add(new Rule(rule.getHead(), extended, rule.getSupport()));
+			}
+		}
+	}
+
+	/**
+	 * Compares the approximate supports of star-shaped bodies with the exact ones. The
+	 * error of the estimates must stay within KB.MAX_SKETCH_ERROR.
+	 */
+	static void checkApproximateCounts(KB kb, List<ByteString> relations, Random random, int nQueries) {
+		kb.setSketchPrecision(HyperLogLog.DEFAULT_PRECISION);
+		for (int i = 0; i < nQueries; ++i) {
+			List<ByteString[]> body = randomStar(random, kb, relations, 2 + random.nextInt(3));
+			long exact = kb.countDistinct(X, body);
+			long estimate = kb.countDistinctApproximate(X, body);
+			checkEstimate(estimate, exact, kb.getSketchError(), "Approximate support of " + KB.toString(body));
+		}
+		kb.setSketchPrecision(0);
+	}
+}
@@ -0,0 +1,122 @@
+package amie.data.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import amie.data.IntKB;
+import amie.data.KB;
+import javatools.datatypes.ByteString;
+import javatools.parsers.NumberFormatter;
+
+/**
+ * Compares the recursive nested-loop evaluation of KB with the generic join of IntKB
+ * (see amie.data.GenericJoin) on random rule bodies: chains and stars of 2 to maxLength
+ * atoms around the head variable ?x, some of them with constants.
+ * Usage: JoinBenchmark [-queries N] [-length L] [-freeze] [KB files]
+ * Without files, a synthetic KB with skewed degrees is generated.
+ */
+public class JoinBenchmark {
+
+	public static void main(String[] args) {
+		int nQueries = 100;
+		int maxLength = 3;
+		boolean freeze = false;
+		List<File> files = new ArrayList<>();
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("-queries"))
+				nQueries = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-length"))
+				maxLength = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-freeze"))
+				freeze = true;
+			else
+				files.add(new File(args[i]));
+		}
+
+		Random random = new Random(42);
+		IntKB kb = new IntKB();
+		if (files.isEmpty()) {
+			generate(kb, random);
+		} else {
+			kb.load(files);
+		}
+		if (freeze)
+			kb.freeze();
+
+		List<ByteString> relations = kb.getRelationsList();
+		List<List<ByteString[]>> queries = new ArrayList<>();
+		for (int i = 0; i < nQueries; ++i)
+			queries.add(randomBody(random, kb, relations, 2 + random.nextInt(Math.max(1, maxLength - 1))));
+
+		ByteString head = ByteString.of("?x");
+		long[] results = new long[queries.size()];
+		long[] times = new long[2];
+		for (int engine = 0; engine < 2; ++engine) {
+			kb.setGenericJoin(engine == 1);
+			kb.setBitmapQueries(false);
+			long time = System.currentTimeMillis();
+			for (int i = 0; i < queries.size(); ++i) {
+				long result = kb.countDistinct(head, queries.get(i));
+				if (engine == 0) {
+					results[i] = result;
+				} else if (results[i] != result) {
+					throw new IllegalStateException("Different results for " + KB.toString(queries.get(i))
+							+ ": " + results[i] + " and " + result);
+				}
+			}
+			times[engine] = System.currentTimeMillis() - time;
+		}
+		System.out.println(queries.size() + " queries on " + kb.size() + " facts");
+		System.out.println("Nested loop:  " + NumberFormatter.formatMS(times[0]));
+		System.out.println("Generic join: " + NumberFormatter.formatMS(times[1]));
+	}
+
+	/**
+	 * Fills the KB with a synthetic KB of 300000 facts, where entities are drawn with a
+	 * skewed distribution, so a few of them have many facts.
+	 */
+	static void generate(KB kb, Random random) {
+		int nEntities = 20000;
+		for (int i = 0; i < 300000; ++i) {
+			kb.add(ByteString.of("<e" + skewed(random, nEntities) + ">"),
+					ByteString.of("<r" + random.nextInt(20) + ">"),
+					ByteString.of("<e" + skewed(random, nEntities) + ">"));
+		}
+	}
+
+	/** Draws a number in [0, n) where small numbers are much more likely */
+	private static int skewed(Random random, int n) {
+		return (int) Math.min(n - 1, Math.floor(Math.pow(n, random.nextDouble())) - 1);
+	}
+
+	/**
+	 * Builds a body of the given length. Each atom joins on a variable that already
+	 * occurs in the body, with the head variable ?x in the first atom.
+	 */
+	static List<ByteString[]> randomBody(Random random, KB kb, List<ByteString> relations, int length) {
+		List<ByteString[]> body = new ArrayList<>();
+		List<ByteString> variables = new ArrayList<>();
+		variables.add(ByteString.of("?x"));
+		for (int i = 0; i < length; ++i) {
+			ByteString join = variables.get(random.nextInt(variables.size()));
+			ByteString relation = relations.get(random.nextInt(relations.size()));
+			ByteString other;
+			if (random.nextInt(4) == 0) {
+				// Bind the other argument to a constant of the relation
+				List<ByteString[]> atom = KB.triples(KB.triple(ByteString.of("?s"), relation, ByteString.of("?o")));
+				List<ByteString> objects = new ArrayList<>(kb.selectDistinct(ByteString.of("?o"), atom));
+				other = objects.get(random.nextInt(objects.size()));
+			} else {
+				other = ByteString.of("?v" + i);
+				variables.add(other);
+			}
+			if (random.nextBoolean() || !KB.isVariable(other))
+				body.add(KB.triple(join, relation, other));
+			else
+				body.add(KB.triple(other, relation, join));
+		}
+		return body;
+	}
+}
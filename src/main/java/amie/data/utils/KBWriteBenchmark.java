@@ -0,0 +1,77 @@
+package amie.data.utils;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import amie.data.IntKB;
+import amie.data.KB;
+import javatools.datatypes.ByteString;
+import javatools.parsers.NumberFormatter;
+
+/**
+ * Measures how the throughput of KB.add scales with the number of writing threads.
+ * Usage: KBWriteBenchmark [number of facts] [-dict]
+ * With -dict the benchmark uses the dictionary-encoded storage (IntKB).
+ */
+public class KBWriteBenchmark {
+
+	public static void main(String[] args) throws InterruptedException {
+		int nFacts = 2000000;
+		boolean dictionary = false;
+		for (String arg : args) {
+			if (arg.equals("-dict"))
+				dictionary = true;
+			else
+				nFacts = Integer.parseInt(arg);
+		}
+
+		// Generate the facts beforehand, so that only the insertions are measured
+		Random random = new Random(42);
+		int nEntities = Math.max(1, nFacts / 10);
+		ByteString[] relations = new ByteString[100];
+		for (int i = 0; i < relations.length; ++i)
+			relations[i] = ByteString.of("<r" + i + ">");
+		ByteString[] entities = new ByteString[nEntities];
+		for (int i = 0; i < entities.length; ++i)
+			entities[i] = ByteString.of("<e" + i + ">");
+		final ByteString[][] facts = new ByteString[nFacts][];
+		Set<String> distinct = new HashSet<>();
+		for (int i = 0; i < nFacts; ++i) {
+			facts[i] = new ByteString[] { entities[random.nextInt(nEntities)],
+					relations[random.nextInt(relations.length)], entities[random.nextInt(nEntities)] };
+			distinct.add(facts[i][0] + " " + facts[i][1] + " " + facts[i][2]);
+		}
+
+		System.out.println("Adding " + nFacts + " facts (" + distinct.size() + " distinct) to "
+				+ (dictionary ? "IntKB" : "KB"));
+		System.out.println("threads\ttime\tfacts/s\tspeedup");
+		double base = 0;
+		for (int nThreads = 1; nThreads <= 32; nThreads *= 2) {
+			final KB kb = dictionary ? new IntKB() : new KB();
+			Thread[] threads = new Thread[nThreads];
+			long time = System.currentTimeMillis();
+			for (int t = 0; t < nThreads; ++t) {
+				final int from = (int) ((long) nFacts * t / nThreads);
+				final int to = (int) ((long) nFacts * (t + 1) / nThreads);
+				threads[t] = new Thread() {
+					public void run() {
+						for (int i = from; i < to; ++i)
+							kb.add(facts[i]);
+					}
+				};
+				threads[t].start();
+			}
+			for (Thread thread : threads)
+				thread.join();
+			long elapsed = Math.max(1, System.currentTimeMillis() - time);
+			if (kb.size() != distinct.size())
+				throw new IllegalStateException("Expected " + distinct.size() + " facts, found " + kb.size());
+			double throughput = nFacts * 1000.0 / elapsed;
+			if (nThreads == 1)
+				base = throughput;
+			System.out.println(nThreads + "\t" + NumberFormatter.formatMS(elapsed) + "\t" + (long) throughput
+					+ "\t" + String.format("%.2f", throughput / base));
+		}
+	}
+}
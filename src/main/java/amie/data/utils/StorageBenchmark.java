@@ -0,0 +1,131 @@
+package amie.data.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import amie.data.IntKB;
+import amie.data.KB;
+import javatools.datatypes.ByteString;
+import javatools.parsers.NumberFormatter;
+
+/**
+ * Compares the query times of the hash-map storage (KB) and of the dictionary-encoded
+ * storage (IntKB), both frozen, with the nested-loop engine and without bitmaps or caches:
+ * lookups of facts, single triple patterns, projections of rule bodies and rule bodies.
+ * It fails if the two storages give different results. The queries are run once for
+ * both storages before they are timed.
+ * Usage: StorageBenchmark [-queries N] [KB files]
+ * Without files, the synthetic KB of {@link JoinBenchmark} is generated.
+ */
+public class StorageBenchmark {
+
+	/** Names of the kinds of queries */
+	private static final String[] KINDS = { "Facts", "Triple patterns", "Projections", "Bodies" };
+
+	public static void main(String[] args) {
+		int nQueries = 2000;
+		List<File> files = new ArrayList<>();
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("-queries"))
+				nQueries = Integer.parseInt(args[++i]);
+			else
+				files.add(new File(args[i]));
+		}
+
+		KB[] kbs = { new KB(), new IntKB() };
+		for (KB kb : kbs) {
+			if (files.isEmpty())
+				JoinBenchmark.generate(kb, new Random(42));
+			else
+				kb.load(files);
+			kb.freeze();
+			kb.setBitmapQueries(false);
+		}
+
+		Random random = new Random(7);
+		List<ByteString> relations = kbs[0].getRelationsList();
+		List<List<ByteString[]>> queries = new ArrayList<>();
+		for (int i = 0; i < nQueries; ++i)
+			queries.add(JoinBenchmark.randomBody(random, kbs[0], relations, 2 + random.nextInt(2)));
+
+		// The first round checks the results and warms up the JIT for both storages,
+		// the second one is timed
+		ByteString head = ByteString.of("?x");
+		long[][] results = new long[KINDS.length][queries.size()];
+		long[][] times = new long[kbs.length][KINDS.length];
+		for (int round = 0; round < 2; ++round) {
+			for (int k = 0; k < kbs.length; ++k) {
+				for (int kind = 0; kind < KINDS.length; ++kind) {
+					long time = System.currentTimeMillis();
+					for (int i = 0; i < queries.size(); ++i) {
+						long result = run(kbs[k], kind, head, queries.get(i));
+						if (round > 0)
+							continue;
+						if (k == 0) {
+							results[kind][i] = result;
+						} else if (results[kind][i] != result) {
+							throw new IllegalStateException(KINDS[kind] + ": different results for "
+									+ KB.toString(queries.get(i)) + ": " + results[kind][i] + " and " + result);
+						}
+					}
+					times[k][kind] = System.currentTimeMillis() - time;
+				}
+			}
+		}
+		System.out.println(queries.size() + " queries on " + kbs[0].size() + " facts");
+		for (int k = 0; k < kbs.length; ++k) {
+			System.out.println(k == 0 ? "KB:" : "IntKB:");
+			for (int kind = 0; kind < KINDS.length; ++kind)
+				System.out.println("  " + KINDS[kind] + ": " + NumberFormatter.formatMS(times[k][kind]));
+		}
+	}
+
+	/**
+	 * Runs a query of the given kind derived from the body and returns a number that
+	 * depends on all its results.
+	 */
+	private static long run(KB kb, int kind, ByteString head, List<ByteString[]> body) {
+		ByteString[] first = body.get(0);
+		switch (kind) {
+		case 0:
+			// The facts of the first atom for each value of the head variable
+			long found = 0;
+			for (ByteString value : kb.selectDistinct(head, body.subList(0, 1))) {
+				ByteString[] bound = instantiate(first, head, value);
+				ByteString variable = variable(bound);
+				found += kb.count(bound);
+				if (variable == null)
+					continue;
+				for (ByteString other : kb.selectDistinct(variable, KB.triples(bound)))
+					found += kb.count(instantiate(bound, variable, other));
+			}
+			return found;
+		case 1:
+			return kb.count(first) + kb.selectDistinct(head, body.subList(0, 1)).size();
+		case 2:
+			return kb.countProjectionBindings(first, body.subList(1, body.size()), head).computeSum();
+		default:
+			return kb.countDistinct(head, body);
+		}
+	}
+
+	private static ByteString[] instantiate(ByteString[] triple, ByteString variable, ByteString value) {
+		ByteString[] result = triple.clone();
+		for (int i = 0; i < result.length; ++i) {
+			if (result[i].equals(variable))
+				result[i] = value;
+		}
+		return result;
+	}
+
+	/** The first variable of the triple, null if it has none */
+	private static ByteString variable(ByteString[] triple) {
+		for (ByteString term : triple) {
+			if (KB.isVariable(term))
+				return term;
+		}
+		return null;
+	}
+}
@@ -4,7 +4,13 @@
  */
 package amie.mining;
 
+import amie.data.CompressedBitmap;
+import amie.data.HyperLogLog;
+import amie.data.IntKB;
 import amie.data.KB;
+import amie.data.KBStatistics;
+import amie.data.KBView;
+import amie.data.TermDictionary;
 import amie.mining.assistant.DefaultMiningAssistant;
 import amie.mining.assistant.MiningAssistant;
 import amie.mining.assistant.schemamining.SchemaAttributeMiningAssistant;
@@ -12,13 +18,23 @@ import amie.rules.Metric;
 import amie.rules.Rule;
 import javatools.datatypes.ByteString;
 import javatools.datatypes.MultiMap;
+import javatools.filehandlers.FileLines;
+import javatools.parsers.NumberFormatter;
 import org.apache.commons.cli.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -48,6 +64,22 @@ public class AMIE {
 
     private static String type = "tmpType";
 
+    /**
+     * Classes mined concurrently over the same KBs, null to mine only {@link #type}
+     */
+    private static List<String> TYPES = null;
+
+    /**
+     * Directory of the rule files of each class and cluster when several are mined, null to
+     * print their rules on the standard output
+     */
+    private static File MINING_OUTPUT = null;
+
+    /**
+     * Number of classes and clusters mined at the same time
+     */
+    private static int MINING_CONCURRENCY = 1;
+
 
     /**
      * Relative support compared to number of entities in the provided type class
@@ -67,6 +99,90 @@ public class AMIE {
      */
 
     private static boolean CLUSTER_MODE = false;
+
+    /**
+     * If true, the clusters are views of the complete KB restricted to the subjects of
+     * their files (see amie.data.KBView)
+     */
+    private static boolean CLUSTER_VIEWS = false;
+
+    /**
+     * If true, the KBs store their facts as dictionary-encoded integers (see amie.data.IntKB)
+     */
+    private static boolean INTEGER_STORAGE = false;
+
+    /**
+     * If true, loaded KBs are cached as binary images next to their source files
+     * and later runs open the images instead of parsing the files
+     */
+    private static boolean USE_IMAGES = false;
+
+    /**
+     * Permutation indexes maintained by the KBs. The others are built on first access.
+     * If null, all of them are maintained.
+     */
+    private static Collection<KB.Permutation> MATERIALIZED_INDEXES = null;
+
+    /**
+     * Number of threads that parse each single input file (see amie.data.ChunkedLoader)
+     */
+    private static int LOAD_THREADS = 1;
+
+    /**
+     * If true, the dictionary-encoded KBs evaluate queries with the generic join (see amie.data.GenericJoin)
+     */
+    private static boolean GENERIC_JOIN = false;
+
+    /**
+     * If true, the KBs answer star-shaped queries with bitmaps (see amie.data.KB#selectDistinctBitmap)
+     */
+    private static boolean BITMAP_QUERIES = false;
+
+    /**
+     * If true, the order of the joins is chosen by a cost-based planner (see amie.data.QueryPlanner)
+     */
+    private static boolean QUERY_PLANNER = false;
+
+    /**
+     * Capacity of the query cache of every KB (see amie.data.QueryCache), 0 for no cache
+     */
+    private static long QUERY_CACHE = 0;
+
+    /**
+     * Capacity of the query caches when several classes or clusters are mined and -qcache is not given
+     */
+    private static final long DEFAULT_SHARED_QUERY_CACHE = 1L << 22;
+
+    /**
+     * Memory in bytes of the bindings that rules keep for their refinements, 0 to disable
+     */
+    private static long BINDINGS_MEMORY = 0;
+
+    /**
+     * Minimal work for the refinements of a rule to be computed in parallel, -1 to refine
+     * every rule sequentially
+     */
+    private static int MIN_PARALLEL_WORK = -1;
+
+    /**
+     * Precision of the sketches used to estimate the class confidence of the rules, 0 for exact counting
+     */
+    private static int SKETCH_PRECISION = 0;
+
+    /**
+     * False positive rate of the Bloom filter of the facts of every KB, 0 for no filter
+     */
+    private static double FACT_FILTER_RATE = 0;
+
+    /**
+     * Extension of the KB images
+     */
+    private static final String IMAGE_EXTENSION = ".kbimg";
+
+    /**
+     * Extension of the files with the statistics of the KBs
+     */
+    private static final String STATISTICS_EXTENSION = ".kbstats";
     /**
      * Default standard confidence threshold
      */
@@ -124,23 +240,37 @@ public class AMIE {
      */
     private boolean realTime;
 
+    /**
+     * Name of the mining in the outputs, null if not given
+     */
+    private String name;
+
     /**
      * List of target head relations.
      */
     private Collection<ByteString> seeds;
 
     /**
-     * Column headers
+     * If true, the rules with the highest class confidence are refined first (see {@link MiningScheduler#setBestFirst})
      */
-    public static final List<String> headers = Arrays.asList("Rule", "Head Coverage", "Std Confidence",
-            "PCA Confidence", "Positive Examples", "Body size", "PCA Body size",
-            "Functional variable", "Std. Lower Bound", "PCA Lower Bound", "PCA Conf estimation");
+    private boolean bestFirst;
 
+    /**
+     * In best-first mode, maximal number of refinements of each rule that are mined further, 0 for no limit
+     */
+    private int beamWidth;
 
     /**
-     * amount of currently waiting workers
+     * In best-first mode, maximal number of rules waiting for their refinement, 0 for no limit
+     */
+    private int maxFrontier;
+
+    /**
+     * Column headers
      */
-    public static AtomicInteger waitingWorkers = new AtomicInteger(0);
+    public static final List<String> headers = Arrays.asList("Rule", "Head Coverage", "Std Confidence",
+            "PCA Confidence", "Positive Examples", "Body size", "PCA Body size",
+            "Functional variable", "Std. Lower Bound", "PCA Lower Bound", "PCA Conf estimation");
 
     /**
      * @param assistant         An object that implements the logic of the mining operators.
@@ -160,6 +290,17 @@ public class AMIE {
         this.seeds = null;
     }
 
+    /**
+     * Name of the mining in the outputs, e.g., its class and cluster. Null if not given.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
     public MiningAssistant getAssistant() {
         return assistant;
     }
@@ -185,6 +326,24 @@ public class AMIE {
         this.seeds = seeds;
     }
 
+    public boolean isBestFirst() {
+        return bestFirst;
+    }
+
+    /**
+     * It makes the miner refine the rules with the highest class confidence first, keeping at
+     * most beamWidth refinements of each rule and maxFrontier rules waiting (0 for no limit).
+     *
+     * @param bestFirst
+     * @param beamWidth
+     * @param maxFrontier
+     */
+    public void setBestFirst(boolean bestFirst, int beamWidth, int maxFrontier) {
+        this.bestFirst = bestFirst;
+        this.beamWidth = beamWidth;
+        this.maxFrontier = maxFrontier;
+    }
+
     public double getMinSignificanceThreshold() {
         return minSignificanceThreshold;
     }
@@ -226,7 +385,7 @@ public class AMIE {
      * @throws Exception
      */
     public List<Rule> mine() throws Exception {
-        List<Rule> result = new ArrayList<>();
+        List<Rule> result = new CopyOnWriteArrayList<>();
         MultiMap<Integer, Rule> indexedResult = new MultiMap<>();
         RuleConsumer consumerObj = null;
         Thread consumerThread = null;
@@ -247,8 +406,6 @@ public class AMIE {
             System.out.print("SEED ");
             System.out.println(r.toString());
         }
-        amie.mining.AMIEQueue queue = new amie.mining.AMIEQueue(seedRules, nThreads);
-
         if (realTime) {
             consumerObj = new RuleConsumer(result, resultsLock, resultsCondVar);
             consumerThread = new Thread(consumerObj);
@@ -257,31 +414,30 @@ public class AMIE {
         }
 
         System.out.println("Using " + nThreads + " threads");
-        //Create as many threads as available cores
-        ArrayList<Thread> currentJobs = new ArrayList<>();
-        ArrayList<RDFMinerJob> jobObjects = new ArrayList<>();
-        for (int i = 0; i < nThreads; ++i) {
-            RDFMinerJob jobObject = new RDFMinerJob(queue, result, resultsLock, resultsCondVar, indexedResult);
-            Thread job = new Thread(jobObject);
-            job.setName("Miner " + i);
-            System.out.println("Miner " + i + " created");
-            currentJobs.add(job);
-
-            jobObjects.add(jobObject);
-
+        // The workers refine the rules until there is none left
+        RDFMinerJob job = new RDFMinerJob(result, resultsLock, resultsCondVar, indexedResult);
+        MiningScheduler scheduler = new MiningScheduler(nThreads, job);
+        job.scheduler = scheduler;
+        if (bestFirst) {
+            scheduler.setBestFirst(MiningScheduler.BY_CLASS_CONFIDENCE, beamWidth, maxFrontier);
         }
-
-        for (Thread job : currentJobs) {
-            job.start();
+        scheduler.run(seedRules);
+        if (bestFirst) {
+            System.out.println(scheduler.getDroppedRules() + " rules dropped, at most "
+                    + scheduler.getMaxFrontierSize() + " rules in the frontier");
         }
-
-        for (Thread job : currentJobs) {
-            job.join();
+        System.out.println(scheduler.getStealCount() + " rules stolen between workers");
+        for (MiningScheduler.WorkerStatistics worker : scheduler.getWorkerStatistics()) {
+            System.out.println(worker);
+        }
+        for (MiningAssistant.OperatorStatistics operator : assistant.getOperatorStatistics()) {
+            System.out.println(operator);
         }
 
         if (realTime) {
             consumerThread.interrupt();
-            while (!consumerThread.isInterrupted()) ;
+            // The consumer clears the interrupt flag when it stops, so it must be joined
+            consumerThread.join();
         }
 
         return result;
@@ -337,21 +493,23 @@ public class AMIE {
      *
      * @author lgalarra
      */
-    private class RDFMinerJob implements Runnable {
+    private class RDFMinerJob implements MiningScheduler.Refiner {
 
         private List<Rule> outputSet;
 
         // A version of the output set thought for search.
         private MultiMap<Integer, Rule> indexedOutputSet;
 
-        private amie.mining.AMIEQueue queryPool;
+        private MiningScheduler scheduler;
+
+        // Candidates of the head variable of each output rule
+        private Map<Rule, CompressedBitmap> outputCandidates = new ConcurrentHashMap<>();
 
         private Lock resultsLock;
 
         private Condition resultsCondition;
 
         /**
-         * @param seedsPool
          * @param outputSet
          * @param resultsLock      Lock associated to the output buffer were mined rules are added
          * @param resultsCondition Condition variable associated to the results lock
@@ -359,11 +517,9 @@ public class AMIE {
          *                         //* that are running in the system.
          * @param indexedOutputSet
          */
-        public RDFMinerJob(amie.mining.AMIEQueue seedsPool,
-                           List<Rule> outputSet, Lock resultsLock,
+        public RDFMinerJob(List<Rule> outputSet, Lock resultsLock,
                            Condition resultsCondition,
                            MultiMap<Integer, Rule> indexedOutputSet) {
-            this.queryPool = seedsPool;
             this.outputSet = outputSet;
             this.resultsLock = resultsLock;
             this.resultsCondition = resultsCondition;
@@ -371,155 +527,135 @@ public class AMIE {
         }
 
 
+        /**
+         * It applies the mining operators to the rule, outputs it if it passes the confidence
+         * thresholds and adds the refinements that must be mined next to the given collection.
+         *
+         * @param currentRule
+         * @param refinements
+         */
         @Override
-        public void run() {
-            boolean workerWaiting = false;
-            boolean shouldrun = true;
+        public void refine(Rule currentRule, Collection<Rule> refinements) {
+            System.out.println("QUERY POOL SIZE: " + scheduler.getPendingRules());
 
-            System.out.println("Miner " + Thread.currentThread().getName() + " started and running...");
-            while (shouldrun) {
-                Rule currentRule = null;
-                try {
-                    currentRule = queryPool.dequeue();
-
-                    if (currentRule == null) {
-                        // Is worker already waiting?
-                        if (workerWaiting == false) {
-                            // No - set state to waiting
-                            workerWaiting = true;
-                            // Increment and get waiting workers
-                            int waiting = waitingWorkers.incrementAndGet();
-                            //all threads are waiting?
-                            if (waiting == nThreads) {
-                                // All workers can be shutted down
-                                shouldrun = false;
-                                System.out.println("Miner " + Thread.currentThread().getName() + " all workers are waiting - no more task - shutting down...");
-                            }
-                        } else {
-                            int waiting = waitingWorkers.get();
-                            if (waiting == nThreads) {
-                                // All workers can be shutted down
-                                shouldrun = false;
-                                System.out.println("Miner " + Thread.currentThread().getName() + " all workers are waiting - no more task - shutting down...");
-                            }
-                        }
-                        // Waiting for new possible rules
-                        Thread.sleep(50);
-                    }
-                } catch (InterruptedException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
-                //System.out.println("Current Rule " + currentRule);
-               /* if (currentRule == null) {
-                	this.queryPool.decrementMaxThreads();
-                	break;
-                } else
-                    */
-                if (currentRule != null) {
-                    System.out.println("QUERY POOL SIZE: " + queryPool.size());
-                    //If worker was waiting before
-                    if (workerWaiting == true) {
-                        //Not waiting anymore
-                        workerWaiting = false;
-                        //decrement waiting workers
-                        waitingWorkers.decrementAndGet();
-                    }
+            // Check if the rule meets the language bias and confidence thresholds and
+            // decide whether to output it.
+            boolean outputRule = false;
 
+            // Here the confidence bounds with our Complete Dataset should be checked!
 
-                    // Check if the rule meets the language bias and confidence thresholds and
-                    // decide whether to output it.
-                    boolean outputRule = false;
-
-                    // Here the confidence bounds with our Complete Dataset should be checked!
-
-                    double threshold = getCountThreshold(currentRule);
-                    // Application of the mining operators
-                    Map<String, Collection<Rule>> temporalOutputMap = null;
-                    try {
+            double threshold = getCountThreshold(currentRule);
+            // Application of the mining operators
+            Map<String, Collection<Rule>> temporalOutputMap = null;
+            try {
 
 //                            long start = System.currentTimeMillis();
-                        temporalOutputMap = assistant.applyMiningOperators(currentRule, threshold);
-                        //                          long end = System.currentTimeMillis();
-                        //                          System.out.println("Mining Operators took " + (end-start) + "ms");
-                    } catch (IllegalAccessException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    } catch (IllegalArgumentException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    } catch (InvocationTargetException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }
+                temporalOutputMap = assistant.applyMiningOperators(currentRule, threshold);
+                //                          long end = System.currentTimeMillis();
+                //                          System.out.println("Mining Operators took " + (end-start) + "ms");
+            } catch (IllegalAccessException e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            } catch (IllegalArgumentException e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            } catch (InvocationTargetException e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            }
 
-                    this.resultsLock.lock();
-                    outputRule = assistant.testConfidenceThresholds(currentRule);
-                        for(Rule r : outputSet){
-                            if( currentRule.getRuleOverlap(knowledgebase, r) < 0.05){
-                                outputRule = false;
-                            }
-                        }
+            // The rule must leave enough candidates to each rule already in the output. The
+            // candidates of the output rules are computed once and the rules added in the
+            // meantime are checked again under the lock.
+            outputRule = assistant.testConfidenceThresholds(currentRule);
+            CompressedBitmap candidates = null;
+            int checkedRules = 0;
+            if (outputRule) {
+                candidates = currentRule.getHeadCandidates(assistant.getKb());
+                checkedRules = outputSet.size();
+                outputRule = hasNewCandidates(candidates, 0, checkedRules);
+            }
 
-                    if (this.outputSet.isEmpty()) {
-                        for (Map.Entry<String, Collection<Rule>> entry : temporalOutputMap.entrySet()) {
-                            String operator = entry.getKey();
-                            Collection<Rule> items = entry.getValue();
-                            for (Rule r : items) {
-                                queryPool.queue(r);
-                            }
-                        }
-                    } else {
-                        for (Rule rule : this.outputSet) {
-                            for (Map.Entry<String, Collection<Rule>> entry : temporalOutputMap.entrySet()) {
-                                String operator = entry.getKey();
-                                Collection<Rule> items = entry.getValue();
-                                for (Rule r : items) {
-                                    if (rule.getClassConfidence() > r.getClassConfidence() - 0.05) {
-                                        System.out.println("Class Confidence is too small");
-                                        continue;
-                                    }
-                                    System.out.println("Subsumes");
-                                    System.out.println("OLD RULE" + rule + " " + rule.getSupport() + " " + rule.getClassConfidence());
-                                    System.out.println("NEW RULE" + r + " " + r.getClassConfidence());
-                                    queryPool.queue(r);
-                                }
+            if (this.outputSet.isEmpty()) {
+                for (Map.Entry<String, Collection<Rule>> entry : temporalOutputMap.entrySet()) {
+                    String operator = entry.getKey();
+                    Collection<Rule> items = entry.getValue();
+                    for (Rule r : items) {
+                        refinements.add(r);
+                    }
+                }
+            } else {
+                for (Rule rule : this.outputSet) {
+                    for (Map.Entry<String, Collection<Rule>> entry : temporalOutputMap.entrySet()) {
+                        String operator = entry.getKey();
+                        Collection<Rule> items = entry.getValue();
+                        for (Rule r : items) {
+                            if (rule.getClassConfidence() > r.getClassConfidence() - 0.05) {
+                                System.out.println("Class Confidence is too small");
+                                continue;
                             }
+                            System.out.println("Subsumes");
+                            System.out.println("OLD RULE" + rule + " " + rule.getSupport() + " " + rule.getClassConfidence());
+                            System.out.println("NEW RULE" + r + " " + r.getClassConfidence());
+                            refinements.add(r);
                         }
                     }
-                    this.resultsCondition.signal();
-                    this.resultsLock.unlock();
-                    // Output the rule
-                    if (outputRule) {
+                }
+            }
+            // Output the rule
+            if (outputRule) {
+                this.resultsLock.lock();
+                try {
+                    if (hasNewCandidates(candidates, checkedRules, outputSet.size())) {
                         System.out.println(currentRule + " added to ouput.");
-                        this.resultsLock.lock();
-
                         Set<Rule> outputQueries = indexedOutputSet.get(currentRule.alternativeParentHashCode());
                         boolean confidenceCheck = true;
                         for (Rule rule : this.outputSet) {
-                                    if (rule.getClassConfidence() > currentRule.getClassConfidence() - 0.05) {
-                                        System.out.println("Class Confidence is too small");
-                                        confidenceCheck = false;
-                                    }
+                            if (rule.getClassConfidence() > currentRule.getClassConfidence() - 0.05) {
+                                System.out.println("Class Confidence is too small");
+                                confidenceCheck = false;
+                            }
                         }
-                        if(confidenceCheck) {
+                        if (confidenceCheck) {
                             if (outputQueries != null) {
                                 if (!outputQueries.contains(currentRule)) {
+                                    outputCandidates.put(currentRule, candidates);
                                     this.outputSet.add(currentRule);
                                     outputQueries.add(currentRule);
                                 }
                             } else {
+                                outputCandidates.put(currentRule, candidates);
                                 this.outputSet.add(currentRule);
                                 this.indexedOutputSet.put(currentRule.alternativeParentHashCode(), currentRule);
                             }
                         }
                         this.resultsCondition.signal();
-                        this.resultsLock.unlock();
                     }
+                } finally {
+                    this.resultsLock.unlock();
                 }
             }
         }
 
+        /**
+         * It returns FALSE if the given candidates cover all but less than 5% of the
+         * candidates of one of the output rules in the given range.
+         *
+         * @param candidates
+         * @param from
+         * @param to
+         * @return
+         */
+        private boolean hasNewCandidates(CompressedBitmap candidates, int from, int to) {
+            for (int i = from; i < to; ++i) {
+                CompressedBitmap other = outputCandidates.get(outputSet.get(i));
+                if (Rule.getRuleOverlap(candidates, other) < 0.05) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         /**
          * Based on AMIE's configuration, it returns the absolute support threshold
          * that should be applied to the rule.
@@ -645,6 +781,9 @@ public class AMIE {
         int maxDepth = 3;
         int recursivityLimit = 3;
         boolean realTime = true;
+        int beamWidth = 0;
+        int minerThreads = 0;
+        int maxFrontier = 0;
         boolean datalogOutput = true;
         boolean countAlwaysOnSubject = false;
         double minMetricValue = 0.0;
@@ -696,6 +835,32 @@ public class AMIE {
                 .withDescription("Provide a type/class for the schema that should be mined from the input data.  Default: Person")
                 .create("type");
 
+        Option schemaTypes = OptionBuilder.withArgName("types")
+                .hasArg()
+                .withDescription("Mine the schema of several classes concurrently over the same KBs, sharing "
+                        + "the KBs and their query caches. Either a comma-separated list of classes or a file with "
+                        + "one class per line. The threads of -nc are split among the classes.")
+                .create("types");
+
+        Option schemaTypesOutput = OptionBuilder.withArgName("directory")
+                .hasArg()
+                .withDescription("Write the rules of each class of -types and each cluster to a file of the "
+                        + "given directory instead of the standard output.")
+                .create("typesout");
+
+        Option minerThreadsOpt = OptionBuilder.withArgName("threads")
+                .hasArg()
+                .withDescription("Number of threads of each miner when several classes or clusters are mined. "
+                        + "The threads of -nc are split among the miners that run at the same time. "
+                        + "Default: as many miners as possible run at the same time.")
+                .create("minerthreads");
+
+
+        Option loadThreadsOpt = OptionBuilder.withArgName("threads")
+                .hasArg()
+                .withDescription("Number of threads that parse the input file when there is only one. "
+                        + "Default: 1, i.e., the file is parsed sequentially.")
+                .create("loadthreads");
 
         Option tRel = OptionBuilder.withArgName("trel")
                 .hasArg()
@@ -708,6 +873,94 @@ public class AMIE {
                 .withDescription("Complete Knowledgebase for computing schema confidence. Default: null")
                 .create("complete");
 
+        Option clusterViewsOpt = OptionBuilder.withArgName("cluster-views")
+                .withDescription("Mine the clusters as views of the complete KB restricted to the subjects "
+                        + "of their files. The views share the terms and the facts of the complete KB, "
+                        + "so only the subjects of the cluster files are read.")
+                .create("clusterviews");
+
+        Option integerStorageOpt = OptionBuilder.withArgName("dictionary-encoding")
+                .withDescription("Store the facts of the KBs as dictionary-encoded integers. "
+                        + "It reduces the memory footprint of large KBs.")
+                .create("dict");
+
+        Option imageOpt = OptionBuilder.withArgName("kb-images")
+                .withDescription("Cache the loaded KBs as binary images (<file>" + IMAGE_EXTENSION + ") "
+                        + "and open them instead of the input files in later runs. An image written with "
+                        + "another storage, other indexes or another type relation is replaced.")
+                .create("image");
+
+        Option arenaOpt = OptionBuilder.withArgName("intern-arena")
+                .withDescription("Keep the strings of the KB in a non-weak table for the whole run. "
+                        + "Lookups do not take any lock, which speeds up parallel loading.")
+                .create("arena");
+
+        Option indexesOpt = OptionBuilder.withArgName("indexes")
+                .hasArg()
+                .withDescription("Comma-separated list of the permutation indexes maintained by the KB "
+                        + "(SRO, ROS, OSR, RSO, ORS, SOR). The others are built the first time they are used. "
+                        + "SRO is always maintained. Default: all")
+                .create("indexes");
+
+        Option genericJoinOpt = OptionBuilder.withArgName("generic-join")
+                .withDescription("Evaluate queries with a worst-case optimal generic join instead of "
+                        + "nested loops. Requires the dictionary-encoded storage (-dict).")
+                .create("genericjoin");
+
+        Option bitmapsOpt = OptionBuilder.withArgName("bitmap-queries")
+                .withDescription("Answer the star-shaped queries of a single variable by intersecting "
+                        + "bitmaps of the subjects and objects of each relation. The bitmaps are kept "
+                        + "in memory once built.")
+                .create("bitmaps");
+
+        Option plannerOpt = OptionBuilder.withArgName("query-planner")
+                .withDescription("Choose the order of the joins with a cost-based planner that caches "
+                        + "the plan of every query shape. The planner builds the overlap tables of the relations. "
+                        + "With -image the statistics and overlap tables of the KBs are stored "
+                        + "next to the images (<file>" + STATISTICS_EXTENSION + ").")
+                .create("planner");
+
+        Option queryCacheOpt = OptionBuilder.withArgName("capacity")
+                .hasArg()
+                .withDescription("Cache the results of the queries issued to the KBs, evicting the least "
+                        + "recently used ones when they hold more than the given number of terms.")
+                .create("qcache");
+
+        Option bindingsMemoryOpt = OptionBuilder.withArgName("megabytes")
+                .hasArg()
+                .withDescription("Let rules keep the bindings of their head variable, up to the given memory, "
+                        + "so that the support of their refinements is computed by intersecting them with a single atom.")
+                .create("bindingsmem");
+
+        Option candidatesMemoryOpt = OptionBuilder.withArgName("megabytes")
+                .hasArg()
+                .withDescription("Let rules keep the bindings of their head variable, up to the given memory, "
+                        + "so that their support, frequency and overlap are computed from a single evaluation. "
+                        + "Default: " + (Rule.DEFAULT_CANDIDATES_MEMORY >> 20) + " MB, 0 to disable.")
+                .create("candidatesmem");
+
+        Option approximateConfidenceOpt = OptionBuilder.withArgName("precision")
+                .hasOptionalArg()
+                .withDescription("Estimate the class confidence of the rules with HyperLogLog sketches of the "
+                        + "complete KB, with 2^precision registers per sketch (default: "
+                        + HyperLogLog.DEFAULT_PRECISION + "). The rules that may pass the minimum confidence "
+                        + "are counted exactly.")
+                .create("approxconf");
+
+        Option parallelRefinementOpt = OptionBuilder.withArgName("min-work")
+                .hasOptionalArg()
+                .withDescription("Compute the refinements of a single rule in parallel batches, per join position, "
+                        + "relation or constant, if there are at least min-work of them (default: "
+                        + MiningAssistant.DEFAULT_MIN_PARALLEL_WORK + ").")
+                .create("parallelrefine");
+
+        Option factFilterOpt = OptionBuilder.withArgName("false-positive-rate")
+                .hasArg()
+                .withDescription("Check a Bloom filter of the facts before the indexes, so that most lookups of "
+                        + "absent facts return immediately. The argument is the fraction of absent facts that "
+                        + "pass the filter, e.g., 0.01.")
+                .create("bloom");
+
         Option supportOpt = OptionBuilder.withArgName("min-support")
                 .hasArg()
                 .withDescription("Minimum absolute support. Default: 100 positive examples")
@@ -735,6 +988,23 @@ public class AMIE {
                         + "Default: false")
                 .create("oute");
 
+        Option bestFirstOpt = OptionBuilder.withArgName("best-first")
+                .withDescription("Refine the rules with the highest class confidence first instead of "
+                        + "in breadth-first order.")
+                .create("bestfirst");
+
+        Option beamWidthOpt = OptionBuilder.withArgName("width")
+                .hasArg()
+                .withDescription("With -bestfirst, refine further only the given number of best refinements "
+                        + "of each rule. Default: no limit")
+                .create("beam");
+
+        Option frontierOpt = OptionBuilder.withArgName("rules")
+                .hasArg()
+                .withDescription("With -bestfirst, keep at most the given number of rules waiting for their "
+                        + "refinement and drop the worst ones. Default: no limit")
+                .create("frontier");
+
         Option datalogNotationOpt = OptionBuilder.withArgName("datalog-output")
                 .withDescription("Print rules using the datalog notation "
                         + "Default: false")
@@ -871,12 +1141,16 @@ public class AMIE {
         options.addOption(supportPer);
         options.addOption(schemaType);
         options.addOption(completeKBOpt);
+        options.addOption(clusterViewsOpt);
         options.addOption(stdConfThresholdOpt);
         options.addOption(supportOpt);
         options.addOption(initialSupportOpt);
         options.addOption(headCoverageOpt);
         options.addOption(pruningMetricOpt);
         options.addOption(realTimeOpt);
+        options.addOption(bestFirstOpt);
+        options.addOption(beamWidthOpt);
+        options.addOption(frontierOpt);
         options.addOption(bodyExcludedOpt);
         options.addOption(headExcludedOpt);
         options.addOption(maxDepthOpt);
@@ -902,6 +1176,23 @@ public class AMIE {
         options.addOption(datalogNotationOpt);
         options.addOption(calculateStdConfidenceOp);
         options.addOption(tRel);
+        options.addOption(integerStorageOpt);
+        options.addOption(imageOpt);
+        options.addOption(arenaOpt);
+        options.addOption(indexesOpt);
+        options.addOption(genericJoinOpt);
+        options.addOption(bitmapsOpt);
+        options.addOption(plannerOpt);
+        options.addOption(queryCacheOpt);
+        options.addOption(bindingsMemoryOpt);
+        options.addOption(candidatesMemoryOpt);
+        options.addOption(parallelRefinementOpt);
+        options.addOption(schemaTypes);
+        options.addOption(schemaTypesOutput);
+        options.addOption(minerThreadsOpt);
+        options.addOption(loadThreadsOpt);
+        options.addOption(approximateConfidenceOpt);
+        options.addOption(factFilterOpt);
 
 
         try {
@@ -950,6 +1241,125 @@ public class AMIE {
             System.out.println("Complete is activated");
             completePath = cli.getOptionValue("complete");
             CLUSTER_MODE = true;
+            CLUSTER_VIEWS = cli.hasOption("clusterviews");
+        }
+
+        if (cli.hasOption("dict")) {
+            System.out.println("Using dictionary-encoded storage");
+            INTEGER_STORAGE = true;
+        }
+
+        if (cli.hasOption("image")) {
+            USE_IMAGES = true;
+        }
+
+        if (cli.hasOption("arena")) {
+            ByteString.setArenaMode(true);
+        }
+
+        if (cli.hasOption("genericjoin")) {
+            if (INTEGER_STORAGE) {
+                GENERIC_JOIN = true;
+            } else {
+                System.err.println("The generic join requires the dictionary-encoded storage (-dict)");
+            }
+        }
+
+        if (cli.hasOption("bitmaps")) {
+            BITMAP_QUERIES = true;
+        }
+
+        if (cli.hasOption("planner")) {
+            QUERY_PLANNER = true;
+        }
+
+        if (cli.hasOption("qcache")) {
+            try {
+                QUERY_CACHE = Long.parseLong(cli.getOptionValue("qcache"));
+            } catch (NumberFormatException e) {
+                System.err.println("The option -qcache (capacity of the query cache) requires an integer as argument");
+                System.exit(1);
+            }
+        }
+
+        if (cli.hasOption("bindingsmem")) {
+            try {
+                BINDINGS_MEMORY = Long.parseLong(cli.getOptionValue("bindingsmem")) << 20;
+            } catch (NumberFormatException e) {
+                System.err.println("The option -bindingsmem (memory of the kept bindings in MB) requires an integer as argument");
+                System.exit(1);
+            }
+        }
+
+        if (cli.hasOption("candidatesmem")) {
+            try {
+                Rule.setMaxCandidatesMemory(Long.parseLong(cli.getOptionValue("candidatesmem")) << 20);
+            } catch (IllegalArgumentException e) {
+                System.err.println("The option -candidatesmem (memory of the kept head candidates in MB) requires a non-negative integer as argument");
+                System.exit(1);
+            }
+        }
+
+        if (cli.hasOption("parallelrefine")) {
+            MIN_PARALLEL_WORK = MiningAssistant.DEFAULT_MIN_PARALLEL_WORK;
+            if (cli.getOptionValue("parallelrefine") != null) {
+                try {
+                    MIN_PARALLEL_WORK = Integer.parseInt(cli.getOptionValue("parallelrefine"));
+                } catch (NumberFormatException e) {
+                    System.err.println("The option -parallelrefine (minimal work of a parallel refinement) requires an integer as argument");
+                    System.exit(1);
+                }
+            }
+            if (MIN_PARALLEL_WORK < 0) {
+                System.err.println("The option -parallelrefine (minimal work of a parallel refinement) requires a non-negative integer as argument");
+                System.exit(1);
+            }
+        }
+
+        if (cli.hasOption("approxconf")) {
+            SKETCH_PRECISION = HyperLogLog.DEFAULT_PRECISION;
+            if (cli.getOptionValue("approxconf") != null) {
+                try {
+                    SKETCH_PRECISION = Integer.parseInt(cli.getOptionValue("approxconf"));
+                } catch (NumberFormatException e) {
+                    System.err.println("The option -approxconf (precision of the sketches) requires an integer as argument");
+                    System.exit(1);
+                }
+            }
+            if (SKETCH_PRECISION < HyperLogLog.MIN_PRECISION || SKETCH_PRECISION > HyperLogLog.MAX_PRECISION) {
+                System.err.println("The precision of the sketches must be between "
+                        + HyperLogLog.MIN_PRECISION + " and " + HyperLogLog.MAX_PRECISION);
+                System.exit(1);
+            }
+        }
+
+        if (cli.hasOption("bloom")) {
+            try {
+                FACT_FILTER_RATE = Double.parseDouble(cli.getOptionValue("bloom"));
+            } catch (NumberFormatException e) {
+                System.err.println("The option -bloom (false positive rate of the fact filter) requires a number as argument");
+                System.exit(1);
+            }
+            if (FACT_FILTER_RATE <= 0 || FACT_FILTER_RATE >= 1) {
+                System.err.println("The false positive rate of the fact filter must be between 0 and 1");
+                System.exit(1);
+            }
+        }
+
+        if (cli.hasOption("indexes")) {
+            MATERIALIZED_INDEXES = EnumSet.noneOf(KB.Permutation.class);
+            for (String permutation : cli.getOptionValue("indexes").split(",")) {
+                try {
+                    MATERIALIZED_INDEXES.add(KB.Permutation.valueOf(permutation.trim().toUpperCase()));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Unknown index " + permutation
+                            + ". Possible values are " + Arrays.toString(KB.Permutation.values()));
+                    System.exit(1);
+                }
+            }
+            if (INTEGER_STORAGE) {
+                System.err.println("The dictionary-encoded storage always maintains all indexes");
+            }
         }
 
         if (cli.hasOption("type")) {
@@ -957,6 +1367,54 @@ public class AMIE {
             System.out.println("Mine Schema Patterns for " + type);
         }
 
+        if (cli.hasOption("types")) {
+            try {
+                TYPES = parseTypes(cli.getOptionValue("types"));
+            } catch (IOException e) {
+                System.err.println("The file of classes " + cli.getOptionValue("types") + " cannot be read");
+                System.exit(1);
+            }
+            if (TYPES.isEmpty()) {
+                System.err.println("The option -types requires at least one class");
+                System.exit(1);
+            }
+            System.out.println("Mine Schema Patterns for " + TYPES.size() + " classes");
+        }
+
+        if (cli.hasOption("typesout")) {
+            MINING_OUTPUT = new File(cli.getOptionValue("typesout"));
+            if (!MINING_OUTPUT.isDirectory() && !MINING_OUTPUT.mkdirs()) {
+                System.err.println("The directory " + MINING_OUTPUT + " cannot be created");
+                System.exit(1);
+            }
+        }
+
+        if (cli.hasOption("loadthreads")) {
+            try {
+                LOAD_THREADS = Integer.parseInt(cli.getOptionValue("loadthreads"));
+            } catch (NumberFormatException e) {
+                System.err.println("The option -loadthreads (threads that parse a file) requires an integer as argument");
+                System.exit(1);
+            }
+            if (LOAD_THREADS <= 0) {
+                System.err.println("The option -loadthreads (threads that parse a file) requires a positive integer as argument");
+                System.exit(1);
+            }
+        }
+
+        if (cli.hasOption("minerthreads")) {
+            try {
+                minerThreads = Integer.parseInt(cli.getOptionValue("minerthreads"));
+            } catch (NumberFormatException e) {
+                System.err.println("The option -minerthreads (threads of each miner) requires an integer as argument");
+                System.exit(1);
+            }
+            if (minerThreads <= 0) {
+                System.err.println("The option -minerthreads (threads of each miner) requires a positive integer as argument");
+                System.exit(1);
+            }
+        }
+
         if (cli.hasOption("trel")) {
             typeRelationship = cli.getOptionValue("trel");
             System.out.println("The type relationship is: " + typeRelationship);
@@ -1033,30 +1491,37 @@ public class AMIE {
         }
 
 
+        // The classes and the clusters share the queries on the bodies of their rules in the complete KB
+        if (QUERY_CACHE == 0 && ((TYPES != null && TYPES.size() > 1) || (CLUSTER_MODE && dataFiles.size() > 1))) {
+            QUERY_CACHE = DEFAULT_SHARED_QUERY_CACHE;
+        }
+
         //We build an array list of input files for each cluster group and add these to an arraylist of KBs
         ArrayList<KB> dataSources = new ArrayList<>();
-        if (CLUSTER_MODE) {
+        if (CLUSTER_MODE && CLUSTER_VIEWS) {
+            completeKB = loadKB(new File(completePath), false);
+            completeKB.setSketchPrecision(SKETCH_PRECISION);
+            encodeSubjects(completeKB);
             for (File f : dataFiles) {
-                KB dataSource = new KB(minInitialSup);
-                dataSource.load(f);
-                KB tmpKB = new KB();
-                for (ByteString subject : dataSource.subject2relation2object.keySet()) {
-                    tmpKB.add(subject, typeRelationship, ByteString.of("tmpType"));
-                }
-                dataSource.add(tmpKB);
+                KB dataSource = loadView(f);
+                dataSource.summarize(false);
+                dataSources.add(dataSource);
+            }
+        } else if (CLUSTER_MODE) {
+            for (File f : dataFiles) {
+                KB dataSource = loadKB(f, true);
                 dataSource.summarize(false);
                 dataSources.add(dataSource);
             }
-            completeKB = new KB(0);
-            completeKB.load(new File(completePath));
+            completeKB = loadKB(new File(completePath), false);
+            completeKB.setSketchPrecision(SKETCH_PRECISION);
         }
 
         //Read one Datafile Only
 
         else {
             for (File f : dataFiles) {
-                KB dataSource = new KB(minInitialSup);
-                dataSource.load(f);
+                KB dataSource = loadKB(f, false);
                 dataSource.summarize(false);
                 dataSources.add(dataSource);
             }
@@ -1066,6 +1531,21 @@ public class AMIE {
         allowConstants = cli.hasOption("const");
         countAlwaysOnSubject = cli.hasOption("caos");
         realTime = !cli.hasOption("oute");
+        try {
+            if (cli.hasOption("beam")) {
+                beamWidth = Integer.parseInt(cli.getOptionValue("beam"));
+            }
+            if (cli.hasOption("frontier")) {
+                maxFrontier = Integer.parseInt(cli.getOptionValue("frontier"));
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("The options -beam and -frontier require a positive integer as argument");
+            System.exit(1);
+        }
+        if (beamWidth < 0 || maxFrontier < 0) {
+            System.err.println("The options -beam and -frontier require a positive integer as argument");
+            System.exit(1);
+        }
         enforceConstants = cli.hasOption("fconst");
         datalogOutput = cli.hasOption("datalog");
         ommitStdConfidence = cli.hasOption("ostd");
@@ -1094,55 +1574,289 @@ public class AMIE {
         headTargetRelations = new ArrayList<>();
         headTargetRelations.add(ByteString.of(typeRelationship));
         knowledgebase = dataSources.get(0);
+        // In cluster mode every cluster is mined, otherwise only the first KB
+        List<KB> clusters = CLUSTER_MODE ? dataSources : dataSources.subList(0, 1);
+        // The miners of all the classes and clusters share the complete KB and the caches. The refinements
+        // of a single rule are computed on the workers of its miner, so that no threads are added.
+        List<String> types = TYPES == null ? Collections.singletonList(type) : TYPES;
+        int nMiners = clusters.size() * types.size();
+        if (minerThreads == 0) {
+            MINING_CONCURRENCY = Math.max(1, Math.min(nMiners, nThreads));
+            minerThreads = Math.max(1, nThreads / MINING_CONCURRENCY);
+        } else {
+            MINING_CONCURRENCY = Math.max(1, Math.min(nMiners, nThreads / minerThreads));
+        }
+        if (nMiners > 1) {
+            System.out.println("Mining " + nMiners + " classes and clusters, " + MINING_CONCURRENCY
+                    + " at a time with " + minerThreads + " threads each");
+        }
+        for (int i = 0; i < clusters.size(); ++i) {
+            KB cluster = clusters.get(i);
 
-            int rareRelationshipSup = (int) (knowledgebase.entitiesSize() * 0.01);
-        knowledgebase.setMinimumRelationshipSupport(rareRelationshipSup);
+            int rareRelationshipSup = (int) (cluster.entitiesSize() * 0.01);
+            cluster.setMinimumRelationshipSupport(rareRelationshipSup);
 
 
-        knowledgebase.summarize(false);
+            cluster.summarize(false);
             //System.out.println(kb.object2relation2subject.get(ByteString.of(type)).size());
-            int sup = (int) (knowledgebase.subject2relation2object.size() * supportPercentage);
+            int sup = (int) (cluster.subject2relation2object.size() * supportPercentage);
             //kb.removeFrequentRelationships((int)(kb.object2relation2subject.get(ByteString.of(type)).get(ByteString.of("http://www.wikidata.org/prop/direct/P279")).size()*0.9));
             System.out.println("minimum Support is " + sup);
             minInitialSup = sup;
-            mineAssistant = new SchemaAttributeMiningAssistant(knowledgebase, type, typeRelationship);
-
-            mineAssistant.setKbSchema(schemaSource);
-            mineAssistant.setEnabledConfidenceUpperBounds(enableConfidenceUpperBounds);
-            mineAssistant.setEnabledFunctionalityHeuristic(enableFunctionalityHeuristic);
-            mineAssistant.setMaxDepth(maxDepth);
-            mineAssistant.setStdConfidenceThreshold(minStdConf);
-            mineAssistant.setPcaConfidenceThreshold(minPCAConf);
-            mineAssistant.setAllowConstants(allowConstants);
-            mineAssistant.setEnforceConstants(enforceConstants);
-            mineAssistant.setBodyExcludedRelations(bodyExcludedRelations);
-            mineAssistant.setHeadExcludedRelations(headExcludedRelations);
-            mineAssistant.setTargetBodyRelations(bodyTargetRelations);
-            mineAssistant.setCountAlwaysOnSubject(countAlwaysOnSubject);
-            mineAssistant.setRecursivityLimit(recursivityLimit);
-            mineAssistant.setAvoidUnboundTypeAtoms(avoidUnboundTypeAtoms);
-            mineAssistant.setExploitMaxLengthOption(exploitMaxLengthForRuntime);
-            mineAssistant.setEnableQueryRewriting(enableQueryRewriting);
-            mineAssistant.setEnablePerfectRules(enablePerfectRulesPruning);
-            mineAssistant.setVerbose(verbose);
-            mineAssistant.setOmmitStdConfidence(ommitStdConfidence);
-            mineAssistant.setDatalogNotation(datalogOutput);
-            //mineAssistant.setTypeRelationship(typeRelationship);
-
-            System.out.println(mineAssistant.getDescription());
-
-            AMIE miner = new AMIE(mineAssistant, minInitialSup, minMetricValue, metric, nThreads);
-            miner.setRealTime(realTime);
-            miner.setSeeds(headTargetRelations);
-
-            minerList.add(miner);
+            for (String targetType : types) {
+                SchemaAttributeMiningAssistant schemaAssistant =
+                        new SchemaAttributeMiningAssistant(cluster, targetType, typeRelationship);
+                schemaAssistant.setApproximateClassConfidence(SKETCH_PRECISION > 0 && completeKB != null);
+                mineAssistant = schemaAssistant;
+
+                mineAssistant.setKbSchema(schemaSource);
+                mineAssistant.setEnabledConfidenceUpperBounds(enableConfidenceUpperBounds);
+                mineAssistant.setEnabledFunctionalityHeuristic(enableFunctionalityHeuristic);
+                mineAssistant.setMaxDepth(maxDepth);
+                mineAssistant.setStdConfidenceThreshold(minStdConf);
+                mineAssistant.setPcaConfidenceThreshold(minPCAConf);
+                mineAssistant.setAllowConstants(allowConstants);
+                mineAssistant.setEnforceConstants(enforceConstants);
+                mineAssistant.setBodyExcludedRelations(bodyExcludedRelations);
+                mineAssistant.setHeadExcludedRelations(headExcludedRelations);
+                mineAssistant.setTargetBodyRelations(bodyTargetRelations);
+                mineAssistant.setCountAlwaysOnSubject(countAlwaysOnSubject);
+                mineAssistant.setRecursivityLimit(recursivityLimit);
+                mineAssistant.setAvoidUnboundTypeAtoms(avoidUnboundTypeAtoms);
+                mineAssistant.setExploitMaxLengthOption(exploitMaxLengthForRuntime);
+                mineAssistant.setEnableQueryRewriting(enableQueryRewriting);
+                mineAssistant.setEnablePerfectRules(enablePerfectRulesPruning);
+                mineAssistant.setVerbose(verbose);
+                mineAssistant.setOmmitStdConfidence(ommitStdConfidence);
+                mineAssistant.setDatalogNotation(datalogOutput);
+                mineAssistant.setMaxBindingsMemory(BINDINGS_MEMORY);
+                if (MIN_PARALLEL_WORK >= 0) {
+                    mineAssistant.setRefinementPool(null, MIN_PARALLEL_WORK);
+                }
+                //mineAssistant.setTypeRelationship(typeRelationship);
 
+                System.out.println(mineAssistant.getDescription());
 
+                AMIE miner = new AMIE(mineAssistant, minInitialSup, minMetricValue, metric, minerThreads);
+                // The rules of each class and cluster are output when its mining is done
+                miner.setRealTime(realTime && nMiners == 1);
+                miner.setName(clusters.size() == 1 ? targetType : dataFiles.get(i).getName() + ":" + targetType);
+                miner.setBestFirst(cli.hasOption("bestfirst"), beamWidth, maxFrontier);
+                miner.setSeeds(headTargetRelations);
+
+                minerList.add(miner);
+            }
+        }
 
         return minerList;
     }
 
+    /**
+     * It creates an empty KB with the storage selected in the command line.
+     */
+    private static KB newKB() {
+        if (INTEGER_STORAGE) {
+            return configure(new IntKB());
+        }
+        return configure(MATERIALIZED_INDEXES == null ? new KB() : new KB(MATERIALIZED_INDEXES));
+    }
+
+    /**
+     * It applies the query engine options of the command line to the KB, either created
+     * empty or opened from an image.
+     */
+    private static KB configure(KB kb) {
+        kb.setLoadThreads(LOAD_THREADS);
+        kb.setBitmapQueries(BITMAP_QUERIES);
+        if (kb instanceof IntKB) {
+            ((IntKB) kb).setGenericJoin(GENERIC_JOIN);
+        }
+        return kb;
+    }
+
+    /**
+     * It loads and freezes the KB stored in the given file. If KB images are enabled, it opens
+     * the image of the file when it is up to date and writes it otherwise. If the query planner
+     * is enabled, the KB plans its queries with its statistics. If the query cache or the fact
+     * filter are enabled, the KB gets its own.
+     *
+     * @param file
+     * @param cluster If true, every subject of the file is also typed with the class tmpType
+     * @return
+     */
+    private static KB loadKB(File file, boolean cluster) {
+        KB kb = openKB(file, cluster);
+        if (QUERY_PLANNER) {
+            File statistics = new File(file.getPath() + (cluster ? ".cluster" : "") + STATISTICS_EXTENSION);
+            // The statistics are those of the image, which is written with the current options
+            kb.setQueryPlanner(loadStatistics(kb, USE_IMAGES ? imageFile(file, cluster) : file, statistics));
+        }
+        kb.setQueryCache(QUERY_CACHE);
+        kb.setFactFilter(FACT_FILTER_RATE);
+        return kb;
+    }
+
+    /**
+     * It returns the statistics of the KB loaded from the given file, with its overlap tables.
+     * If KB images are enabled, they are read from the statistics file when it is up to date
+     * with respect to the file and written to it otherwise.
+     */
+    private static KBStatistics loadStatistics(KB kb, File file, File statistics) {
+        if (USE_IMAGES && statistics.exists() && statistics.lastModified() >= file.lastModified()) {
+            try {
+                return KBStatistics.read(statistics.toPath());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        KBStatistics result = KBStatistics.compute(kb);
+        if (USE_IMAGES) {
+            try {
+                result.write(statistics.toPath());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * It assigns an identifier to every subject of the KB, so that the views of the
+     * clusters find their subjects in its dictionary (see {@link #loadView(File)}).
+     */
+    private static void encodeSubjects(KB kb) {
+        ByteString[] triple = KB.triple(ByteString.of("?s"), ByteString.of("?p"), ByteString.of("?o"));
+        TermDictionary dictionary = kb.getDictionary();
+        for (ByteString subject : kb.resultsThreeVariables(triple[0], triple[1], triple[2], triple).keySet()) {
+            dictionary.getOrAdd(subject);
+        }
+    }
+
+    /**
+     * It returns the view of the complete KB restricted to the subjects of the facts of
+     * the given file, where every subject is also typed with the class tmpType. The view
+     * is frozen and gets the query planner, cache, bitmap queries and fact filter of the loaded KBs.
+     *
+     * @param file
+     * @return
+     */
+    private static KB loadView(File file) {
+        long time = System.currentTimeMillis();
+        long memory = usedMemory();
+        TermDictionary dictionary = completeKB.getDictionary();
+        CompressedBitmap subjects = new CompressedBitmap();
+        try {
+            for (String line : new FileLines(file, "UTF-8", null)) {
+                String[] fact = KB.parseFact(line);
+                if (fact == null)
+                    continue;
+                // Subjects that are not in the complete KB have no facts in the view
+                int subject = dictionary.get(KB.compress(fact[0]));
+                if (subject != -1)
+                    subjects.add(subject);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        KBView view = new KBView(completeKB, subjects);
+        for (ByteString subject : new ArrayList<>(view.subject2relation2object.keySet())) {
+            view.add(subject, typeRelationship, ByteString.of("tmpType"));
+        }
+        view.freeze();
+        if (QUERY_PLANNER) {
+            view.setQueryPlanner(KBStatistics.compute(view));
+        }
+        view.setQueryCache(QUERY_CACHE);
+        view.setBitmapQueries(BITMAP_QUERIES);
+        view.setFactFilter(FACT_FILTER_RATE);
+        time = System.currentTimeMillis() - time;
+        System.out.println("View of " + view.size() + " facts of " + view.size(KB.Column.Subject) + " subjects of "
+                + file.getName() + " built in " + NumberFormatter.formatMS(time) + " using "
+                + (usedMemory() - memory) / 1000000 + " MB");
+        return view;
+    }
+
+    /**
+     * Heap in use after a garbage collection, in bytes. It measures the memory of the views,
+     * whose indexes that are built later are reported when they are built.
+     */
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * It loads and freezes the KB stored in the given file, using its image if enabled. An
+     * image is only used if it was written with the same options (see {@link #imageDescription(boolean)}).
+     */
+    private static KB openKB(File file, boolean cluster) {
+        File image = imageFile(file, cluster);
+        if (USE_IMAGES && image.exists() && image.lastModified() >= file.lastModified()) {
+            try {
+                KB mapped = KB.openMapped(image.toPath(), imageDescription(cluster));
+                if (INTEGER_STORAGE) {
+                    return configure(mapped);
+                }
+                // Images are dictionary-encoded, so the facts are copied to the selected storage
+                KB kb = newKB();
+                kb.add(mapped);
+                kb.freeze();
+                return kb;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        KB kb = newKB();
+        kb.load(file);
+        if (cluster) {
+            KB tmpKB = newKB();
+            for (ByteString subject : kb.subject2relation2object.keySet()) {
+                tmpKB.add(subject, typeRelationship, ByteString.of("tmpType"));
+            }
+            kb.add(tmpKB);
+        }
+        kb.freeze();
+
+        if (USE_IMAGES) {
+            try {
+                kb.save(image.toPath(), imageDescription(cluster));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return kb;
+    }
+
+    /**
+     * The image of the KB stored in the given file.
+     */
+    private static File imageFile(File file, boolean cluster) {
+        return new File(file.getPath() + (cluster ? ".cluster" : "") + IMAGE_EXTENSION);
+    }
+
+    /**
+     * The description of the images written with the current options: the storage, the
+     * materialized indexes and, for clusters, the type facts added to every subject.
+     */
+    private static String imageDescription(boolean cluster) {
+        String description = INTEGER_STORAGE ? "storage=dict indexes=all"
+                : "storage=maps indexes=" + (MATERIALIZED_INDEXES == null ? "all" : MATERIALIZED_INDEXES);
+        if (cluster) {
+            description += " types=" + typeRelationship + " tmpType";
+        }
+        return description;
+    }
+
     private static void printRuleHeaders(MiningAssistant assistant) {
+        System.out.println(ruleHeaders(assistant));
+    }
+
+    /**
+     * The headers of the columns of the rules output by the assistant, separated by tabs
+     */
+    private static String ruleHeaders(MiningAssistant assistant) {
         List<String> finalHeaders = new ArrayList<>(headers);
         if (assistant.isOmmitStdConfidence()) {
             finalHeaders.removeAll(Arrays.asList("Std Confidence", "Body size"));
@@ -1152,7 +1866,85 @@ public class AMIE {
             finalHeaders.removeAll(Arrays.asList("Std. Lower Bound", "PCA Lower Bound", "PCA Conf estimation"));
         }
 
-        System.out.println(telecom.util.collections.Collections.implode(finalHeaders, "\t"));
+        return telecom.util.collections.Collections.implode(finalHeaders, "\t");
+    }
+
+    /**
+     * It returns the classes of the argument of -types: the lines of the file if it is
+     * the path of a file, otherwise the comma-separated classes.
+     */
+    private static List<String> parseTypes(String value) throws IOException {
+        List<String> types = new ArrayList<>();
+        File file = new File(value);
+        List<String> items = file.isFile() ? Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)
+                : Arrays.asList(value.split(","));
+        for (String item : items) {
+            if (!item.trim().isEmpty() && !types.contains(item.trim()))
+                types.add(item.trim());
+        }
+        return types;
+    }
+
+    /**
+     * It runs the miners concurrently, at most the given number at a time, and outputs the
+     * rules of each one when it is done: in a file of the output directory named after its
+     * class if the directory is not null, otherwise on the standard output.
+     *
+     * @param miners
+     * @param concurrency
+     * @param outputDirectory
+     * @throws InterruptedException
+     */
+    public static void mineAll(List<AMIE> miners, int concurrency, final File outputDirectory)
+            throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        List<Future<?>> futures = new ArrayList<>();
+        for (final AMIE miner : miners) {
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    long time = System.currentTimeMillis();
+                    List<Rule> rules = miner.mine();
+                    outputRules(miner, rules, System.currentTimeMillis() - time, outputDirectory);
+                    return null;
+                }
+            }));
+        }
+        executor.shutdown();
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * It writes the rules mined for a class (see {@link #mineAll(List, int, File)}).
+     */
+    private static void outputRules(AMIE miner, List<Rule> rules, long time, File outputDirectory) throws IOException {
+        MiningAssistant assistant = miner.getAssistant();
+        String target = miner.getName();
+        if (target == null) {
+            target = assistant instanceof SchemaAttributeMiningAssistant ?
+                    ((SchemaAttributeMiningAssistant) assistant).getConcept().toString() : assistant.getDescription();
+        }
+        StringBuilder output = new StringBuilder();
+        output.append(ruleHeaders(assistant)).append('\n');
+        for (Rule rule : rules) {
+            output.append(assistant.formatRule(rule)).append('\n');
+        }
+        if (outputDirectory != null) {
+            File file = new File(outputDirectory, target.replaceAll("[^A-Za-z0-9._-]", "_") + ".tsv");
+            Files.write(file.toPath(), output.toString().getBytes(StandardCharsets.UTF_8));
+            System.out.println(rules.size() + " rules for " + target + " in "
+                    + NumberFormatter.formatMS(time) + ", written to " + file);
+        } else {
+            synchronized (System.out) {
+                System.out.println(rules.size() + " rules for " + target + " in " + NumberFormatter.formatMS(time));
+                System.out.print(output);
+            }
+        }
     }
 
 
@@ -1170,7 +1962,21 @@ public class AMIE {
         ArrayList<AMIE> miners = AMIE.getInstance(args);
         AMIE miner = miners.get(0);
         MiningAssistant assistant = miner.getAssistant();
-        miner.mine();
+        if (miners.size() == 1) {
+            miner.mine();
+        } else {
+            mineAll(miners, MINING_CONCURRENCY, MINING_OUTPUT);
+        }
+        if (miner.getAssistant().getKb().getQueryCache() != null) {
+            System.out.println(miner.getAssistant().getKb().getQueryCache());
+        }
+        if (completeKB != null && completeKB.getQueryCache() != null) {
+            System.out.println("Complete KB: " + completeKB.getQueryCache());
+        }
+        if (completeKB != null && completeKB.getSketchPrecision() > 0) {
+            System.out.println("Sketches of the complete KB: "
+                    + (completeKB.getSketchMemory() >> 10) + " KB");
+        }
     }
 
 }
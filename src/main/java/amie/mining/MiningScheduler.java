@@ -0,0 +1,398 @@
+package amie.mining;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import amie.rules.Rule;
+
+/**
+ * Schedules the refinement of rules on a work-stealing {@link ForkJoinPool}. Every rule
+ * is refined by its own task, which forks one task per refinement onto the deque of its
+ * worker. Workers take their own tasks in FIFO order and idle workers steal the tasks of
+ * the others, so they never sleep while there is work left. Each task completes when all
+ * its refinements have, hence the mining ends exactly when the seeds and all their
+ * descendants have been refined.
+ *
+ * A rule that is equal to a rule waiting for its refinement is not scheduled again.
+ *
+ * In best-first mode (see {@link #setBestFirst(Comparator, int, int)}) the rules wait
+ * instead in a shared frontier ordered by a priority, and every worker refines the best
+ * rule of the frontier. The frontier can be bounded: each rule keeps only its best
+ * refinements (the beam) and the worst rules are dropped when the frontier is full, so
+ * the mining runs in a predictable time and memory.
+ */
+public final class MiningScheduler {
+
+	/** Refines a rule */
+	public interface Refiner {
+		/**
+		 * It refines the rule and adds the rules that must be refined next to the collection.
+		 */
+		void refine(Rule rule, Collection<Rule> refinements);
+	}
+
+	/**
+	 * Best-first order of the rules with the highest class confidence, then the highest
+	 * support, then the fewest atoms.
+	 */
+	public static final Comparator<Rule> BY_CLASS_CONFIDENCE = new Comparator<Rule>() {
+		public int compare(Rule r1, Rule r2) {
+			int c = Double.compare(r2.getClassConfidence(), r1.getClassConfidence());
+			if (c == 0)
+				c = Double.compare(r2.getSupport(), r1.getSupport());
+			if (c == 0)
+				c = Integer.compare(r1.getLength(), r2.getLength());
+			return c;
+		}
+	};
+
+	/** Counters of a worker of the pool */
+	public static final class WorkerStatistics {
+
+		private final int index;
+
+		private final AtomicLong rules = new AtomicLong();
+
+		private final AtomicLong steals = new AtomicLong();
+
+		private volatile int maxQueueDepth;
+
+		private WorkerStatistics(int index) {
+			this.index = index;
+		}
+
+		/** Index of the worker in the pool */
+		public int getIndex() {
+			return index;
+		}
+
+		/** Number of rules refined by the worker */
+		public long getRules() {
+			return rules.get();
+		}
+
+		/** Number of rules refined by the worker that were scheduled by another worker */
+		public long getSteals() {
+			return steals.get();
+		}
+
+		/** Largest number of tasks that waited in the deque of the worker */
+		public int getMaxQueueDepth() {
+			return maxQueueDepth;
+		}
+
+		@Override
+		public String toString() {
+			return "Miner " + index + ": " + rules.get() + " rules, " + steals.get() + " steals, max queue depth "
+					+ maxQueueDepth;
+		}
+	}
+
+	private final ForkJoinPool pool;
+
+	private final int nThreads;
+
+	private final Refiner refiner;
+
+	/** Priority of the rules in best-first mode, null for the breadth-first mode */
+	private Comparator<Rule> order;
+
+	/** Maximal number of refinements scheduled per rule in best-first mode, 0 for no limit */
+	private int beamWidth;
+
+	/** Maximal number of rules of the frontier in best-first mode, 0 for no limit */
+	private int maxFrontier;
+
+	/** Rules waiting in best-first mode, in the order of their priority */
+	private final TreeSet<Entry> frontier = new TreeSet<Entry>();
+
+	private final Lock frontierLock = new ReentrantLock();
+
+	/** Signaled when the frontier gets rules or the mining ends */
+	private final Condition frontierChanged = frontierLock.newCondition();
+
+	/** Number of rules being refined in best-first mode */
+	private int active;
+
+	/** Number of rules added to the frontier so far, to break ties in insertion order */
+	private long sequence;
+
+	/** Error of a worker that stops the best-first mining */
+	private RuntimeException failure;
+
+	/** Rules left out of the beam or dropped from a full frontier */
+	private final AtomicLong dropped = new AtomicLong();
+
+	private volatile int maxFrontierSize;
+
+	/** Rules scheduled but not refined yet */
+	private final Set<Rule> pending = ConcurrentHashMap.newKeySet();
+
+	private final Map<Integer, WorkerStatistics> statistics = new ConcurrentHashMap<Integer, WorkerStatistics>();
+
+	/**
+	 * @param nThreads Number of workers
+	 * @param refiner
+	 */
+	public MiningScheduler(int nThreads, Refiner refiner) {
+		// FIFO deques, so that the rules are refined roughly in breadth-first order, shortest rules first
+		this.pool = new ForkJoinPool(nThreads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		this.nThreads = nThreads;
+		this.refiner = refiner;
+	}
+
+	/**
+	 * It makes the workers refine the best rule of a shared frontier first.
+	 * @param order Priority of the rules, e.g., {@link #BY_CLASS_CONFIDENCE}. Rules that are
+	 * likely to lead to the best refinements should come first.
+	 * @param beamWidth Maximal number of refinements of each rule that are scheduled, the best
+	 * ones according to the order. 0 for no limit.
+	 * @param maxFrontier Maximal number of rules waiting in the frontier. When it is full the
+	 * worst rules are dropped. 0 for no limit.
+	 */
+	public void setBestFirst(Comparator<Rule> order, int beamWidth, int maxFrontier) {
+		if (beamWidth < 0 || maxFrontier < 0)
+			throw new IllegalArgumentException("The beam width and the size of the frontier must not be negative");
+		this.order = order;
+		this.beamWidth = beamWidth;
+		this.maxFrontier = maxFrontier;
+	}
+
+	/**
+	 * It refines the seeds and all their descendants and returns when there is no rule left.
+	 * @param seeds
+	 */
+	public void run(Collection<Rule> seeds) {
+		for (Rule seed : seeds)
+			seed.setGeneration(1);
+		try {
+			if (order == null)
+				pool.invoke(new RefinementTask(null, null, seeds));
+			else
+				runBestFirst(seeds);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/** A rule of the frontier */
+	private final class Entry implements Comparable<Entry> {
+
+		private final Rule rule;
+
+		private final long sequence;
+
+		Entry(Rule rule, long sequence) {
+			this.rule = rule;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			int c = order.compare(rule, other.rule);
+			return c != 0 ? c : Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private void runBestFirst(Collection<Rule> seeds) {
+		frontierLock.lock();
+		try {
+			schedule(seeds, null);
+		} finally {
+			frontierLock.unlock();
+		}
+		List<ForkJoinTask<?>> workers = new ArrayList<ForkJoinTask<?>>();
+		for (int i = 0; i < nThreads; ++i) {
+			workers.add(pool.submit(new Runnable() {
+				public void run() {
+					refineBestFirst();
+				}
+			}));
+		}
+		for (ForkJoinTask<?> worker : workers)
+			worker.join();
+	}
+
+	/**
+	 * Adds rules to the frontier, at most beamWidth of them if the parent is not null, and
+	 * drops the worst rules if the frontier is full. The caller holds the frontier lock.
+	 */
+	private void schedule(Collection<Rule> rules, Rule parent) {
+		List<Rule> beam = new ArrayList<Rule>(rules);
+		if (parent != null && beamWidth > 0 && beam.size() > beamWidth) {
+			Collections.sort(beam, order);
+			dropped.addAndGet(beam.size() - beamWidth);
+			beam = beam.subList(0, beamWidth);
+		}
+		for (Rule rule : beam) {
+			// The generation is part of the hash code of the rule, so it is set first
+			if (parent != null)
+				rule.setGeneration(parent.getGeneration() + 1);
+			if (!pending.add(rule))
+				continue;
+			frontier.add(new Entry(rule, sequence++));
+			if (maxFrontier > 0 && frontier.size() > maxFrontier) {
+				pending.remove(frontier.pollLast().rule);
+				dropped.incrementAndGet();
+			}
+		}
+		if (frontier.size() > maxFrontierSize)
+			maxFrontierSize = frontier.size();
+		frontierChanged.signalAll();
+	}
+
+	/**
+	 * Refines the best rule of the frontier until the frontier is empty and no other
+	 * worker is refining a rule, i.e., no more rules can come.
+	 */
+	private void refineBestFirst() {
+		WorkerStatistics worker = currentWorker();
+		while (true) {
+			Rule rule;
+			frontierLock.lock();
+			try {
+				while (frontier.isEmpty() && active > 0 && failure == null)
+					frontierChanged.awaitUninterruptibly();
+				if (failure != null)
+					throw failure;
+				if (frontier.isEmpty()) {
+					frontierChanged.signalAll();
+					return;
+				}
+				rule = frontier.pollFirst().rule;
+				pending.remove(rule);
+				++active;
+			} finally {
+				frontierLock.unlock();
+			}
+			List<Rule> refinements = new ArrayList<Rule>();
+			RuntimeException error = null;
+			try {
+				refiner.refine(rule, refinements);
+				worker.rules.incrementAndGet();
+			} catch (RuntimeException e) {
+				error = e;
+			}
+			frontierLock.lock();
+			try {
+				--active;
+				if (error != null && failure == null)
+					failure = error;
+				if (failure == null)
+					schedule(refinements, rule);
+				frontierChanged.signalAll();
+			} finally {
+				frontierLock.unlock();
+			}
+			if (error != null)
+				throw error;
+		}
+	}
+
+	/** Number of rules left out of the beam or dropped from a full frontier in best-first mode */
+	public long getDroppedRules() {
+		return dropped.get();
+	}
+
+	/** Largest number of rules that waited in the frontier in best-first mode */
+	public int getMaxFrontierSize() {
+		return maxFrontierSize;
+	}
+
+	/** Number of rules waiting for their refinement */
+	public int getPendingRules() {
+		return pending.size();
+	}
+
+	/** Total number of tasks stolen by the workers from the deques of the others */
+	public long getStealCount() {
+		return pool.getStealCount();
+	}
+
+	/** Counters of the workers that took part in the mining */
+	public List<WorkerStatistics> getWorkerStatistics() {
+		return new ArrayList<WorkerStatistics>(statistics.values());
+	}
+
+	private WorkerStatistics currentWorker() {
+		int index = ((ForkJoinWorkerThread) Thread.currentThread()).getPoolIndex();
+		WorkerStatistics worker = statistics.get(index);
+		if (worker == null) {
+			statistics.putIfAbsent(index, new WorkerStatistics(index));
+			worker = statistics.get(index);
+		}
+		return worker;
+	}
+
+	/** Refinement of a rule. The root task has no rule and schedules the seeds. */
+	private final class RefinementTask extends CountedCompleter<Void> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Rule rule;
+
+		/** Seeds of the root task */
+		private final Collection<Rule> seeds;
+
+		/** Worker that scheduled the task, null for the root */
+		private final WorkerStatistics owner;
+
+		RefinementTask(RefinementTask parent, WorkerStatistics owner, Rule rule) {
+			super(parent);
+			this.rule = rule;
+			this.seeds = null;
+			this.owner = owner;
+		}
+
+		RefinementTask(RefinementTask parent, WorkerStatistics owner, Collection<Rule> seeds) {
+			super(parent);
+			this.rule = null;
+			this.seeds = seeds;
+			this.owner = owner;
+		}
+
+		@Override
+		public void compute() {
+			WorkerStatistics worker = currentWorker();
+			Collection<Rule> refinements;
+			if (rule == null) {
+				refinements = seeds;
+			} else {
+				pending.remove(rule);
+				if (owner != null && owner != worker)
+					worker.steals.incrementAndGet();
+				refinements = new ArrayList<Rule>();
+				refiner.refine(rule, refinements);
+				worker.rules.incrementAndGet();
+			}
+			for (Rule refinement : refinements) {
+				// The generation is part of the hash code of the rule, so it is set first
+				if (rule != null)
+					refinement.setGeneration(rule.getGeneration() + 1);
+				if (!pending.add(refinement))
+					continue;
+				addToPendingCount(1);
+				new RefinementTask(this, worker, refinement).fork();
+			}
+			int depth = getQueuedTaskCount();
+			if (depth > worker.maxQueueDepth)
+				worker.maxQueueDepth = depth;
+			tryComplete();
+		}
+	}
+}
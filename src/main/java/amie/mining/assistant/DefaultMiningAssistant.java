@@ -447,8 +447,7 @@ public class DefaultMiningAssistant extends MiningAssistant{
 				// Do this checking only for non-empty queries
 				//If the new edge does not contribute with anything
 				if (!query.isEmpty()) {
-					long cardLastEdge = this.kb.countDistinct(targetEdge[joinPosition], candidate.getTriples());
-					if(cardLastEdge < 2)
+					if(!this.kb.countDistinctAtLeast(targetEdge[joinPosition], candidate.getTriples(), 2))
 						continue;
 				}
 				
@@ -1,17 +1,31 @@
 package amie.mining.assistant;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import amie.data.CompressedBitmap;
 import amie.data.KB;
 import amie.rules.ConfidenceMetric;
 import amie.rules.Metric;
@@ -20,6 +34,7 @@ import javatools.datatypes.ByteString;
 import javatools.datatypes.IntHashMap;
 import javatools.datatypes.MultiMap;
 import javatools.datatypes.Pair;
+import javatools.parsers.NumberFormatter;
 
 /**
  * Simpler miner assistant which implements all the logic required
@@ -194,7 +209,56 @@ public class MiningAssistant{
     /**
      * Sequence of mining operators to be applied to a rule.
      */
-    private LinkedList<Method> miningOperators;
+    private CompiledOperator[] miningOperators;
+
+	/**
+	 * Output buffers of the mining operators, reused by the calls of each thread
+	 */
+	private final ThreadLocal<OperatorBuffers> operatorBuffers = new ThreadLocal<OperatorBuffers>() {
+		protected OperatorBuffers initialValue() {
+			return new OperatorBuffers(miningOperators.length);
+		}
+	};
+
+	/**
+	 * Maximal memory in bytes of the bindings that rules keep for their refinements
+	 * (see {@link #headBindings(Rule)}). If 0, the support of every refinement is computed
+	 * from scratch.
+	 */
+	protected long maxBindingsMemory;
+
+	/**
+	 * Memory of the bindings kept by rules, released when they are garbage collected
+	 */
+	private final AtomicLong bindingsMemory = new AtomicLong();
+
+	private final ReferenceQueue<CompressedBitmap> releasedBindings = new ReferenceQueue<CompressedBitmap>();
+
+	private final Map<Reference<CompressedBitmap>, Long> keptBindings = new ConcurrentHashMap<Reference<CompressedBitmap>, Long>();
+
+	/**
+	 * Default minimal work for the refinements of a rule to be computed in parallel
+	 * (see {@link #setRefinementPool(ForkJoinPool, int)}).
+	 */
+	public static final int DEFAULT_MIN_PARALLEL_WORK = 64;
+
+	/**
+	 * Pool on which the refinements of a single rule are computed in parallel, null to
+	 * use the pool of the thread that refines the rule.
+	 */
+	protected ForkJoinPool refinementPool;
+
+	/**
+	 * TRUE if the refinements of a single rule can be computed in parallel
+	 * (see {@link #setRefinementPool(ForkJoinPool, int)}).
+	 */
+	protected boolean parallelRefinements;
+
+	/**
+	 * Minimal estimated work of the refinements of a rule, in candidates to evaluate or
+	 * bindings to scan, for them to be computed in parallel.
+	 */
+	protected int minParallelWork = DEFAULT_MIN_PARALLEL_WORK;
 
 
 	/**
@@ -226,7 +290,6 @@ public class MiningAssistant{
 		this.datalogNotation = false;
 		this.ommitStdConfidence = false;
 		buildRelationsDictionary();
-		this.miningOperators = new LinkedList<>();
 		computeOperatorHierarchy();
 	}
 
@@ -283,19 +346,108 @@ public class MiningAssistant{
 		}
 	}
 
+	/**
+	 * Counters of the applications of a mining operator
+	 */
+	public static final class OperatorStatistics {
+
+		private final String name;
+
+		private final LongAdder calls = new LongAdder();
+
+		private final LongAdder nanos = new LongAdder();
+
+		private final LongAdder rules = new LongAdder();
+
+		private OperatorStatistics(String name) {
+			this.name = name;
+		}
+
+		/** Name of the operator (see {@link MiningOperator#name()}) */
+		public String getName() {
+			return name;
+		}
+
+		/** Number of rules the operator was applied to */
+		public long getCalls() {
+			return calls.sum();
+		}
+
+		/** Total time spent in the operator by all the threads, in nanoseconds */
+		public long getNanos() {
+			return nanos.sum();
+		}
+
+		/** Number of refinements produced by the operator */
+		public long getRules() {
+			return rules.sum();
+		}
+
+		@Override
+		public String toString() {
+			return "Operator " + name + ": " + calls.sum() + " calls, " + rules.sum() + " refinements, "
+					+ NumberFormatter.formatMS(nanos.sum() / 1000000);
+		}
+	}
+
+	/**
+	 * A mining operator compiled to a method handle bound to this assistant
+	 */
+	private static final class CompiledOperator {
+
+		/** (Rule, double, Collection) or (Rule, double, Collection, Collection) with the
+		 * output of the dependency as third argument */
+		final MethodHandle handle;
+
+		/** Position of the operator whose output this one takes, -1 if none */
+		final int dependency;
+
+		final OperatorStatistics statistics;
+
+		CompiledOperator(MethodHandle handle, int dependency, String name) {
+			this.handle = handle;
+			this.dependency = dependency;
+			this.statistics = new OperatorStatistics(name);
+		}
+	}
+
+	/**
+	 * Outputs of the mining operators in one call of {@link MiningAssistant#applyMiningOperators(Rule, double)}
+	 */
+	private static final class OperatorBuffers {
+
+		final ArrayList<ArrayList<Rule>> outputs;
+
+		final Map<String, Collection<Rule>> results = new LinkedHashMap<>();
+
+		/** TRUE while the operators of a call write into the buffers */
+		boolean inUse;
+
+		OperatorBuffers(int nOperators) {
+			outputs = new ArrayList<>(nOperators);
+			for (int i = 0; i < nOperators; ++i)
+				outputs.add(new ArrayList<Rule>());
+		}
+	}
+
 	/**
 	 * This method precomputes the order in which the mining operators will be
-	 * called by AMIE.
+	 * called by AMIE and compiles them to method handles. Operators overridden
+	 * in a subclass are applied once, through the override.
 	 *
 	 */
 	private void computeOperatorHierarchy() {
 	    Class<?> klass = this.getClass();
 	    OperatorDependencyTree opTree = new OperatorDependencyTree();
+	    Set<String> signatures = new HashSet<>();
 	    while (klass != Object.class) { // need to iterated thought hierarchy in order to retrieve methods from above the current instance
 	        // iterate though the list of methods declared in the class represented by klass variable, and add those annotated with the specified annotation
 	        final List<Method> allMethods = new ArrayList<Method>(Arrays.asList(klass.getDeclaredMethods()));
 	        for (final Method method : allMethods) {
 	            if (method.isAnnotationPresent(MiningOperator.class)) {
+	            	// The subclasses are visited first, so an overridden operator was already added
+	            	if (!signatures.add(method.getName() + Arrays.toString(method.getParameterTypes())))
+	            		continue;
 	            	MiningOperator annotInstance = method.getAnnotation(MiningOperator.class);
 	            	if (annotInstance.dependency().equals("")) {
 	            		opTree.addMethod(method);
@@ -308,7 +460,38 @@ public class MiningAssistant{
 	        klass = klass.getSuperclass();
 	    }
 
-	    opTree.traverse(this.miningOperators);
+	    LinkedList<Method> methods = new LinkedList<>();
+	    opTree.traverse(methods);
+	    this.miningOperators = new CompiledOperator[methods.size()];
+	    int i = 0;
+	    for (Method m : methods) {
+	    	MiningOperator mo = m.getAnnotation(MiningOperator.class);
+	    	int dependency = -1;
+	    	MethodType type = MethodType.methodType(void.class, Rule.class, double.class, Collection.class);
+	    	if (!mo.dependency().equals("")) {
+	    		for (int j = 0; j < i; ++j)
+	    			if (miningOperators[j].statistics.name.equals(mo.dependency()))
+	    				dependency = j;
+	    		type = type.appendParameterTypes(Collection.class);
+	    	}
+	    	try {
+	    		m.setAccessible(true);
+	    		MethodHandle handle = MethodHandles.lookup().unreflect(m).bindTo(this).asType(type);
+	    		miningOperators[i++] = new CompiledOperator(handle, dependency, mo.name());
+	    	} catch (IllegalAccessException | RuntimeException e) {
+	    		throw new IllegalArgumentException("The mining operator " + m + " cannot be called", e);
+	    	}
+	    }
+	}
+
+	/**
+	 * Counters of the mining operators applied so far, in the order they are applied
+	 */
+	public List<OperatorStatistics> getOperatorStatistics() {
+		List<OperatorStatistics> result = new ArrayList<>(miningOperators.length);
+		for (CompiledOperator op : miningOperators)
+			result.add(op.statistics);
+		return result;
 	}
 
 	/**
@@ -401,6 +584,160 @@ public class MiningAssistant{
 		return kb;
 	}
 
+	/**
+	 * It sets the maximal memory of the bindings that rules keep for their refinements,
+	 * 0 to compute the support of every refinement from scratch.
+	 * @param bytes
+	 */
+	public void setMaxBindingsMemory(long bytes) {
+		this.maxBindingsMemory = bytes;
+	}
+
+	public long getMaxBindingsMemory() {
+		return maxBindingsMemory;
+	}
+
+	/**
+	 * It makes the operators compute the refinements of a single rule in batches on the
+	 * given pool, e.g., one batch per join position, per group of relations or per group
+	 * of constants, if their work is at least the given minimum. Smaller rules are refined
+	 * sequentially, as the batches would not pay for themselves. The pool can be shared by
+	 * the miners of several rules.
+	 * @param pool Null to run the batches on the pool of the thread that refines the rule,
+	 * e.g., a worker of the MiningScheduler, so that no threads are added. Rules refined
+	 * outside a ForkJoinPool are then refined sequentially.
+	 * @param minParallelWork
+	 */
+	public void setRefinementPool(ForkJoinPool pool, int minParallelWork) {
+		if (minParallelWork < 0)
+			throw new IllegalArgumentException("The minimal work of a parallel refinement must not be negative: " + minParallelWork);
+		this.refinementPool = pool;
+		this.minParallelWork = minParallelWork;
+		this.parallelRefinements = true;
+	}
+
+	public ForkJoinPool getRefinementPool() {
+		return refinementPool;
+	}
+
+	public int getMinParallelWork() {
+		return minParallelWork;
+	}
+
+	/**
+	 * Computes the refinements of a rule derived from one item, e.g., a relation or a constant.
+	 * Implementations are called concurrently for different items and must not modify the rule.
+	 */
+	protected interface Refinement<T> {
+		void refine(T item, Collection<Rule> output);
+	}
+
+	/**
+	 * It computes the refinements of all the items and adds them to the output in the order
+	 * of the items. They are computed in parallel batches on the refinement pool if the
+	 * estimated work reaches the minimum (see {@link #setRefinementPool(ForkJoinPool, int)}).
+	 * @param items
+	 * @param work Estimated work, in candidates to evaluate or bindings to scan
+	 * @param refinement
+	 * @param output
+	 */
+	protected <T> void refineAll(List<T> items, long work, Refinement<T> refinement, Collection<Rule> output) {
+		ForkJoinPool pool = refinementPool != null ? refinementPool : ForkJoinTask.getPool();
+		if (!parallelRefinements || pool == null || items.size() < 2 || work < minParallelWork || pool.isShutdown()) {
+			for (T item : items)
+				refinement.refine(item, output);
+			return;
+		}
+		int batchSize = Math.max(1, items.size() / (4 * pool.getParallelism()));
+		RefinementBatch<T> batch = new RefinementBatch<T>(items, 0, items.size(), batchSize, refinement);
+		// A batch that refines items in parallel again forks onto the current worker
+		output.addAll(ForkJoinTask.getPool() == pool ? batch.invoke() : pool.invoke(batch));
+	}
+
+	/**
+	 * Refinements of a range of items, split in halves down to the batch size
+	 */
+	private static final class RefinementBatch<T> extends RecursiveTask<List<Rule>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<T> items;
+
+		private final int from, to, batchSize;
+
+		private final Refinement<T> refinement;
+
+		RefinementBatch(List<T> items, int from, int to, int batchSize, Refinement<T> refinement) {
+			this.items = items;
+			this.from = from;
+			this.to = to;
+			this.batchSize = batchSize;
+			this.refinement = refinement;
+		}
+
+		@Override
+		protected List<Rule> compute() {
+			if (to - from <= batchSize) {
+				List<Rule> output = new ArrayList<>();
+				for (int i = from; i < to; ++i)
+					refinement.refine(items.get(i), output);
+				return output;
+			}
+			int middle = (from + to) >>> 1;
+			RefinementBatch<T> left = new RefinementBatch<T>(items, from, middle, batchSize, refinement);
+			left.fork();
+			List<Rule> right = new RefinementBatch<T>(items, middle, to, batchSize, refinement).compute();
+			List<Rule> output = left.join();
+			output.addAll(right);
+			return output;
+		}
+	}
+
+	/**
+	 * It returns the bindings of the functional variable of the rule as a bitmap, null if
+	 * the rule is not star-shaped around that variable or bindings are not kept. If the
+	 * rule carries the bindings of its parent, they are only filtered with the last atom
+	 * of the rule. Otherwise the body is evaluated.
+	 * @param rule
+	 * @return
+	 */
+	protected CompressedBitmap headBindings(Rule rule) {
+		if (maxBindingsMemory <= 0)
+			return null;
+		ByteString variable = rule.getFunctionalVariable();
+		List<ByteString[]> triples = rule.getTriples();
+		if (!kb.isStarQuery(variable, triples))
+			return null;
+		CompressedBitmap parentBindings = rule.getParentBindings();
+		if (parentBindings != null)
+			return kb.extendBindings(parentBindings, variable, rule.getLastTriplePattern());
+		return kb.selectDistinctBitmap(variable, triples);
+	}
+
+	/**
+	 * It reserves memory for bindings that the refinements of a rule will carry
+	 * (see {@link Rule#setParentBindings(CompressedBitmap)}). The memory is released once
+	 * no rule references them.
+	 * @param bindings
+	 * @return FALSE if they do not fit in the memory limit, in which case the refinements
+	 * must not carry them.
+	 */
+	protected boolean keepBindings(CompressedBitmap bindings) {
+		Reference<? extends CompressedBitmap> released;
+		while ((released = releasedBindings.poll()) != null) {
+			Long size = keptBindings.remove(released);
+			if (size != null)
+				bindingsMemory.addAndGet(-size);
+		}
+		long size = bindings.sizeInBytes();
+		if (bindingsMemory.addAndGet(size) > maxBindingsMemory) {
+			bindingsMemory.addAndGet(-size);
+			return false;
+		}
+		keptBindings.put(new WeakReference<CompressedBitmap>(bindings, releasedBindings), size);
+		return true;
+	}
+
 	/**
 	 * It returns the KB containing the schema information (subclass and subproperty relationships,
 	 * domains and ranges for relation, etc.) about the training dataset.
@@ -620,7 +957,7 @@ public class MiningAssistant{
 						if(candidate.containsUnifiablePatterns()){
 							//Verify whether dangling variable unifies to a single value (I do not like this hack)
 							if(boundHead &&
-									kb.countDistinct(newEdge[danglingPosition], candidate.getTriples()) < 2)
+									!kb.countDistinctAtLeast(newEdge[danglingPosition], candidate.getTriples(), 2))
 								continue;
 						}
 
@@ -1362,32 +1699,52 @@ public class MiningAssistant{
 	}
 
 	/**
-	 * It call all the declared mining operators.
+	 * It call all the declared mining operators. The collections of the result are
+	 * reused by the next call of the same thread, hence they must be consumed before.
 	 * @param currentRule
 	 * @param threshold
-	 * @throws InvocationTargetException
+	 * @throws InvocationTargetException If an operator throws an exception
 	 * @throws IllegalArgumentException
 	 * @throws IllegalAccessException
 	 */
 	public Map<String, Collection<Rule>> applyMiningOperators(Rule currentRule, double threshold)
 			throws IllegalAccessException, IllegalArgumentException, InvocationTargetException {
-		Map<String, Collection<Rule>> temporalResultsMap = new LinkedHashMap<>();
-		for (Method m: this.miningOperators) {
-			//System.out.println("Mining on Rule " + currentRule + "with Mining Operator " + m.getName());
-			long start = System.currentTimeMillis();
-			MiningOperator mo = m.getAnnotation(MiningOperator.class);
-			Collection<Rule> tmpResult = new ArrayList<>();
-			if (mo.dependency().equals("")) {
-				m.invoke(this, currentRule, threshold, tmpResult);
-			} else {
-				m.invoke(this, currentRule, threshold, temporalResultsMap.get(mo.dependency()), tmpResult);
+		OperatorBuffers buffers = operatorBuffers.get();
+		// An operator may wait for tasks that apply the operators on this thread
+		if (buffers.inUse)
+			buffers = new OperatorBuffers(miningOperators.length);
+		buffers.inUse = true;
+		try {
+			buffers.results.clear();
+			for (int i = 0; i < miningOperators.length; ++i) {
+				CompiledOperator op = miningOperators[i];
+				Collection<Rule> tmpResult = buffers.outputs.get(i);
+				tmpResult.clear();
+				long start = System.nanoTime();
+				try {
+					if (op.dependency < 0) {
+						op.handle.invokeExact(currentRule, threshold, tmpResult);
+					} else {
+						Collection<Rule> input = buffers.outputs.get(op.dependency);
+						op.handle.invokeExact(currentRule, threshold, input, tmpResult);
+					}
+				} catch (Error e) {
+					throw e;
+				} catch (Throwable e) {
+					throw new InvocationTargetException(e);
+				}
+				op.statistics.nanos.add(System.nanoTime() - start);
+				op.statistics.calls.increment();
+				op.statistics.rules.add(tmpResult.size());
+				buffers.results.put(op.statistics.name, tmpResult);
 			}
-			long end = System.currentTimeMillis();
-			System.out.println("Applying" + m.getName() + " took " + (end-start) + "ms");
-			temporalResultsMap.put(mo.name(), tmpResult);
+		} finally {
+			buffers.inUse = false;
 		}
+		// The refinements carry their own bindings
+		currentRule.setParentBindings(null);
 
-		return temporalResultsMap;
+		return buffers.results;
 	}
 
 	public void setAllowConstants(boolean allowConstants) {
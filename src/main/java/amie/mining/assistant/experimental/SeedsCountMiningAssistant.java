@@ -250,7 +250,7 @@ public class SeedsCountMiningAssistant extends MiningAssistant {
 						Rule candidate = query.addAtom(newEdge, cardinality, newEdge[joinPosition], newEdge[danglingPosition]);
 						if(candidate.containsUnifiablePatterns()){
 							//Verify whether dangling variable unifies to a single value (I do not like this hack)
-							if(boundHead && kb.countDistinct(newEdge[danglingPosition], candidate.getTriples()) < 2)
+							if(boundHead && !kb.countDistinctAtLeast(newEdge[danglingPosition], candidate.getTriples(), 2))
 								continue;
 						}
 						
@@ -1,7 +1,9 @@
 package amie.mining.assistant.schemamining;
 
 
+import amie.data.CompressedBitmap;
 import amie.data.KB;
+import amie.data.KBView;
 import amie.mining.AMIE;
 import amie.mining.assistant.MiningAssistant;
 import amie.mining.assistant.MiningOperator;
@@ -20,6 +22,12 @@ public class SchemaAttributeMiningAssistant extends MiningAssistant {
     static Object myLock = new Object();
     int classSize;
 
+    /** If true, the support of the bodies in the complete KB is first estimated from sketches */
+    protected boolean approximateClassConfidence = false;
+
+    /** Members of the class in the KB as a bitmap of term identifiers, computed on first use */
+    private volatile CompressedBitmap classMembers;
+
 
 
 
@@ -60,6 +68,13 @@ public class SchemaAttributeMiningAssistant extends MiningAssistant {
 
 
 
+    /**
+     * The class whose schema is mined
+     */
+    public ByteString getConcept() {
+        return concept;
+    }
+
     @Override
     public String getDescription() {
         return "Rules of the form r(x,y) r(x,z) => type(x, C) or r(x,c1) r(x,c2) => type(x, C)";
@@ -95,74 +110,95 @@ public class SchemaAttributeMiningAssistant extends MiningAssistant {
 
 
     @MiningOperator(name = "dangling")
-    public void getDanglingAtoms(Rule rule, double minSupportThreshold, Collection<Rule> output) {
-        ByteString[] newEdge = rule.fullyUnboundTriplePattern();
+    public void getDanglingAtoms(final Rule rule, final double minSupportThreshold, Collection<Rule> output) {
+        final ByteString[] newEdge = rule.fullyUnboundTriplePattern();
 
         List<ByteString> joinVariables = null;
 
 
         //Bind all Atoms to central entity variable
         joinVariables = rule.getVariables();
-        ByteString joinVariable = joinVariables.get(0);
+        final ByteString joinVariable = joinVariables.get(0);
 
-        int nPatterns = rule.getTriples().size();
-        ByteString originalRelationVariable = newEdge[1];
+        // With the bindings of the rule, the support of each refinement is an intersection
+        final CompressedBitmap bindings = joinVariable.equals(rule.getFunctionalVariable()) ? headBindings(rule) : null;
+        final boolean shareBindings = bindings != null && keepBindings(bindings);
 
-        for (int joinPosition = 0; joinPosition <= 2; joinPosition += 2) {
-            ByteString originalFreshVariable = newEdge[joinPosition];
-
-
-            newEdge[joinPosition] = joinVariable;
-            rule.getTriples().add(newEdge);
-            IntHashMap<ByteString> promisingRelations = kb.frequentBindingsOf(newEdge[1],
-                    rule.getFunctionalVariable(), rule.getTriples());
-            rule.getTriples().remove(nPatterns);
-
-            int danglingPosition = (joinPosition == 0 ? 2 : 0);
-
-            for (ByteString relation : promisingRelations) {
-                if (this.bodyExcludedRelations != null &&
-                        this.bodyExcludedRelations.contains(relation))
-                    continue;
-                //Here we still have to make a redundancy check
-                int cardinality = promisingRelations.get(relation);
+        // Each join position scans the bindings of the rule
+        refineAll(Arrays.asList(0, 2), (long) rule.getSupport(), new Refinement<Integer>() {
+            public void refine(Integer joinPosition, Collection<Rule> output) {
+                getDanglingAtoms(rule, joinPosition, joinVariable, newEdge, bindings, shareBindings,
+                        minSupportThreshold, output);
+            }
+        }, output);
+    }
 
+    /**
+     * It adds the refinements of the rule with a dangling atom joined on the given position.
+     * The refinements with different relations are computed in parallel if there are enough
+     * of them (see {@link #refineAll(List, long, Refinement, Collection)}).
+     */
+    private void getDanglingAtoms(final Rule rule, int joinPosition, ByteString joinVariable, ByteString[] freshEdge,
+                                  final CompressedBitmap bindings, final boolean shareBindings,
+                                  double minSupportThreshold, Collection<Rule> output) {
+        final ByteString[] newEdge = freshEdge.clone();
+        newEdge[joinPosition] = joinVariable;
+        final IntHashMap<ByteString> promisingRelations;
+        if (bindings != null) {
+            promisingRelations = kb.countBindingsPerRelation(bindings, joinPosition);
+        } else {
+            // The rule is shared with the other join position, hence it is not modified
+            List<ByteString[]> query = new ArrayList<>(rule.getTriples());
+            query.add(newEdge);
+            promisingRelations = kb.frequentBindingsOf(newEdge[1],
+                    rule.getFunctionalVariable(), query);
+        }
 
-                //check weather the cardinality of the joined relationship is above the minimum Threshold
-                //Problems: Isnt the Support between 0 and 1, and the cardinality always above 1?
+        final int danglingPosition = (joinPosition == 0 ? 2 : 0);
 
-                if (cardinality >= minSupportThreshold) {
+        List<ByteString> relations = new ArrayList<>();
+        for (ByteString relation : promisingRelations) {
+            if (this.bodyExcludedRelations != null &&
+                    this.bodyExcludedRelations.contains(relation))
+                continue;
+            //Here we still have to make a redundancy check
+            int cardinality = promisingRelations.get(relation);
 
-                    if (!rule.containsRelation(relation)) {
-                        newEdge[1] = relation;
-                        Rule candidate = rule.addAtom(newEdge, cardinality);
-                        if (candidate.containsUnifiablePatterns()) {
-                            //Verify whether dangling variable unifies to a single value (I do not like this hack)
-                            if (kb.countDistinct(newEdge[danglingPosition], candidate.getTriples()) < 2)
-                                continue;
-                        }
 
-                        candidate.setHeadCoverage(candidate.getSupport()
-                                / headCardinalities.get(candidate.getHeadRelation()));
-                        candidate.setSupportRatio(candidate.getSupport()
-                                / (double) getTotalCount(candidate));
-                        candidate.addParent(rule);
+            //check weather the cardinality of the joined relationship is above the minimum Threshold
+            //Problems: Isnt the Support between 0 and 1, and the cardinality always above 1?
 
-                        candidate.setFrequency(cardinality/(double) this.classSize);
-                        candidate.setClassConfidence(this.getClassConfidence(candidate));
-                        //Here we add the generated candidate to the output collection
-                        output.add(candidate);
+            if (cardinality >= minSupportThreshold && !rule.containsRelation(relation)) {
+                relations.add(relation);
+            }
+        }
 
-                    }
+        refineAll(relations, relations.size(), new Refinement<ByteString>() {
+            public void refine(ByteString relation, Collection<Rule> output) {
+                int cardinality = promisingRelations.get(relation);
+                ByteString[] edge = newEdge.clone();
+                edge[1] = relation;
+                Rule candidate = rule.addAtom(edge, cardinality);
+                if (candidate.containsUnifiablePatterns()) {
+                    //Verify whether dangling variable unifies to a single value (I do not like this hack)
+                    if (!kb.countDistinctAtLeast(edge[danglingPosition], candidate.getTriples(), 2))
+                        return;
                 }
 
-                //}
-
-                newEdge[1] = originalRelationVariable;
+                candidate.setHeadCoverage(candidate.getSupport()
+                        / headCardinalities.get(candidate.getHeadRelation()));
+                candidate.setSupportRatio(candidate.getSupport()
+                        / (double) getTotalCount(candidate));
+                candidate.addParent(rule);
+                if (shareBindings)
+                    candidate.setParentBindings(bindings);
+
+                candidate.setFrequency(cardinality/(double) classSize);
+                candidate.setClassConfidence(getClassConfidence(candidate));
+                //Here we add the generated candidate to the output collection
+                output.add(candidate);
             }
-            newEdge[joinPosition] = originalFreshVariable;
-
-        }
+        }, output);
     }
 
     @Override
@@ -183,17 +219,33 @@ public class SchemaAttributeMiningAssistant extends MiningAssistant {
     }
 
     @Override
-    protected void getInstantiatedAtoms(Rule queryWithDanglingEdge, Rule parentQuery,
-                                        int danglingAtomPosition, int danglingPositionInEdge, double minSupportThreshold, Collection<Rule> output) {
+    protected void getInstantiatedAtoms(final Rule queryWithDanglingEdge, final Rule parentQuery,
+                                        int danglingAtomPosition, final int danglingPositionInEdge, double minSupportThreshold, Collection<Rule> output) {
 
         ByteString[] danglingEdge = queryWithDanglingEdge.getTriples().get(danglingAtomPosition);
-        IntHashMap<ByteString> constants = kb.frequentBindingsOf(danglingEdge[danglingPositionInEdge],
-                queryWithDanglingEdge.getFunctionalVariable(), queryWithDanglingEdge.getTriples());
+        // The bindings of the rule without the dangling atom give the support of each constant
+        CompressedBitmap bindings = queryWithDanglingEdge.getParentBindings();
+        int joinPosition = danglingPositionInEdge == 0 ? 2 : 0;
+        final IntHashMap<ByteString> constants;
+        if (bindings != null && danglingEdge == queryWithDanglingEdge.getLastTriplePattern()
+                && danglingEdge[joinPosition].equals(queryWithDanglingEdge.getFunctionalVariable())
+                && kb.isStarQuery(queryWithDanglingEdge.getFunctionalVariable(), queryWithDanglingEdge.getTriples())) {
+            constants = kb.countBindingsPerValue(bindings, danglingEdge[1], joinPosition);
+        } else {
+            bindings = null;
+            constants = kb.frequentBindingsOf(danglingEdge[danglingPositionInEdge],
+                    queryWithDanglingEdge.getFunctionalVariable(), queryWithDanglingEdge.getTriples());
+        }
+        final CompressedBitmap parentBindings = bindings;
+        List<ByteString> frequentConstants = new ArrayList<>();
         for (ByteString constant: constants){
-            int cardinality = constants.get(constant);
-            if(cardinality >= minSupportThreshold){
-                ByteString[] lastPatternCopy = queryWithDanglingEdge.getLastTriplePattern().clone();
-                lastPatternCopy[danglingPositionInEdge] = constant;
+            if(constants.get(constant) >= minSupportThreshold){
+                frequentConstants.add(constant);
+            }
+        }
+        refineAll(frequentConstants, frequentConstants.size(), new Refinement<ByteString>() {
+            public void refine(ByteString constant, Collection<Rule> output) {
+                int cardinality = constants.get(constant);
                 Rule candidate = queryWithDanglingEdge.instantiateConstant(danglingPositionInEdge,
                         constant, cardinality);
 
@@ -201,13 +253,14 @@ public class SchemaAttributeMiningAssistant extends MiningAssistant {
                     candidate.setHeadCoverage((double)cardinality / headCardinalities.get(candidate.getHeadRelation()));
                     candidate.setSupportRatio((double)cardinality / (double)getTotalCount(candidate));
 
-                    candidate.setFrequency(cardinality/(double) this.classSize);
-                    candidate.setClassConfidence(this.getClassConfidence(candidate));
+                    candidate.setFrequency(cardinality/(double) classSize);
+                    candidate.setClassConfidence(getClassConfidence(candidate));
                     candidate.addParent(parentQuery);
+                    candidate.setParentBindings(parentBindings);
                     output.add(candidate);
                 }
             }
-        }
+        }, output);
     }
 
 
@@ -217,7 +270,7 @@ public class SchemaAttributeMiningAssistant extends MiningAssistant {
         ByteString[] head = r.getHead();
         ByteString countVariable = null;
         countVariable = head[0];
-        long support = kb.countDistinct(countVariable, r.getTriples());
+        long support = r.getHeadCandidatesCount(kb);
 
         frequency = support/(double) this.classSize;
         return frequency;
@@ -232,6 +285,57 @@ public class SchemaAttributeMiningAssistant extends MiningAssistant {
      * @return Returns Schema Rule Confidence classConfidence
      */
 
+    /**
+     * If true, the class confidence of the rules is computed from an estimate of the support of
+     * their bodies in the complete KB (see {@link KB#countDistinctApproximate(ByteString, List)}).
+     * Only the rules whose estimated confidence is close to or above {@link AMIE#minConfidence}
+     * are counted exactly, so the rules that pass the threshold get their exact confidence.
+     * @param approximateClassConfidence
+     */
+    public void setApproximateClassConfidence(boolean approximateClassConfidence) {
+        this.approximateClassConfidence = approximateClassConfidence;
+    }
+
+    public boolean isApproximateClassConfidence() {
+        return approximateClassConfidence;
+    }
+
+    /**
+     * If the KB is a view of the complete KB (see {@link KBView}) and the body of the rule is
+     * star-shaped around the count variable, which is the subject of all its atoms, and has
+     * no relation with facts added to the view, the bindings of the body in the view are its
+     * bindings in the complete KB restricted to the subjects of the view. In that case it
+     * returns the bindings of the body in the complete KB, otherwise null.
+     */
+    private CompressedBitmap getCompleteBodyBindings(Rule r, ByteString countVariable) {
+        if (!(kb instanceof KBView) || ((KBView) kb).getBase() != AMIE.completeKB) {
+            return null;
+        }
+        KBView view = (KBView) kb;
+        List<ByteString[]> body = r.getBody();
+        if (!AMIE.completeKB.isStarQuery(countVariable, body)) {
+            return null;
+        }
+        for (ByteString[] atom : body) {
+            if (!atom[0].equals(countVariable) || KB.isVariable(atom[1]) || !view.isRestriction(atom[1])) {
+                return null;
+            }
+        }
+        return AMIE.completeKB.selectDistinctBitmap(countVariable, body);
+    }
+
+    /**
+     * The subjects of the head atom of the rules, i.e., the members of the class in the KB
+     */
+    private CompressedBitmap getClassMembers(ByteString[] head) {
+        CompressedBitmap members = classMembers;
+        if (members == null) {
+            members = kb.selectDistinctBitmap(head[0], KB.triples(head));
+            classMembers = members;
+        }
+        return members;
+    }
+
     public double getClassConfidence(Rule r){
         double classConfidence = 0.0;
         ByteString[] head = r.getHead();
@@ -241,8 +345,22 @@ public class SchemaAttributeMiningAssistant extends MiningAssistant {
 
         double supportComplete;
         double support;
-        support = kb.countDistinct(countVariable, r.getTriples());
-        supportComplete = AMIE.completeKB.countDistinct(countVariable, r.getBody());
+        CompressedBitmap completeBindings = getCompleteBodyBindings(r, countVariable);
+        if (completeBindings != null) {
+            // The candidates of the rule are the bindings of the body in the complete KB that are members of the class in the view
+            support = completeBindings.andCardinality(getClassMembers(head));
+            supportComplete = completeBindings.cardinality();
+        } else if (approximateClassConfidence) {
+            support = r.getHeadCandidatesCount(kb);
+            supportComplete = AMIE.completeKB.countDistinctApproximate(countVariable, r.getBody());
+            // Rules that may pass the threshold, given the error of the estimate, are counted exactly
+            double margin = 1 - AMIE.completeKB.getSketchError();
+            if (supportComplete > 0 && support / supportComplete > AMIE.minConfidence * margin)
+                supportComplete = AMIE.completeKB.countDistinct(countVariable, r.getBody());
+        } else {
+            support = r.getHeadCandidatesCount(kb);
+            supportComplete = AMIE.completeKB.countDistinct(countVariable, r.getBody());
+        }
         if(support == 0){
             System.out.println("Support for " + r + " is 0.");
         }
@@ -4,8 +4,13 @@
  */
 package amie.rules;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.MatchResult;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -13,6 +18,7 @@ import java.util.regex.Pattern;
 import javatools.datatypes.ByteString;
 import javatools.datatypes.IntHashMap;
 import amie.U;
+import amie.data.CompressedBitmap;
 import amie.data.KB;
 
 /**
@@ -158,6 +164,71 @@ public class Rule {
      */
     private double _confidenceRunningTime;
 
+    /**
+     * Bindings of the functional variable in the parent rule, as identifiers of the
+     * dictionary of the KB. The bindings of this rule are those that also satisfy its
+     * last atom. Null if they are not kept.
+     */
+    private CompressedBitmap parentBindings;
+
+    /**
+     * Bindings of the head variable computed by {@link #getHeadCandidates(KB)}, kept if
+     * they fit in the memory limit. Null if they have not been kept.
+     */
+    private volatile HeadCandidates headCandidates;
+
+    /**
+     * Default maximal memory in bytes of the head candidates kept by all the rules
+     */
+    public static final long DEFAULT_CANDIDATES_MEMORY = 64L * 1024 * 1024;
+
+    /**
+     * Maximal memory in bytes of the head candidates kept by all the rules. If 0, they are
+     * computed every time they are needed.
+     */
+    private static volatile long maxCandidatesMemory = DEFAULT_CANDIDATES_MEMORY;
+
+    /**
+     * Memory of the head candidates kept by rules, released when they are garbage collected
+     */
+    private static final AtomicLong candidatesMemory = new AtomicLong();
+
+    private static final ReferenceQueue<CompressedBitmap> releasedCandidates = new ReferenceQueue<CompressedBitmap>();
+
+    private static final Map<Reference<CompressedBitmap>, Long> keptCandidates = new ConcurrentHashMap<Reference<CompressedBitmap>, Long>();
+
+    /**
+     * Head candidates of a rule, with the KB and the atoms they were computed from
+     */
+    private static final class HeadCandidates {
+
+        final KB kb;
+
+        /** Copy of the atoms of the rule when the candidates were computed */
+        final ByteString[][] atoms;
+
+        final CompressedBitmap bitmap;
+
+        HeadCandidates(KB kb, List<ByteString[]> atoms, CompressedBitmap bitmap) {
+            this.kb = kb;
+            this.atoms = new ByteString[atoms.size()][];
+            for (int i = 0; i < this.atoms.length; i++)
+                this.atoms[i] = atoms.get(i).clone();
+            this.bitmap = bitmap;
+        }
+
+        /** TRUE if the candidates were computed for exactly these atoms */
+        boolean hasAtoms(List<ByteString[]> atoms) {
+            if (atoms.size() != this.atoms.length)
+                return false;
+            for (int i = 0; i < this.atoms.length; i++) {
+                if (!Arrays.equals(this.atoms[i], atoms.get(i)))
+                    return false;
+            }
+            return true;
+        }
+    }
+
     /**
      * ******** Joint Prediction *********
      */
@@ -627,6 +698,24 @@ public class Rule {
         this.generation = generation;
     }
 
+    /**
+     * It returns the bindings of the functional variable in the parent rule, null if
+     * they are not kept.
+     * @return
+     */
+    public CompressedBitmap getParentBindings() {
+        return parentBindings;
+    }
+
+    /**
+     * It keeps the bindings of the functional variable in the parent rule, so that the
+     * bindings of this rule can be computed by filtering them with the last atom.
+     * @param bindings The bitmap is shared and must not be modified.
+     */
+    public void setParentBindings(CompressedBitmap bindings) {
+        this.parentBindings = bindings;
+    }
+
     /**
      * Returns the last triple pattern added to this rule.
      *
@@ -2389,25 +2478,108 @@ public class Rule {
         return "";
     }
 
+    /**
+     * Fraction of the candidates of the head variable of the given rule that are not
+     * candidates of this rule.
+     *
+     * @param kb
+     * @param r
+     * @return
+     */
     public double getRuleOverlap(KB kb, Rule r){
+        return getRuleOverlap(getHeadCandidates(kb), r.getHeadCandidates(kb));
+    }
+
+    /**
+     * Fraction of the candidates of a rule that are not candidates of this rule, given the
+     * candidates of both (see {@link #getHeadCandidates(KB)}).
+     *
+     * @param candidates Candidates of this rule
+     * @param otherCandidates Candidates of the other rule
+     * @return
+     */
+    public static double getRuleOverlap(CompressedBitmap candidates, CompressedBitmap otherCandidates) {
+        long other = otherCandidates.cardinality();
+        return (double) (other - otherCandidates.andCardinality(candidates)) / other;
+    }
+
+    /**
+     * The bindings of the head variable of the rule in the KB, as a bitmap of term
+     * identifiers of the KB (see {@link KB#selectDistinctBitmap(ByteString, List)}).
+     * They are kept by the rule if the KB is frozen and they fit in the memory limit
+     * (see {@link #setMaxCandidatesMemory(long)}). The bitmap must not be modified.
+     *
+     * @param kb
+     * @return
+     */
+    public CompressedBitmap getHeadCandidates(KB kb) {
+        HeadCandidates cached = headCandidates;
+        if (cached != null && cached.kb == kb && cached.hasAtoms(triples))
+            return cached.bitmap;
+        CompressedBitmap candidates = kb.selectDistinctBitmap(getHead()[0], getTriples());
+        // The facts of a KB that is not frozen may still change
+        if (kb.isFrozen() && keepCandidates(candidates))
+            headCandidates = new HeadCandidates(kb, triples, candidates);
+        return candidates;
+    }
 
-        //Get candidates for this rule
-        ByteString[] head = this.getHead();
-        ByteString countVariable = null;
-        countVariable = head[0];
-        Set<ByteString> candidatesThis = kb.selectDistinct(countVariable, this.getTriples());
+    /**
+     * The number of bindings of the head variable of the rule in the KB, i.e., its support.
+     * The bindings are computed once and kept by the rule if they fit in the memory limit
+     * (see {@link #setMaxCandidatesMemory(long)}), so that the support, the frequency and
+     * the overlap with other rules reuse the same evaluation.
+     *
+     * @param kb
+     * @return
+     */
+    public long getHeadCandidatesCount(KB kb) {
+        return getHeadCandidates(kb).cardinality();
+    }
 
+    /**
+     * It sets the maximal memory of the head candidates kept by all the rules,
+     * 0 to compute them every time they are needed.
+     *
+     * @param bytes
+     */
+    public static void setMaxCandidatesMemory(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("The memory of the candidates must not be negative: " + bytes);
+        maxCandidatesMemory = bytes;
+    }
 
-        //Get candidates for this rule
-        head = r.getHead();
-        countVariable = head[0];
-        Set<ByteString> candidateRule = kb.selectDistinct(countVariable, r.getTriples());
-        Set<ByteString> tmp = new HashSet<>();
-        tmp.addAll(candidateRule);
-        tmp.removeAll(candidatesThis);
-        //return overlap in percentage
-        return (double)tmp.size()/candidateRule.size();
+    public static long getMaxCandidatesMemory() {
+        return maxCandidatesMemory;
+    }
 
+    /**
+     * Memory in bytes of the head candidates currently kept by rules
+     */
+    public static long getCandidatesMemory() {
+        return candidatesMemory.get();
+    }
+
+    /**
+     * It reserves memory for head candidates kept by a rule. The memory is released once
+     * no rule references them.
+     *
+     * @param candidates
+     * @return FALSE if they do not fit in the memory limit
+     */
+    private static boolean keepCandidates(CompressedBitmap candidates) {
+        Reference<? extends CompressedBitmap> released;
+        while ((released = releasedCandidates.poll()) != null) {
+            Long size = keptCandidates.remove(released);
+            if (size != null)
+                candidatesMemory.addAndGet(-size);
+        }
+        long size = candidates.sizeInBytes();
+        if (candidatesMemory.addAndGet(size) > maxCandidatesMemory) {
+            candidatesMemory.addAndGet(-size);
+            return false;
+        }
+        keptCandidates.put(new WeakReference<CompressedBitmap>(candidates, releasedCandidates), size);
+        return true;
     }
 
 
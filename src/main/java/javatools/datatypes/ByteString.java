@@ -2,6 +2,7 @@ package javatools.datatypes;
 
 import java.util.Arrays;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javatools.administrative.D;
 
@@ -20,8 +21,34 @@ import javatools.administrative.D;
  */
 public class ByteString implements Comparable<ByteString>, CharSequence {
 
-  /** Holds all strings */
-  protected static WeakHashMap<ByteString, ByteString> values = new WeakHashMap<ByteString, ByteString>();
+  /** Number of stripes of the table of strings (a power of 2) */
+  private static final int STRIPES = 64;
+
+  /** Holds all strings. The table is split in stripes with their own lock, so that
+   * threads creating different strings rarely wait for each other. */
+  @SuppressWarnings("unchecked")
+  protected static final WeakHashMap<ByteString, ByteString>[] values = new WeakHashMap[STRIPES];
+
+  static {
+    for (int i = 0; i < STRIPES; i++) {
+      values[i] = new WeakHashMap<ByteString, ByteString>();
+    }
+  }
+
+  /** Holds the strings created in arena mode. They are never garbage collected, but
+   * they are found without taking any lock. */
+  protected static final ConcurrentHashMap<ByteString, ByteString> arena = new ConcurrentHashMap<ByteString, ByteString>();
+
+  /** If true, new strings are stored in the arena */
+  protected static volatile boolean arenaMode = false;
+
+  /** Probe of each thread, used to look up a slice without creating a ByteString */
+  private static final ThreadLocal<Slice> probes = new ThreadLocal<Slice>() {
+    @Override
+    protected Slice initialValue() {
+      return new Slice();
+    }
+  };
 
   /** Holds the string */
   public byte[] data;
@@ -34,17 +61,86 @@ public class ByteString implements Comparable<ByteString>, CharSequence {
 
   /** Constructor*/
   public static ByteString of(CharSequence s) {
-    ByteString newOne=new ByteString(s);
-    synchronized (values) {
-      ByteString canonic = values.get(newOne);
+    return of(s, 0, s.length());
+  }
+
+  /** Returns the ByteString of the characters start (inclusive) to end (exclusive)
+   * of s. No object is created if the string exists already. */
+  public static ByteString of(CharSequence s, int start, int end) {
+    Slice probe = probes.get();
+    probe.set(s, null, start, end);
+    try {
+      return intern(probe);
+    } finally {
+      probe.clear();
+    }
+  }
+
+  /** Returns the ByteString of the bytes start (inclusive) to end (exclusive) of
+   * the array, taking each byte as one character (ISO-8859-1). No object is created
+   * if the string exists already. */
+  public static ByteString of(byte[] bytes, int start, int end) {
+    Slice probe = probes.get();
+    probe.set(null, bytes, start, end);
+    try {
+      return intern(probe);
+    } finally {
+      probe.clear();
+    }
+  }
+
+  /** Returns the canonical ByteString with the contents of the probe, creating it if necessary */
+  private static ByteString intern(Slice probe) {
+    ByteString canonic;
+    if (!arena.isEmpty()) {
+      canonic = arena.get(probe);
       if (canonic != null) return (canonic);
-      values.put(newOne,newOne);
-      newOne.isInterned=true;
-      /* We need this flag, because if we go directly always by ==, then WeakHashMap will not be able to detect if the String is already there...*/
     }
-    return (newOne);
+    int h = probe.hashCode;
+    WeakHashMap<ByteString, ByteString> stripe = values[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    synchronized (stripe) {
+      // The string may have been added to the arena by another thread in the meantime
+      if (!arena.isEmpty()) {
+        canonic = arena.get(probe);
+        if (canonic != null) return (canonic);
+      }
+      canonic = stripe.get(probe);
+      if (canonic == null) {
+        canonic = new ByteString(probe.copy(), h);
+        /* We need this flag, because if we go directly always by ==, then WeakHashMap will not be able to detect if the String is already there...*/
+        canonic.isInterned = true;
+        if (!arenaMode) {
+          stripe.put(canonic, canonic);
+          return (canonic);
+        }
+      }
+      if (arenaMode) arena.putIfAbsent(canonic, canonic);
+    }
+    return (canonic);
   }
-  
+
+  /** Turns the arena mode on or off. In arena mode, the strings are kept until the
+   * end of the program, which suits KBs that live as long as the JVM. Strings created
+   * in arena mode stay there after turning it off. */
+  public static void setArenaMode(boolean on) {
+    arenaMode = on;
+  }
+
+  /** TRUE if new strings are stored in the arena */
+  public static boolean isArenaMode() {
+    return arenaMode;
+  }
+
+  /** Used by the probes */
+  private ByteString() {
+  }
+
+  /** Wraps the (encoded) bytes */
+  private ByteString(byte[] data, int hashCode) {
+    this.data = data;
+    this.hashCode = hashCode;
+  }
+
   /** Use subSequence()*/
   protected ByteString(ByteString s, int start, int end) {
     data = Arrays.copyOfRange(s.data, start, end);
@@ -117,6 +213,74 @@ public class ByteString implements Comparable<ByteString>, CharSequence {
   }
 
 
+  /**
+   * A slice of a CharSequence or of a byte array that compares equal to the
+   * ByteString with the same characters. It is only used to look up strings
+   * in the tables.
+   */
+  private static final class Slice extends ByteString {
+
+    CharSequence chars;
+
+    byte[] bytes;
+
+    int start;
+
+    int end;
+
+    void set(CharSequence chars, byte[] bytes, int start, int end) {
+      this.chars = chars;
+      this.bytes = bytes;
+      this.start = start;
+      this.end = end;
+      int h = 1;
+      for (int i = 0; i < end - start; i++) {
+        h = 31 * h + byteAt(i);
+      }
+      hashCode = h;
+    }
+
+    void clear() {
+      chars = null;
+      bytes = null;
+    }
+
+    /** Byte of the i-th character, as stored in ByteString.data */
+    byte byteAt(int i) {
+      if (chars != null) return (byte) (chars.charAt(start + i) - 128);
+      return (byte) ((bytes[start + i] & 0xFF) - 128);
+    }
+
+    byte[] copy() {
+      byte[] result = new byte[end - start];
+      for (int i = 0; i < result.length; i++) {
+        result[i] = byteAt(i);
+      }
+      return result;
+    }
+
+    @Override
+    public int length() {
+      return end - start;
+    }
+
+    @Override
+    public char charAt(int arg0) {
+      return (char) (byteAt(arg0) + 128);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof ByteString)) return (false);
+      byte[] other = ((ByteString) obj).data;
+      if (other == null || other.length != end - start) return (false);
+      for (int i = 0; i < other.length; i++) {
+        if (other[i] != byteAt(i)) return (false);
+      }
+      return (true);
+    }
+  }
+
   public static void main(String[] args) {
     D.p(new ByteString("Hallo du!"));
   }
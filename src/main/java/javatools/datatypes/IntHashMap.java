@@ -44,6 +44,15 @@ public class IntHashMap<K> extends AbstractSet<K> {
 		clear();
 	}
 
+	/**
+	 * Constructor for subclasses that do not store their keys in the table:
+	 * no table is allocated if allocate is false.
+	 */
+	protected IntHashMap(boolean allocate) {
+		if (allocate)
+			clear();
+	}
+
 	/** Creates an intHashMap with these keys set to 1 */
 	public IntHashMap(K... keys) {
 		this();